@@ -94,8 +94,8 @@ public class Example {
 		// TODO тут формируем список вложений, если они есть
 
         // можно включить трассировку запросов и ответов (по умолчанию выключена)
-        InterceptorStorage.getRequest().setIntercept(true);
-        InterceptorStorage.getResponse().setIntercept(true);
+        InterceptorStorage interceptor = new InterceptorStorage();
+        messageExchange.setInterceptorStorage(interceptor);
 
 		// отправляем сообщение
 		try {
@@ -108,8 +108,8 @@ public class Example {
 		}
 
 		// через InterceptorStorage можно получить конверты запроса и ответа
-		System.out.println(InterceptorStorage.getRequest().getString());
-		System.out.println(InterceptorStorage.getResponse().getString());
+		System.out.println(interceptor.getRequestString());
+		System.out.println(interceptor.getResponseString());
 	}
 
 	private static void initFileStore() {
@@ -0,0 +1,340 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Порт, распределяющий вызовы между несколькими узлами СМЭВ.
+ * <p/>
+ * Вызов уходит на исправный узел с наименьшим экспоненциально сглаженным (EWMA) временем ответа,
+ * с поправкой на число вызовов, уже выполняющихся на узле. Если к узлу не удалось подключиться
+ * (запрос заведомо не отправлен), узел помечается неисправным и вызов повторяется на следующем.
+ * Узел также помечается неисправным после нескольких сбоев подряд. Неисправные узлы проверяются
+ * фоновой задачей и возвращаются в работу, когда снова отвечают.
+ * <p/>
+ * SOAP Fault от СМЭВ - ответ узла, а не его сбой: он учитывается во времени ответа, а не в ошибках.
+ * Пул подключается к MessageExchangeEndpoint через {@link #asPort()}; свойства, заданные в контексте запроса
+ * этого порта (MessageExchangeEndpoint.enableGzip, setInterceptorStorage и т.п.), переносятся на порты всех узлов.
+ */
+public final class BalancedPort implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BalancedPort.class);
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final int FAILURES_TO_DISABLE = 3;
+
+    public static final long DEFAULT_PROBE_INTERVAL = 10 * 1000;
+    // Предел ожидания соединения и ответа при проверке узла, если таймауты узлов больше или не заданы:
+    // проверка идёт в одном потоке, и зависший узел не должен задерживать проверку остальных.
+    private static final int PROBE_TIMEOUT = 10 * 1000;
+
+    /**
+     * Снимок метрик узла.
+     */
+    public static final class NodeStats {
+
+        private final String address;
+        private final boolean healthy;
+        private final double latencyMillis;
+        private final int inFlight;
+        private final long calls;
+        private final long errors;
+
+        private NodeStats(String address, boolean healthy, double latencyMillis, int inFlight, long calls, long errors) {
+            this.address = address;
+            this.healthy = healthy;
+            this.latencyMillis = latencyMillis;
+            this.inFlight = inFlight;
+            this.calls = calls;
+            this.errors = errors;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * @return сглаженное время ответа узла.
+         */
+        public double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            return address + "{healthy=" + healthy + ", latency=" + Math.round(latencyMillis) + " ms, inFlight=" + inFlight
+                + ", calls=" + calls + ", errors=" + errors + "}";
+        }
+    }
+
+    private static final class Node {
+        final String address;
+        final SMEVMessageExchangePortType port;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        // Изменяются под блокировкой узла.
+        double latencyMillis = 0;
+        int consecutiveFailures = 0;
+        volatile boolean healthy = true;
+
+        Node(String address, SMEVMessageExchangePortType port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        synchronized double score() {
+            return latencyMillis * (inFlight.get() + 1);
+        }
+
+        synchronized void succeeded(long millis) {
+            latencyMillis = latencyMillis == 0 ? millis : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT) * latencyMillis;
+            consecutiveFailures = 0;
+        }
+
+        synchronized boolean failed(long millis) {
+            latencyMillis = latencyMillis == 0 ? millis : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT) * latencyMillis;
+            return ++consecutiveFailures >= FAILURES_TO_DISABLE;
+        }
+
+        synchronized void restored() {
+            consecutiveFailures = 0;
+            // Узел начинает с нуля, чтобы сразу получить вызовы и обновить оценку времени ответа.
+            latencyMillis = 0;
+            healthy = true;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final int probeConnectTimeoutMillis;
+    private final int probeReadTimeoutMillis;
+    private final ScheduledThreadPoolExecutor prober;
+    private final FanOutRequestContext requestContext = new FanOutRequestContext();
+
+    /**
+     * @param addresses адреса узлов СМЭВ (адрес сервиса, без "?wsdl"). Порты создаются по WSDL
+     *  из состава библиотеки (см. MessageExchangeEndpoint.createBundledPort).
+     * @param probeIntervalMillis как часто проверять неисправные узлы.
+     */
+    public BalancedPort(List<String> addresses, int connectTimeoutMillis, int requestTimeoutMillis, long probeIntervalMillis)
+            throws WebServiceClientException {
+        if (addresses == null || addresses.isEmpty())
+            throw new IllegalArgumentException("At least one SMEV address is required");
+        if (probeIntervalMillis <= 0)
+            throw new IllegalArgumentException("probeIntervalMillis must be positive");
+        List<Node> list = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            list.add(new Node(address, MessageExchangeEndpoint.createBundledPort(address, connectTimeoutMillis, requestTimeoutMillis)));
+        }
+        this.nodes = Collections.unmodifiableList(list);
+        this.probeConnectTimeoutMillis = probeTimeout(connectTimeoutMillis);
+        this.probeReadTimeoutMillis = probeTimeout(requestTimeoutMillis);
+        for (Node node : nodes) {
+            requestContext.addTarget(node.port);
+        }
+        this.prober = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("smev-node-prober-%d").setDaemon(true).build());
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeUnhealthy();
+            }
+        }, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return порт, каждый вызов которого направляется на один из узлов. Потокобезопасен.
+     *  Реализует BindingProvider, см. FanOutRequestContext.
+     */
+    public SMEVMessageExchangePortType asPort() {
+        return (SMEVMessageExchangePortType) Proxy.newProxyInstance(
+            SMEVMessageExchangePortType.class.getClassLoader(),
+            new Class<?>[]{SMEVMessageExchangePortType.class, BindingProvider.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class) {
+                        if ("equals".equals(method.getName()))
+                            return proxy == args[0];
+                        return method.invoke(BalancedPort.this, args);
+                    }
+                    if (method.getDeclaringClass() == BindingProvider.class)
+                        return requestContext.invokeBindingProvider(method);
+                    return call(method, args);
+                }
+            });
+    }
+
+    public List<NodeStats> getNodeStats() {
+        List<NodeStats> stats = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            double latency;
+            synchronized (node) {
+                latency = node.latencyMillis;
+            }
+            stats.add(new NodeStats(node.address, node.healthy, latency, node.inFlight.get(), node.calls.get(), node.errors.get()));
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        prober.shutdownNow();
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        if (Future.class.isAssignableFrom(method.getReturnType())) {
+            // Асинхронный вызов возвращается сразу, его время ответа и сбои здесь не видны.
+            try {
+                return method.invoke(select(Collections.<Node>emptyList()).port, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+        List<Node> tried = new ArrayList<>(nodes.size());
+        while (true) {
+            Node node = select(tried);
+            tried.add(node);
+            node.calls.incrementAndGet();
+            node.inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                Object result = method.invoke(node.port, args);
+                node.succeeded(elapsedMillis(start));
+                return result;
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (!(cause instanceof WebServiceException)) {
+                    // SOAP Fault, пришедший от СМЭВ: узел исправен.
+                    node.succeeded(elapsedMillis(start));
+                    throw cause;
+                }
+                node.errors.incrementAndGet();
+                if (isConnectFailure(cause)) {
+                    disable(node, cause);
+                    if (tried.size() < nodes.size()) {
+                        logger.warn("Cannot connect to SMEV node {}, failing over", node.address);
+                        continue;
+                    }
+                } else if (node.failed(elapsedMillis(start))) {
+                    disable(node, cause);
+                }
+                throw cause;
+            } finally {
+                node.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Исправный узел с наименьшей оценкой; если исправных не осталось - любой ещё не опробованный.
+     */
+    private Node select(List<Node> tried) {
+        Node best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Node node : nodes) {
+            if (!node.healthy || tried.contains(node))
+                continue;
+            double score = node.score();
+            if (score < bestScore) {
+                best = node;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            for (Node node : nodes) {
+                if (!tried.contains(node))
+                    return node;
+            }
+        }
+        return best;
+    }
+
+    private void disable(Node node, Throwable cause) {
+        if (node.healthy) {
+            node.healthy = false;
+            logger.warn("SMEV node {} disabled: {}", node.address, cause.toString());
+        }
+    }
+
+    private void probeUnhealthy() {
+        for (Node node : nodes) {
+            if (node.healthy)
+                continue;
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(node.address).openConnection();
+                connection.setConnectTimeout(probeConnectTimeoutMillis);
+                connection.setReadTimeout(probeReadTimeoutMillis);
+                int code = connection.getResponseCode();
+                InputStream input = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (input != null) {
+                    input.close();
+                }
+                // Любой HTTP-ответ, кроме ошибки шлюза, означает, что узел принимает соединения.
+                if (code != HttpURLConnection.HTTP_BAD_GATEWAY && code != HttpURLConnection.HTTP_UNAVAILABLE
+                        && code != HttpURLConnection.HTTP_GATEWAY_TIMEOUT) {
+                    node.restored();
+                    logger.info("SMEV node {} is available again", node.address);
+                }
+            } catch (IOException ex) {
+                logger.debug("SMEV node {} is still unavailable: {}", node.address, ex.toString());
+            }
+        }
+    }
+
+    private static int probeTimeout(int timeoutMillis) {
+        return timeoutMillis > 0 ? Math.min(timeoutMillis, PROBE_TIMEOUT) : PROBE_TIMEOUT;
+    }
+
+    private static boolean isConnectFailure(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException)
+                return true;
+        }
+        return false;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
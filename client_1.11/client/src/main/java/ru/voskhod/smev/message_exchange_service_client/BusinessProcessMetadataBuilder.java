@@ -6,7 +6,6 @@ import ru.voskhod.smev.message_exchange.autogenerated.bp_metadata.v1_0.CaseInfoT
 import ru.voskhod.smev.message_exchange.autogenerated.bp_metadata.v1_0.ObjectFactory;
 import ru.voskhod.smev.message_exchange.autogenerated.bp_metadata.v1_0.ServiceOrFunctionType;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
@@ -16,17 +15,6 @@ import java.util.List;
 
 public final class BusinessProcessMetadataBuilder {
 
-    private static final ThreadLocal<Marshaller> jaxbMarshaller = new ThreadLocal<Marshaller>() {
-        @Override
-        protected Marshaller initialValue() {
-            try {
-                return JAXBContext.newInstance("ru.voskhod.smev.message_exchange.autogenerated.bp_metadata.v1_0").createMarshaller();
-            } catch (JAXBException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    };
-
     private String caseNumber;
     private String serviceOrFunctionCode;
     private boolean service;
@@ -90,9 +78,15 @@ public final class BusinessProcessMetadataBuilder {
     }
 
     private static <T> Element unmarshal(JAXBElement<T> element) throws JAXBException {
-        DOMResult domResult = new DOMResult();
-        jaxbMarshaller.get().marshal(element, domResult);
-        return ((Document) domResult.getNode()).getDocumentElement();
+        JAXBPool pool = JAXBPool.forPackage(JAXBPool.BP_METADATA_PACKAGE);
+        Marshaller marshaller = pool.acquireMarshaller();
+        try {
+            DOMResult domResult = new DOMResult();
+            marshaller.marshal(element, domResult);
+            return ((Document) domResult.getNode()).getDocumentElement();
+        } finally {
+            pool.release(marshaller);
+        }
     }
 
     /**
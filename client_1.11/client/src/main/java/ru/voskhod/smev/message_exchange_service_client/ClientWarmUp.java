@@ -0,0 +1,244 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import ru.voskhod.crypto.DigitalSignatureFactory;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Прогрев клиента при старте приложения.
+ * <p/>
+ * Без прогрева первое сообщение после запуска платит за инициализацию xmlsec и криптопровайдера,
+ * создание JAXBContext, разбор WSDL, загрузку базы MIME-типов Tika и поиск MAC-адреса для генератора UUID.
+ * Здесь всё это выполняется заранее и параллельно; время каждого компонента попадает в отчёт.
+ * Ошибка прогрева компонента не прерывает остальные: она попадает в отчёт, а компонент
+ * инициализируется, как и без прогрева, при первом обращении.
+ */
+public final class ClientWarmUp {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClientWarmUp.class);
+
+    public static final String CRYPTO = "crypto";
+    public static final String SIGNATURE_DRY_RUN = "signature dry run";
+    public static final String JAXB = "jaxb";
+    public static final String WSDL = "wsdl";
+    public static final String MIME_TYPES = "mime types";
+    public static final String UUID_GENERATOR = "uuid generator";
+
+    /**
+     * Отчёт о прогреве: время и, при неудаче, ошибка по каждому компоненту.
+     */
+    public static final class Report {
+
+        private final Map<String, Long> millis;
+        private final Map<String, Throwable> failures;
+        private final long totalMillis;
+
+        private Report(Map<String, Long> millis, Map<String, Throwable> failures, long totalMillis) {
+            this.millis = Collections.unmodifiableMap(millis);
+            this.failures = Collections.unmodifiableMap(failures);
+            this.totalMillis = totalMillis;
+        }
+
+        /**
+         * @return время прогрева по компонентам, в порядке запуска.
+         */
+        public Map<String, Long> getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return ошибки компонентов, прогреть которые не удалось.
+         */
+        public Map<String, Throwable> getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return общее время прогрева (компоненты прогреваются параллельно).
+         */
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("warm-up ").append(totalMillis).append(" ms:");
+            for (Map.Entry<String, Long> entry : millis.entrySet()) {
+                sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue()).append(" ms");
+                if (failures.containsKey(entry.getKey())) {
+                    sb.append(" (failed)");
+                }
+                sb.append(';');
+            }
+            return sb.toString();
+        }
+    }
+
+    private ClientWarmUp() {
+    }
+
+    /**
+     * Прогреть клиент.
+     * @param cryptoProviderName имя криптопровайдера для DigitalSignatureFactory.init
+     *  (DigitalSignatureFactory.JCP_PROVIDER_NAME или CSP_TJ_PROVIDER_NAME); null - фабрика уже инициализирована приложением.
+     * @param dryRunSigner если задан, после инициализации криптографии выполняется пробное подписание
+     *  и проверка ЭП (XMLDSig и PKCS#7) этим ключом: прогреваются криптопровайдер, ключ и xmlsec.
+     *  null - без пробной подписи.
+     */
+    public static Report run(final String cryptoProviderName, final SignatureOperationsClient dryRunSigner) {
+        long start = System.nanoTime();
+        final Map<String, Long> millis = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+        ExecutorService executor = Executors.newFixedThreadPool(6,
+            new ThreadFactoryBuilder().setNameFormat("smev-warm-up-%d").setDaemon(true).build());
+        List<String> names = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            names.add(CRYPTO);
+            final Future<?> crypto = executor.submit(timed(CRYPTO, millis, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (cryptoProviderName != null) {
+                        DigitalSignatureFactory.init(cryptoProviderName);
+                    }
+                    // Инициализирует провайдер и реализацию ГОСТ Р 34.11-94.
+                    SignatureOperationsClient.getMessageDigest().digest();
+                    return null;
+                }
+            }));
+            futures.add(crypto);
+            names.add(JAXB);
+            futures.add(executor.submit(timed(JAXB, millis, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    JAXBPool.forPackage(JAXBPool.TYPES_PACKAGE);
+                    JAXBPool.forPackage(JAXBPool.BP_METADATA_PACKAGE);
+                    return null;
+                }
+            })));
+            names.add(WSDL);
+            futures.add(executor.submit(timed(WSDL, millis, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    MessageExchangeEndpoint.bundledService();
+                    return null;
+                }
+            })));
+            names.add(MIME_TYPES);
+            futures.add(executor.submit(timed(MIME_TYPES, millis, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // Загружает и фасад Tika, и базу MIME-типов по умолчанию.
+                    SomeMimeTypes.guessFileExtension("text/xml");
+                    return null;
+                }
+            })));
+            names.add(UUID_GENERATOR);
+            futures.add(executor.submit(timed(UUID_GENERATOR, millis, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    MessageExchangeHelper.generateUUID();
+                    return null;
+                }
+            })));
+            if (dryRunSigner != null) {
+                // Пробная подпись - отдельный шаг, который начинается после инициализации криптографии:
+                // время CRYPTO и SIGNATURE_DRY_RUN не перекрываются.
+                final Callable<Void> dryRun = timed(SIGNATURE_DRY_RUN, millis, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        signatureDryRun(dryRunSigner);
+                        return null;
+                    }
+                });
+                names.add(SIGNATURE_DRY_RUN);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            crypto.get();
+                        } catch (ExecutionException ex) {
+                            throw new IllegalStateException("Skipped: crypto warm-up failed", ex.getCause());
+                        }
+                        return dryRun.call();
+                    }
+                }));
+            }
+
+            Map<String, Throwable> failures = new LinkedHashMap<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    failures.put(names.get(i), ex.getCause());
+                    logger.warn("Warm-up of " + names.get(i) + " failed", ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    failures.put(names.get(i), ex);
+                    break;
+                }
+            }
+            Report report;
+            synchronized (millis) {
+                report = new Report(new LinkedHashMap<>(millis), failures,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            logger.info("{}", report);
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<Void> timed(final String name, final Map<String, Long> millis, final Callable<Void> task) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    millis.put(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+        };
+    }
+
+    private static void signatureDryRun(SignatureOperationsClient signer) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().newDocument();
+        Element element = document.createElementNS("urn://smev-client/warm-up", "WarmUp");
+        element.setAttribute("Id", "warm-up");
+        element.setIdAttribute("Id", true);
+        element.setTextContent("warm-up");
+        document.appendChild(element);
+        Element signature = signer.signXMLDSigDetached(element, "warm-up-signature");
+        signer.validateXMLDSigSignature(element, signature);
+
+        MessageDigest digest = SignatureOperationsClient.getMessageDigest();
+        byte[] hash = digest.digest("warm-up".getBytes(StandardCharsets.UTF_8));
+        signer.validatePKCS7Signature(hash, signer.signPKCS7Detached(hash));
+    }
+}
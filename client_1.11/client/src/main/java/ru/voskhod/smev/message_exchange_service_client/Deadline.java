@@ -0,0 +1,242 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Крайний срок и признак отмены отправки сообщения.
+ * <p/>
+ * Срок передаётся вместе с сообщением (OutgoingRequest.withDeadline, OutgoingResponse.withDeadline,
+ * MessageExchangeEndpoint.send(PreparedMessage, Deadline)), а не через поток: все шаги отправки
+ * (хэширование вложений, закачка на FTP, подписание, SOAP-вызов) получают его параметром
+ * и прекращают работу, если срок истёк или отправка отменена. Асинхронные методы MessageExchangeEndpoint
+ * передают срок в свои задачи, а отмена возвращённого ими future отменяет отправку.
+ * <p/>
+ * Длительные операции (передача файла на FTP) регистрируют обработчик {@link #onCancel(Runnable)},
+ * который прерывает их при отмене или по истечении срока. Обработчики выполняются в отдельном пуле потоков:
+ * прерывание может само обращаться к сети и не должно задерживать таймер сроков. SOAP-вызов, уже отправленный в СМЭВ,
+ * прервать нельзя: его ограничивает таймаут запроса порта (см. MessageExchangeEndpoint.createPort).
+ */
+public final class Deadline {
+
+    private static final Logger logger = LoggerFactory.getLogger(Deadline.class);
+
+    private static final ScheduledThreadPoolExecutor timer;
+    private static final ExecutorService hookExecutor;
+
+    static {
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("smev-deadline-%d").setDaemon(true).build());
+        timer.setRemoveOnCancelPolicy(true);
+        hookExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("smev-deadline-hook-%d").setDaemon(true).build());
+    }
+
+    private final long deadlineNanos;
+    // Регистрации сравниваются по ссылке; снятие регистрации не требует прохода по списку.
+    private final Set<Registration> hooks = new LinkedHashSet<>();
+    private boolean fired = false;
+    private volatile boolean cancelled = false;
+    private volatile boolean expired = false;
+    private ScheduledFuture<?> expiry;
+    private Registration parentRegistration;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Срок, истекающий через указанное время.
+     */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        final Deadline deadline = new Deadline(System.nanoTime() + unit.toNanos(timeout));
+        deadline.expiry = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deadline.expire();
+            }
+        }, timeout, unit);
+        return deadline;
+    }
+
+    /**
+     * Бессрочная отправка, которую можно только отменить.
+     */
+    public static Deadline never() {
+        return new Deadline(Long.MAX_VALUE);
+    }
+
+    /**
+     * Производный срок: истекает тогда же и отменяется вместе с этим, но его отмена на этот не влияет.
+     * Производный срок нужно отменить или закрыть через {@link #release()}, когда он больше не нужен.
+     */
+    Deadline child() {
+        final Deadline child = new Deadline(deadlineNanos);
+        // Выполняется сразу, в потоке, завершившем этот срок: производный срок должен истечь одновременно с ним.
+        child.parentRegistration = register(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    child.cancel();
+                } else {
+                    child.expire();
+                }
+            }
+        }, true);
+        return child;
+    }
+
+    /**
+     * Освободить ресурсы срока (таймер, связь с родительским сроком), не вызывая обработчики.
+     */
+    void release() {
+        synchronized (hooks) {
+            fired = true;
+            hooks.clear();
+        }
+        stopTracking();
+    }
+
+    private void stopTracking() {
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        if (parentRegistration != null) {
+            parentRegistration.remove();
+        }
+    }
+
+    public long remainingMillis() {
+        if (deadlineNanos == Long.MAX_VALUE)
+            return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true, если срок истёк или отправка отменена.
+     */
+    public boolean isExpired() {
+        return cancelled || expired || (deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0);
+    }
+
+    /**
+     * @throws ClientSideProcessingException срок истёк или отправка отменена.
+     */
+    public void check() throws ClientSideProcessingException {
+        if (cancelled)
+            throw new ClientSideProcessingException("Sending was cancelled");
+        if (isExpired())
+            throw new ClientSideProcessingException("Sending deadline exceeded");
+    }
+
+    /**
+     * Отменить отправку: вызвать зарегистрированные обработчики, последующие проверки срока
+     * будут завершаться ошибкой.
+     */
+    public void cancel() {
+        cancelled = true;
+        fire();
+    }
+
+    /**
+     * Срок истёк: вызвать зарегистрированные обработчики. В отличие от {@link #cancel()}, проверка срока
+     * сообщает об истечении срока, а не об отмене.
+     */
+    private void expire() {
+        expired = true;
+        fire();
+    }
+
+    /**
+     * Зарегистрировать обработчик, вызываемый при отмене или истечении срока.
+     * Обработчик выполняется в отдельном потоке; если срок уже истёк - сразу, в вызывающем потоке.
+     * @return регистрация; её нужно отменить, когда операция завершится.
+     */
+    public Registration onCancel(Runnable hook) {
+        return register(hook, false);
+    }
+
+    private Registration register(Runnable hook, boolean inline) {
+        synchronized (hooks) {
+            if (!fired) {
+                Registration registration = new Registration(hook, inline);
+                hooks.add(registration);
+                return registration;
+            }
+        }
+        if (isExpired()) {
+            hook.run();
+        }
+        return new Registration(null, inline);
+    }
+
+    private void fire() {
+        List<Registration> toRun;
+        synchronized (hooks) {
+            if (fired)
+                return;
+            fired = true;
+            toRun = new ArrayList<>(hooks);
+            hooks.clear();
+        }
+        stopTracking();
+        for (final Registration registration : toRun) {
+            if (registration.inline) {
+                runHook(registration.hook);
+            } else {
+                hookExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runHook(registration.hook);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void runHook(Runnable hook) {
+        try {
+            hook.run();
+        } catch (RuntimeException ex) {
+            logger.warn("Deadline cancellation hook failed", ex);
+        }
+    }
+
+    /**
+     * Регистрация обработчика отмены.
+     */
+    public final class Registration {
+
+        private final Runnable hook;
+        private final boolean inline;
+
+        private Registration(Runnable hook, boolean inline) {
+            this.hook = hook;
+            this.inline = inline;
+        }
+
+        /**
+         * Снять обработчик: операция завершилась и прерывать её больше не нужно.
+         */
+        public void remove() {
+            if (hook != null) {
+                synchronized (hooks) {
+                    hooks.remove(this);
+                }
+            }
+        }
+    }
+}
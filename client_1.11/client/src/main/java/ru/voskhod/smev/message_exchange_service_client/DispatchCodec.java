@@ -0,0 +1,156 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.InteractionStatusType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.InteractionTypeType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.XMLDSigSignatureType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.MessageMetadata;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.MessageTypeType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestResponse;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendResponseResponse;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.ws.WebServiceException;
+
+/**
+ * Разбор ответов СМЭВ на SendRequest / SendResponse без JAXB.
+ * Ответ, полученный {@link DispatchTransport}, уже разобран в DOM (SAAJ); вместо повторного обхода
+ * через JAXB Unmarshaller с его отражением поля MessageMetadata читаются напрямую.
+ * Структура - по схеме smev-message-exchange-types-1.1.xsd; неизвестные элементы пропускаются.
+ */
+final class DispatchCodec {
+
+    private static final DatatypeFactory datatypeFactory;
+
+    static {
+        try {
+            datatypeFactory = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private DispatchCodec() {
+    }
+
+    static SendRequestResponse readSendRequestResponse(Element element) throws WebServiceClientException {
+        expect(element, DispatchTransport.TYPES_NS, "SendRequestResponse");
+        SendRequestResponse response = new SendRequestResponse();
+        for (Element child = firstChildElement(element); child != null; child = nextSiblingElement(child)) {
+            if (is(child, DispatchTransport.TYPES_NS, "MessageMetadata")) {
+                response.setMessageMetadata(readMessageMetadata(child));
+            } else if (is(child, DispatchTransport.TYPES_NS, "SMEVSignature")) {
+                response.setSMEVSignature(readSignature(child));
+            }
+        }
+        return response;
+    }
+
+    static SendResponseResponse readSendResponseResponse(Element element) throws WebServiceClientException {
+        expect(element, DispatchTransport.TYPES_NS, "SendResponseResponse");
+        SendResponseResponse response = new SendResponseResponse();
+        for (Element child = firstChildElement(element); child != null; child = nextSiblingElement(child)) {
+            if (is(child, DispatchTransport.TYPES_NS, "MessageMetadata")) {
+                response.setMessageMetadata(readMessageMetadata(child));
+            } else if (is(child, DispatchTransport.TYPES_NS, "SMEVSignature")) {
+                response.setSMEVSignature(readSignature(child));
+            }
+        }
+        return response;
+    }
+
+    static MessageMetadata readMessageMetadata(Element element) throws WebServiceClientException {
+        MessageMetadata metadata = new MessageMetadata();
+        if (element.hasAttribute("Id")) {
+            metadata.setId(element.getAttribute("Id"));
+        }
+        try {
+            for (Element child = firstChildElement(element); child != null; child = nextSiblingElement(child)) {
+                if (!DispatchTransport.TYPES_NS.equals(child.getNamespaceURI()))
+                    continue;
+                String name = child.getLocalName();
+                if ("MessageType".equals(name)) {
+                    metadata.setMessageType(MessageTypeType.fromValue(text(child)));
+                } else if ("Sender".equals(name)) {
+                    MessageMetadata.Sender sender = new MessageMetadata.Sender();
+                    sender.setMnemonic(childText(child, "Mnemonic"));
+                    sender.setHumanReadableName(childText(child, "HumanReadableName"));
+                    metadata.setSender(sender);
+                } else if ("SendingTimestamp".equals(name)) {
+                    metadata.setSendingTimestamp(datatypeFactory.newXMLGregorianCalendar(text(child)));
+                } else if ("MessageBroker".equals(name)) {
+                    metadata.setMessageBroker(text(child));
+                } else if ("DestinationName".equals(name)) {
+                    metadata.setDestinationName(text(child));
+                } else if ("Recipient".equals(name)) {
+                    MessageMetadata.Recipient recipient = new MessageMetadata.Recipient();
+                    recipient.setMnemonic(childText(child, "Mnemonic"));
+                    recipient.setHumanReadableName(childText(child, "HumanReadableName"));
+                    metadata.setRecipient(recipient);
+                } else if ("SupplementaryData".equals(name)) {
+                    MessageMetadata.SupplementaryData data = new MessageMetadata.SupplementaryData();
+                    data.setDetectedContentTypeName(childText(child, "DetectedContentTypeName"));
+                    String interactionType = childText(child, "InteractionType");
+                    if (interactionType != null) {
+                        data.setInteractionType(InteractionTypeType.fromValue(interactionType));
+                    }
+                    metadata.setSupplementaryData(data);
+                } else if ("DeliveryTimestamp".equals(name)) {
+                    metadata.setDeliveryTimestamp(datatypeFactory.newXMLGregorianCalendar(text(child)));
+                } else if ("Status".equals(name)) {
+                    metadata.setStatus(InteractionStatusType.fromValue(text(child)));
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            // Значение вне перечисления схемы или неверный формат даты.
+            throw new WebServiceClientException(new WebServiceException("Invalid MessageMetadata in SMEV response", ex));
+        }
+        return metadata;
+    }
+
+    private static XMLDSigSignatureType readSignature(Element element) {
+        XMLDSigSignatureType signature = new XMLDSigSignatureType();
+        signature.setAny(firstChildElement(element));
+        return signature;
+    }
+
+    private static void expect(Element element, String namespace, String localName) throws WebServiceClientException {
+        if (!is(element, namespace, localName))
+            throw new WebServiceClientException(new WebServiceException("Unexpected SMEV response element {"
+                + element.getNamespaceURI() + "}" + element.getLocalName() + ", expected " + localName));
+    }
+
+    private static boolean is(Element element, String namespace, String localName) {
+        return localName.equals(element.getLocalName()) && namespace.equals(element.getNamespaceURI());
+    }
+
+    private static String childText(Element parent, String localName) {
+        for (Element child = firstChildElement(parent); child != null; child = nextSiblingElement(child)) {
+            if (is(child, DispatchTransport.TYPES_NS, localName))
+                return text(child);
+        }
+        return null;
+    }
+
+    private static String text(Element element) {
+        return element.getTextContent().trim();
+    }
+
+    static Element firstChildElement(Node parent) {
+        Node node = parent.getFirstChild();
+        while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
+            node = node.getNextSibling();
+        }
+        return (Element) node;
+    }
+
+    private static Element nextSiblingElement(Node sibling) {
+        Node node = sibling.getNextSibling();
+        while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
+            node = node.getNextSibling();
+        }
+        return (Element) node;
+    }
+}
@@ -0,0 +1,287 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.*;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentList;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.XMLDSigSignatureType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestResponse;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendResponseResponse;
+
+import javax.xml.namespace.QName;
+import javax.xml.soap.AttachmentPart;
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.SOAPBody;
+import javax.xml.soap.SOAPElement;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Dispatch;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.MTOMFeature;
+import javax.xml.ws.soap.SOAPBinding;
+import javax.xml.ws.soap.SOAPFaultException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Передача подготовленных сообщений в СМЭВ через Dispatch&lt;SOAPMessage&gt;, в обход JAXB-маршаллинга
+ * сгенерированного порта.
+ * <p/>
+ * Для подписи ЭП-ОВ SenderProvidedRequestData / SenderProvidedResponseData всё равно маршаллится в DOM.
+ * Через порт тот же объект маршаллится в XML ещё раз при записи в SOAP-конверт; здесь же в тело
+ * конверта кладётся подписанный DOM, так что бизнес-данные сериализуются один раз.
+ * Содержимое вложений, передаваемых напрямую, по-прежнему уходит MTOM-частями (xop:Include).
+ * Ответ разбирается в те же типы, что возвращает порт, без JAXB (см. {@link DispatchCodec}),
+ * SOAP Fault - в те же исключения (см. {@link FaultMapper}).
+ * <p/>
+ * Включается методом MessageExchangeEndpoint.setDispatchTransport. Потокобезопасен.
+ */
+public final class DispatchTransport {
+
+    static final String TYPES_NS = "urn://x-artefacts-smev-gov-ru/services/message-exchange/types/1.1";
+    static final String BASIC_NS = "urn://x-artefacts-smev-gov-ru/services/message-exchange/types/basic/1.1";
+    private static final String XOP_NS = "http://www.w3.org/2004/08/xop/include";
+
+    private static final QName SERVICE_QNAME = new QName("urn://x-artefacts-smev-gov-ru/services/message-exchange/1.1", "SMEVMessageExchangeService");
+    private static final QName PORT_QNAME = new QName("urn://x-artefacts-smev-gov-ru/services/message-exchange/1.1", "SMEVMessageExchangeEndpoint");
+
+    // SOAPAction задаётся в контексте запроса, поэтому на каждую операцию - свой Dispatch.
+    private final Dispatch<SOAPMessage> sendRequestDispatch;
+    private final Dispatch<SOAPMessage> sendResponseDispatch;
+    private final MessageFactory messageFactory;
+
+    private DispatchTransport(Dispatch<SOAPMessage> sendRequestDispatch, Dispatch<SOAPMessage> sendResponseDispatch) {
+        this.sendRequestDispatch = sendRequestDispatch;
+        this.sendResponseDispatch = sendResponseDispatch;
+        this.messageFactory = ((SOAPBinding) sendRequestDispatch.getBinding()).getMessageFactory();
+    }
+
+    /**
+     * @param smevUrl URL, по которому сервис экспонирует свой WSDL, в виде строки.
+     * @throws MalformedURLException URL не валиден.
+     */
+    public static DispatchTransport create(String smevUrl) throws MalformedURLException, WebServiceClientException {
+        return create(smevUrl, MessageExchangeEndpoint.DEFAULT_CONNECT_TIMEOUT, 0);
+    }
+
+    /**
+     * Параметры - как у MessageExchangeEndpoint.createPort.
+     * @throws MalformedURLException URL не валиден.
+     */
+    public static DispatchTransport create(String smevUrl, int connectTimeoutMillis, int requestTimeoutMillis)
+            throws MalformedURLException, WebServiceClientException {
+        try {
+            Service service = Service.create(new URL(smevUrl), SERVICE_QNAME);
+            return new DispatchTransport(
+                createDispatch(service, "urn:SendRequest", connectTimeoutMillis, requestTimeoutMillis),
+                createDispatch(service, "urn:SendResponse", connectTimeoutMillis, requestTimeoutMillis)
+            );
+        } catch (WebServiceException ex) {
+            throw new WebServiceClientException(ex);
+        }
+    }
+
+    /**
+     * Создать транспорт по WSDL, входящему в состав библиотеки (см. MessageExchangeEndpoint.createBundledPort).
+     * @param endpointAddress адрес сервиса СМЭВ (адрес из soap:address, без "?wsdl").
+     */
+    public static DispatchTransport createBundled(String endpointAddress, int connectTimeoutMillis, int requestTimeoutMillis)
+            throws WebServiceClientException {
+        try {
+            Service service = MessageExchangeEndpoint.bundledService();
+            DispatchTransport transport = new DispatchTransport(
+                createDispatch(service, "urn:SendRequest", connectTimeoutMillis, requestTimeoutMillis),
+                createDispatch(service, "urn:SendResponse", connectTimeoutMillis, requestTimeoutMillis)
+            );
+            transport.sendRequestDispatch.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpointAddress);
+            transport.sendResponseDispatch.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpointAddress);
+            return transport;
+        } catch (WebServiceException ex) {
+            throw new WebServiceClientException(ex);
+        }
+    }
+
+    private static Dispatch<SOAPMessage> createDispatch(Service service, String soapAction,
+                                                        int connectTimeoutMillis, int requestTimeoutMillis) {
+        Dispatch<SOAPMessage> dispatch = service.createDispatch(PORT_QNAME, SOAPMessage.class, Service.Mode.MESSAGE, new MTOMFeature());
+        Map<String, Object> requestContext = dispatch.getRequestContext();
+        requestContext.put(BindingProvider.SOAPACTION_USE_PROPERTY, Boolean.TRUE);
+        requestContext.put(BindingProvider.SOAPACTION_URI_PROPERTY, soapAction);
+        requestContext.put("com.sun.xml.ws.connect.timeout", connectTimeoutMillis);
+        if (requestTimeoutMillis > 0) {
+            requestContext.put("com.sun.xml.ws.request.timeout", requestTimeoutMillis);
+        }
+        return dispatch;
+    }
+
+    /**
+     * @return Dispatch-и транспорта - для настройки их контекста запроса.
+     */
+    List<BindingProvider> getBindingProviders() {
+        return Arrays.<BindingProvider>asList(sendRequestDispatch, sendResponseDispatch);
+    }
+
+    SendRequestResponse sendRequest(PreparedMessage message)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            AccessDeniedException,
+            DestinationOverflowException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+        SOAPMessage request = createMessage("SendRequestRequest", message.getSignedData(),
+            message.getRequest().getAttachmentContentList(), message.getRequest().getCallerInformationSystemSignature());
+        try {
+            return DispatchCodec.readSendRequestResponse(payload(invoke(sendRequestDispatch, request)));
+        } catch (SOAPFaultException ex) {
+            Exception fault = FaultMapper.map(ex.getFault());
+            FaultMapper.rethrowIf(fault, SignatureVerificationFaultException.class);
+            FaultMapper.rethrowIf(fault, SenderIsNotRegisteredException.class);
+            FaultMapper.rethrowIf(fault, SMEVFailureException.class);
+            FaultMapper.rethrowIf(fault, RecipientIsNotFoundException.class);
+            FaultMapper.rethrowIf(fault, InvalidContentException.class);
+            FaultMapper.rethrowIf(fault, BusinessDataTypeIsNotSupportedException.class);
+            FaultMapper.rethrowIf(fault, AttachmentContentMiscoordinationException.class);
+            FaultMapper.rethrowIf(fault, AttachmentSizeLimitExceededException.class);
+            FaultMapper.rethrowIf(fault, QuoteLimitExceededException.class);
+            FaultMapper.rethrowIf(fault, AccessDeniedException.class);
+            FaultMapper.rethrowIf(fault, DestinationOverflowException.class);
+            FaultMapper.rethrowIf(fault, MessageIsAlreadySentException.class);
+            FaultMapper.rethrowIf(fault, InvalidMessageIdFormatException.class);
+            FaultMapper.rethrowIf(fault, StaleMessageIdException.class);
+            throw unexpectedFault(fault, ex);
+        }
+    }
+
+    SendResponseResponse sendResponse(PreparedMessage message)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            DestinationOverflowException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+        SOAPMessage request = createMessage("SendResponseRequest", message.getSignedData(),
+            message.getResponse().getAttachmentContentList(), message.getResponse().getCallerInformationSystemSignature());
+        try {
+            return DispatchCodec.readSendResponseResponse(payload(invoke(sendResponseDispatch, request)));
+        } catch (SOAPFaultException ex) {
+            Exception fault = FaultMapper.map(ex.getFault());
+            FaultMapper.rethrowIf(fault, SignatureVerificationFaultException.class);
+            FaultMapper.rethrowIf(fault, SenderIsNotRegisteredException.class);
+            FaultMapper.rethrowIf(fault, SMEVFailureException.class);
+            FaultMapper.rethrowIf(fault, RecipientIsNotFoundException.class);
+            FaultMapper.rethrowIf(fault, InvalidContentException.class);
+            FaultMapper.rethrowIf(fault, IncorrectResponseContentTypeException.class);
+            FaultMapper.rethrowIf(fault, BusinessDataTypeIsNotSupportedException.class);
+            FaultMapper.rethrowIf(fault, AttachmentContentMiscoordinationException.class);
+            FaultMapper.rethrowIf(fault, AttachmentSizeLimitExceededException.class);
+            FaultMapper.rethrowIf(fault, QuoteLimitExceededException.class);
+            FaultMapper.rethrowIf(fault, DestinationOverflowException.class);
+            FaultMapper.rethrowIf(fault, MessageIsAlreadySentException.class);
+            FaultMapper.rethrowIf(fault, InvalidMessageIdFormatException.class);
+            FaultMapper.rethrowIf(fault, StaleMessageIdException.class);
+            throw unexpectedFault(fault, ex);
+        }
+    }
+
+    private static WebServiceClientException unexpectedFault(Exception fault, SOAPFaultException ex) {
+        return fault instanceof WebServiceClientException ? (WebServiceClientException) fault : new WebServiceClientException(ex);
+    }
+
+    /**
+     * Собрать SOAP-сообщение: подписанные данные, ссылки xop:Include на содержимое вложений
+     * (само содержимое - MIME-частями) и ЭП-ОВ.
+     */
+    private SOAPMessage createMessage(String wrapperName, Element signedData,
+                                      AttachmentContentList contentList,
+                                      XMLDSigSignatureType signature) throws WebServiceClientException {
+        try {
+            SOAPMessage message = messageFactory.createMessage();
+            SOAPBody body = message.getSOAPBody();
+            Document document = body.getOwnerDocument();
+            SOAPElement wrapper = body.addChildElement(new QName(TYPES_NS, wrapperName, "ns"));
+            wrapper.appendChild(document.importNode(signedData, true));
+
+            if (contentList != null && !contentList.getAttachmentContent().isEmpty()) {
+                SOAPElement list = wrapper.addChildElement(new QName(BASIC_NS, "AttachmentContentList", "basic"));
+                for (AttachmentContentType attachment : contentList.getAttachmentContent()) {
+                    String contentId = UUID.randomUUID().toString() + "@smev";
+                    AttachmentPart part = message.createAttachmentPart(attachment.getContent());
+                    part.setContentId("<" + contentId + ">");
+                    message.addAttachmentPart(part);
+
+                    SOAPElement item = list.addChildElement(new QName(BASIC_NS, "AttachmentContent", "basic"));
+                    item.addChildElement(new QName(BASIC_NS, "Id", "basic")).addTextNode(attachment.getId());
+                    item.addChildElement(new QName(BASIC_NS, "Content", "basic"))
+                        .addChildElement(new QName(XOP_NS, "Include", "xop"))
+                        .setAttribute("href", "cid:" + contentId);
+                }
+            }
+
+            if (signature != null) {
+                SOAPElement signatureWrapper = wrapper.addChildElement(new QName(TYPES_NS, "CallerInformationSystemSignature", "ns"));
+                signatureWrapper.appendChild(document.importNode((Node) signature.getAny(), true));
+            }
+            message.saveChanges();
+            return message;
+        } catch (SOAPException ex) {
+            throw new WebServiceClientException(ex);
+        }
+    }
+
+    private static SOAPMessage invoke(Dispatch<SOAPMessage> dispatch, SOAPMessage request) throws WebServiceClientException {
+        SOAPMessage response;
+        try {
+            response = dispatch.invoke(request);
+        } catch (SOAPFaultException ex) {
+            throw ex;
+        } catch (WebServiceException ex) {
+            throw new WebServiceClientException(ex);
+        }
+        try {
+            // В режиме MESSAGE SOAP Fault может вернуться как обычный ответ.
+            if (response.getSOAPBody().hasFault()) {
+                throw new SOAPFaultException(response.getSOAPBody().getFault());
+            }
+        } catch (SOAPException ex) {
+            throw new WebServiceClientException(ex);
+        }
+        return response;
+    }
+
+    private static Element payload(SOAPMessage response) throws WebServiceClientException {
+        try {
+            Element payload = DispatchCodec.firstChildElement(response.getSOAPBody());
+            if (payload == null)
+                throw new WebServiceClientException(new WebServiceException("Empty SOAP body in SMEV response"));
+            return payload;
+        } catch (SOAPException ex) {
+            throw new WebServiceClientException(ex);
+        }
+    }
+}
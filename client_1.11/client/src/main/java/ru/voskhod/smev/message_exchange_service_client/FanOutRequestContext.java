@@ -0,0 +1,114 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import javax.xml.ws.BindingProvider;
+import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Контекст запроса порта, составленного из нескольких портов (PortPool, BalancedPort): свойства,
+ * заданные через него, переносятся в контекст запроса каждого порта, в том числе созданного позже.
+ * Благодаря этому такой порт настраивается так же, как обычный: MessageExchangeEndpoint.enableGzip,
+ * enableChunkedStreaming, setInterceptorStorage.
+ * <p/>
+ * Чтение возвращает только свойства, заданные через этот контекст; собственные свойства портов
+ * (адрес, таймауты) в нём не видны.
+ */
+final class FanOutRequestContext extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> values = new ConcurrentHashMap<>();
+    private final List<BindingProvider> targets = new ArrayList<>();
+
+    /**
+     * Перенести в порт заданные ранее свойства; последующие изменения будут переноситься в него сразу.
+     */
+    synchronized void addTarget(Object port) {
+        if (port instanceof BindingProvider) {
+            BindingProvider provider = (BindingProvider) port;
+            provider.getRequestContext().putAll(values);
+            targets.add(provider);
+        }
+    }
+
+    synchronized void removeTarget(Object port) {
+        for (Iterator<BindingProvider> it = targets.iterator(); it.hasNext(); ) {
+            if (it.next() == port) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return один из портов, либо null, если их ещё нет.
+     */
+    synchronized BindingProvider anyTarget() {
+        return targets.isEmpty() ? null : targets.get(0);
+    }
+
+    @Override
+    public synchronized Object put(String key, Object value) {
+        if (value == null)
+            return remove(key);
+        Object previous = values.put(key, value);
+        for (BindingProvider target : targets) {
+            target.getRequestContext().put(key, value);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        Object previous = values.remove(key);
+        for (BindingProvider target : targets) {
+            target.getRequestContext().remove(key);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (String key : new ArrayList<>(values.keySet())) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        return values.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return Collections.unmodifiableMap(values).entrySet();
+    }
+
+    /**
+     * Выполнить метод BindingProvider, вызванный на составном порту.
+     * Контекст ответа у составного порта свой у каждого вызова и через него не доступен.
+     */
+    Object invokeBindingProvider(Method method) {
+        switch (method.getName()) {
+            case "getRequestContext":
+                return this;
+            case "getBinding":
+                BindingProvider target = anyTarget();
+                if (target == null)
+                    throw new IllegalStateException("No port has been created yet");
+                return target.getBinding();
+            default:
+                throw new UnsupportedOperationException(method.getName() + " is not supported by a composite SMEV port");
+        }
+    }
+}
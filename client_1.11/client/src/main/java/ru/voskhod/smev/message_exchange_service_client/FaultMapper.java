@@ -0,0 +1,115 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.*;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.soap.Detail;
+import javax.xml.soap.SOAPFault;
+import javax.xml.ws.WebFault;
+import javax.xml.ws.soap.SOAPFaultException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Преобразование SOAP Fault в исключения, сгенерированные wsimport, для вызовов в обход
+ * сгенерированного порта (см. {@link DispatchTransport}).
+ * Соответствие элемента detail классу исключения берётся из аннотации @WebFault,
+ * тип содержимого detail - из метода getFaultInfo исключения.
+ */
+final class FaultMapper {
+
+    private static final class Mapping {
+        final Class<?> faultInfoType;
+        final Constructor<? extends Exception> constructor;
+
+        Mapping(Class<?> faultInfoType, Constructor<? extends Exception> constructor) {
+            this.faultInfoType = faultInfoType;
+            this.constructor = constructor;
+        }
+    }
+
+    private static final Map<QName, Mapping> mappings = new HashMap<>();
+
+    static {
+        register(SignatureVerificationFaultException.class);
+        register(SenderIsNotRegisteredException.class);
+        register(SMEVFailureException.class);
+        register(RecipientIsNotFoundException.class);
+        register(InvalidContentException.class);
+        register(IncorrectResponseContentTypeException.class);
+        register(BusinessDataTypeIsNotSupportedException.class);
+        register(AttachmentContentMiscoordinationException.class);
+        register(AttachmentSizeLimitExceededException.class);
+        register(QuoteLimitExceededException.class);
+        register(AccessDeniedException.class);
+        register(DestinationOverflowException.class);
+        register(MessageIsAlreadySentException.class);
+        register(InvalidMessageIdFormatException.class);
+        register(StaleMessageIdException.class);
+    }
+
+    private FaultMapper() {
+    }
+
+    private static void register(Class<? extends Exception> exceptionType) {
+        WebFault annotation = exceptionType.getAnnotation(WebFault.class);
+        try {
+            Class<?> faultInfoType = exceptionType.getMethod("getFaultInfo").getReturnType();
+            Constructor<? extends Exception> constructor = exceptionType.getConstructor(String.class, faultInfoType);
+            mappings.put(new QName(annotation.targetNamespace(), annotation.name()), new Mapping(faultInfoType, constructor));
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalStateException("Unexpected generated fault class " + exceptionType, ex);
+        }
+    }
+
+    /**
+     * @return исключение, соответствующее SOAP Fault; если detail не содержит известного элемента -
+     *  WebServiceClientException.
+     */
+    static Exception map(SOAPFault fault) {
+        Detail detail = fault.getDetail();
+        if (detail != null) {
+            for (Node node = detail.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+                Mapping mapping = mappings.get(new QName(node.getNamespaceURI(), node.getLocalName()));
+                if (mapping != null) {
+                    return create(mapping, fault.getFaultString(), (Element) node);
+                }
+            }
+        }
+        return new WebServiceClientException(new SOAPFaultException(fault));
+    }
+
+    private static Exception create(Mapping mapping, String message, Element faultInfo) {
+        try {
+            Object value;
+            JAXBPool pool = JAXBPool.forPackage(mapping.faultInfoType.getPackage().getName());
+            Unmarshaller unmarshaller = pool.acquireUnmarshaller();
+            try {
+                value = unmarshaller.unmarshal(faultInfo, mapping.faultInfoType).getValue();
+            } finally {
+                pool.release(unmarshaller);
+            }
+            return mapping.constructor.newInstance(message, value);
+        } catch (JAXBException | InstantiationException | IllegalAccessException | InvocationTargetException ex) {
+            return new WebServiceClientException(ex);
+        }
+    }
+
+    /**
+     * Выбросить ex, если это исключение указанного типа. Позволяет пробросить результат {@link #map}
+     * с сохранением проверяемых типов исключений.
+     */
+    static <E extends Exception> void rethrowIf(Exception ex, Class<E> type) throws E {
+        if (type.isInstance(ex)) {
+            throw type.cast(ex);
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package ru.voskhod.smev.message_exchange_service_client;
 
-import ru.voskhod.crypto.PipeInputStream;
 import ru.voskhod.crypto.exceptions.SignatureProcessingException;
+import ru.voskhod.smev.message_exchange_service_client.util.DigestEngine;
 
 import java.io.IOException;
 import java.io.InputStream;
 
 public abstract class InAttachment {
 
+    /**
+     * Метка версии содержимого, которое может измениться незаметно для вложения: хэш не запоминается.
+     */
+    protected static final long UNSTAMPED = Long.MIN_VALUE;
+
     private final String mimeType;
     /**
      * Длина файла вложения. Может быть null, но при этом используется больше ресурсов при useFS = AUTO.
@@ -15,6 +20,11 @@ public abstract class InAttachment {
     private final Long length;
     private String id = null;
     private byte[] personalSignature = null;
+    /**
+     * Вычисленный хэш и метка версии содержимого, для которой он вычислен.
+     */
+    private DigestResult digest = null;
+    private long digestStamp;
 
     /**
      * @param length размер файла вложения.
@@ -37,15 +47,73 @@ public abstract class InAttachment {
         return length;
     }
 
+    /**
+     * Хэш содержимого. Если наследник задаёт метку версии содержимого ({@link #contentStamp()}), хэш вычисляется
+     * один раз и используется повторно (ЭП-СП, ЭП-ОВ, передача в СМЭВ), пока метка не изменится
+     * или не будет вызван {@link #invalidateDigest()}; иначе вычисляется при каждом вызове.
+     */
     public DigestResult getDigest() throws IOException, SignatureProcessingException {
+        return getDigest(null);
+    }
+
+    /**
+     * То же с ограничением по сроку отправки.
+     * @param deadline срок, при истечении которого вычисление прерывается; может быть null.
+     */
+    public synchronized DigestResult getDigest(Deadline deadline) throws IOException, SignatureProcessingException {
+        long stamp = contentStamp();
+        if (stamp == UNSTAMPED)
+            return computeDigest(deadline);
+        if (digest == null || stamp != digestStamp) {
+            digest = computeDigest(deadline);
+            digestStamp = stamp;
+        }
+        return digest;
+    }
+
+    /**
+     * @return хэш, если он уже вычислен и содержимое с тех пор не менялось, иначе null. Содержимое не читается.
+     */
+    public synchronized DigestResult getKnownDigest() {
+        long stamp = contentStamp();
+        return digest != null && stamp != UNSTAMPED && stamp == digestStamp ? digest : null;
+    }
+
+    /**
+     * Запомнить хэш, вычисленный при чтении содержимого вне getDigest() (например, при закачке на FTP).
+     * Без метки версии содержимого хэш не запоминается.
+     */
+    public synchronized void setKnownDigest(DigestResult digest) {
+        long stamp = contentStamp();
+        this.digest = stamp != UNSTAMPED ? digest : null;
+        this.digestStamp = stamp;
+    }
+
+    /**
+     * Сбросить запомненный хэш; вызывать, если содержимое изменилось так, что метка версии этого не отражает.
+     */
+    public synchronized void invalidateDigest() {
+        digest = null;
+    }
+
+    /**
+     * Метка версии содержимого: при её изменении запомненный хэш вычисляется заново.
+     * По умолчанию {@link #UNSTAMPED} - хэш не запоминается. Наследник, содержимое которого не меняется,
+     * может вернуть константу; файловое вложение, созданное как неизменяемое, меняет метку при изменении
+     * времени изменения или размера файла.
+     */
+    protected long contentStamp() {
+        return UNSTAMPED;
+    }
+
+    /**
+     * Вычислить хэш содержимого. Наследники, которым доступен более быстрый способ чтения
+     * содержимого, чем getInputStream(), могут переопределить метод.
+     * @param deadline срок отправки, при истечении которого вычисление прерывается; может быть null.
+     */
+    protected DigestResult computeDigest(Deadline deadline) throws IOException, SignatureProcessingException {
         try (InputStream inputStream = getInputStream()) {
-            PipeInputStream digestStream = SignatureOperationsClient.getDigestCollectingInputStream(inputStream);
-            while (true) {
-                int c = digestStream.read();
-                if (c < 0)
-                    break;
-            }
-            return new DigestResult(digestStream);
+            return DigestEngine.digest(inputStream, deadline);
         }
     }
 
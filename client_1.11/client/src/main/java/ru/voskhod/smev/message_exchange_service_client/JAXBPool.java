@@ -0,0 +1,95 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Общий JAXBContext для пакета сгенерированных классов и пул Marshaller / Unmarshaller к нему.
+ * JAXBContext потокобезопасен и дорог в создании, поэтому создаётся ровно один раз на пакет:
+ * в карту кладётся задача создания, её выполняет первый обратившийся поток, остальные ждут результата.
+ * Marshaller и Unmarshaller не потокобезопасны, но дёшевы - их держим в ограниченном пуле,
+ * при исчерпании пула создаются новые, лишние при возврате отбрасываются.
+ * <p/>
+ * Взятый из пула объект нужно вернуть в finally и не менять его свойства.
+ */
+final class JAXBPool {
+
+    static final String TYPES_PACKAGE = "ru.voskhod.smev.message_exchange.autogenerated.types.v1_1";
+    static final String BP_METADATA_PACKAGE = "ru.voskhod.smev.message_exchange.autogenerated.bp_metadata.v1_0";
+
+    private static final int POOL_SIZE = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ConcurrentMap<String, FutureTask<JAXBPool>> pools = new ConcurrentHashMap<>();
+
+    private final JAXBContext context;
+    private final BlockingQueue<Marshaller> marshallers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Unmarshaller> unmarshallers = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private JAXBPool(JAXBContext context) {
+        this.context = context;
+    }
+
+    static JAXBPool forPackage(final String contextPath) throws JAXBException {
+        FutureTask<JAXBPool> task = pools.get(contextPath);
+        if (task == null) {
+            FutureTask<JAXBPool> created = new FutureTask<>(new Callable<JAXBPool>() {
+                @Override
+                public JAXBPool call() throws JAXBException {
+                    return new JAXBPool(JAXBContext.newInstance(contextPath));
+                }
+            });
+            task = pools.putIfAbsent(contextPath, created);
+            if (task == null) {
+                task = created;
+                task.run();
+            }
+        }
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException ex) {
+            // Неудачную попытку убираем, чтобы следующее обращение попробовало снова.
+            pools.remove(contextPath, task);
+            Throwable cause = ex.getCause();
+            if (cause instanceof JAXBException)
+                throw (JAXBException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    JAXBContext getContext() {
+        return context;
+    }
+
+    Marshaller acquireMarshaller() throws JAXBException {
+        Marshaller marshaller = marshallers.poll();
+        return marshaller != null ? marshaller : context.createMarshaller();
+    }
+
+    void release(Marshaller marshaller) {
+        marshallers.offer(marshaller);
+    }
+
+    Unmarshaller acquireUnmarshaller() throws JAXBException {
+        Unmarshaller unmarshaller = unmarshallers.poll();
+        return unmarshaller != null ? unmarshaller : context.createUnmarshaller();
+    }
+
+    void release(Unmarshaller unmarshaller) {
+        unmarshallers.offer(unmarshaller);
+    }
+}
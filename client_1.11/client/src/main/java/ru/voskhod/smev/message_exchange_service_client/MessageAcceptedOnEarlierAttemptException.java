@@ -0,0 +1,38 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.MessageIsAlreadySentException;
+
+/**
+ * MessageIsAlreadySentException, полученное при повторе передачи (см. MessageExchangeEndpoint.setRetryPolicy):
+ * предыдущая попытка, ответ на которую не был получен, всё-таки дошла до СМЭВ, и сообщение с тем же
+ * message ID и той же подписью принято. Для отправителя это успех, но метаданные сообщения и ЭП-СМЭВ
+ * при этом не известны.
+ * <p/>
+ * Код, который обрабатывает MessageIsAlreadySentException, получает и это исключение; отличить принятое
+ * на предыдущей попытке сообщение от повторно использованного message ID можно проверкой instanceof.
+ */
+public final class MessageAcceptedOnEarlierAttemptException extends MessageIsAlreadySentException {
+
+    private static final long serialVersionUID = 2981476523093415723L;
+
+    private final String messageId;
+    private final int attempt;
+
+    MessageAcceptedOnEarlierAttemptException(String messageId, int attempt, MessageIsAlreadySentException fault) {
+        super("Message " + messageId + " was accepted by SMEV on an earlier attempt (detected on attempt " + attempt + ")",
+            fault.getFaultInfo(), fault);
+        this.messageId = messageId;
+        this.attempt = attempt;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return номер попытки, на которой СМЭВ ответил MessageIsAlreadySentException; больше 1.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+}
@@ -1,5 +1,12 @@
 package ru.voskhod.smev.message_exchange_service_client;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.xml.ws.developer.JAXWSProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
@@ -14,15 +21,18 @@ import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetRequestRespo
 import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetResponseResponse.ResponseMessage;
 import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SenderProvidedResponseData.RequestRejected;
 import ru.voskhod.smev.message_exchange_service_client.datatypes.MessageMetaDataAndSMEVSignature;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.OutgoingRequest;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.OutgoingResponse;
 import ru.voskhod.smev.message_exchange_service_client.datatypes.QueueStatistics;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.SendResult;
 import ru.voskhod.smev.message_exchange_service_client.impl.AttachmentBuilder;
 import ru.voskhod.smev.message_exchange_service_client.impl.InAttachments;
 import ru.voskhod.smev.message_exchange_service_client.impl.LargeOutAttachment;
 import ru.voskhod.smev.message_exchange_service_client.impl.SmallOutAttachment;
+import ru.voskhod.smev.message_exchange_service_client.intercept.InterceptorStorage;
 import ru.voskhod.crypto.exceptions.SignatureProcessingException;
 import ru.voskhod.crypto.exceptions.SignatureValidationException;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.datatype.DatatypeConfigurationException;
@@ -30,9 +40,12 @@ import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.namespace.QName;
 import javax.xml.transform.dom.DOMResult;
+import javax.xml.ws.AsyncHandler;
 import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Response;
 import javax.xml.ws.WebServiceException;
-import javax.xml.ws.soap.SOAPBinding;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.soap.MTOMFeature;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -42,6 +55,11 @@ import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Точка доступа к сервису обмена сообщениями СМЭВ.
@@ -57,35 +75,58 @@ public class MessageExchangeEndpoint {
     public static final String SIGNATURE_ID_PROVIDER = "SIGNED_BY_PROVIDER";
     public static final String SIGNATURE_ID_CALLER = "SIGNED_BY_CALLER";
 
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5 * 1000;
+
+    /**
+     * Порог MTOM по умолчанию: любое непустое вложение передаётся отдельной MTOM-частью.
+     */
+    public static final int DEFAULT_MTOM_THRESHOLD = 0;
+
+    /**
+     * WSDL сервиса СМЭВ, входящий в состав библиотеки (вместе со схемами, на которые он ссылается).
+     */
+    public static final String BUNDLED_WSDL_RESOURCE = "/xml-artifacts/transport-service/1.1/smev-message-exchange-service-1.1.wsdl";
+
+    /**
+     * Модели сервиса, разобранные из BUNDLED_WSDL_RESOURCE; создаются при первом обращении, одна на процесс и профиль тублайна.
+     */
+    private static final Map<TubelineProfile, SMEVMessageExchangeService> bundledServices =
+        new EnumMap<>(TubelineProfile.class);
+
     private static final Logger logger = LoggerFactory.getLogger(MessageExchangeEndpoint.class);
 
-    private static final ThreadLocal<DatatypeFactory> datatypeFactoryHolder = new ThreadLocal<DatatypeFactory>() {
-        @Override
-        protected DatatypeFactory initialValue() {
-            try {
-                return DatatypeFactory.newInstance();
-            } catch (DatatypeConfigurationException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    };
+    /**
+     * Фабрика используется только для newXMLGregorianCalendar, который состояния фабрики не меняет,
+     * поэтому она одна на все потоки.
+     */
+    private static final DatatypeFactory datatypeFactory;
 
-    private static final ThreadLocal<JAXBContext> jaxbContext = new ThreadLocal<JAXBContext>() {
-        @Override
-        protected JAXBContext initialValue() {
-            try {
-                return JAXBContext.newInstance("ru.voskhod.smev.message_exchange.autogenerated.types.v1_1");
-            } catch (JAXBException e) {
-                throw new RuntimeException(e);
-            }
+    static {
+        try {
+            datatypeFactory = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new RuntimeException(e);
         }
-    };
+    }
 
     private final SMEVMessageExchangePortType port;
     private final String ftpAddress;
     private final SignatureOperationsClient ovSigner;
     private final long directLimit;
 
+    private volatile SendPipeline sendPipeline;
+    private volatile ExecutorService attachmentExecutor;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile SendRateLimiter rateLimiter;
+    private volatile SendLane interactiveLane;
+    private volatile SchemaRegistry schemaRegistry;
+    private volatile SendLane bulkLane;
+    private volatile DispatchTransport dispatchTransport;
+    private volatile SMEVMessageExchangePortType gzipPort;
+    private volatile BalancedPort balancedPort;
+    private volatile long attachmentSpoolThreshold = AttachmentBuilder.NO_SPOOL;
+    private volatile InterceptorStorage interceptorStorage;
+
     public MessageExchangeEndpoint(SMEVMessageExchangePortType port,
                                    String ftpAddress,
                                    SignatureOperationsClient ovSigner,
@@ -106,6 +147,16 @@ public class MessageExchangeEndpoint {
         return MessageExchangeHelper.generateUUID();
     }
 
+    /**
+     * Прогреть клиент до первого сообщения, см. {@link ClientWarmUp}.
+     * @param cryptoProviderName имя криптопровайдера; null - DigitalSignatureFactory уже инициализирована.
+     * @param dryRunSignature выполнить пробное подписание и проверку ЭП ключом ЭП-ОВ.
+     * @return время прогрева по компонентам.
+     */
+    public ClientWarmUp.Report warmUp(String cryptoProviderName, boolean dryRunSignature) {
+        return ClientWarmUp.run(cryptoProviderName, dryRunSignature ? ovSigner : null);
+    }
+
     /**
      * Создать СМЭВ-сервис обмена сообщениями.
      * @param smevUrl URL, по которому сервис экспонирует свой WSDL, в виде строки.
@@ -136,28 +187,206 @@ public class MessageExchangeEndpoint {
         return new MessageExchangeEndpoint(createPort(smevUrl), ftpAddress, ovSigner, directLimit);
     }
 
+    /**
+     * Создать СМЭВ-сервис обмена сообщениями, распределяющий вызовы между несколькими узлами СМЭВ.
+     * Вызовы направляются на узел с наименьшим временем ответа, при ошибке соединения - на следующий узел
+     * (см. {@link BalancedPort}); метрики узлов - {@link #getNodeStats()}.
+     * @param smevAddresses адреса узлов СМЭВ (адрес сервиса, без "?wsdl"); порты создаются по WSDL из состава библиотеки.
+     * Остальные параметры - как у {@link #create(String, String, SignatureOperationsClient, long)}.
+     */
+    public static MessageExchangeEndpoint create(List<String> smevAddresses,
+                                                 String ftpAddress,
+                                                 SignatureOperationsClient ovSigner,
+                                                 long directLimit) throws WebServiceClientException {
+        return create(smevAddresses, ftpAddress, ovSigner, directLimit, DEFAULT_CONNECT_TIMEOUT, 0);
+    }
+
+    /**
+     * Создать СМЭВ-сервис обмена сообщениями, распределяющий вызовы между несколькими узлами СМЭВ,
+     * с заданными таймаутами портов узлов.
+     * @param connectTimeoutMillis таймаут установления соединения с узлом.
+     * @param requestTimeoutMillis таймаут ожидания ответа узла на вызов; 0 - без ограничения.
+     * Остальные параметры - как у {@link #create(List, String, SignatureOperationsClient, long)}.
+     */
+    public static MessageExchangeEndpoint create(List<String> smevAddresses,
+                                                 String ftpAddress,
+                                                 SignatureOperationsClient ovSigner,
+                                                 long directLimit,
+                                                 int connectTimeoutMillis,
+                                                 int requestTimeoutMillis) throws WebServiceClientException {
+        BalancedPort balancedPort = new BalancedPort(smevAddresses, connectTimeoutMillis, requestTimeoutMillis,
+            BalancedPort.DEFAULT_PROBE_INTERVAL);
+        MessageExchangeEndpoint endpoint = new MessageExchangeEndpoint(balancedPort.asPort(), ftpAddress, ovSigner, directLimit);
+        endpoint.balancedPort = balancedPort;
+        return endpoint;
+    }
+
     /**
      * @param smevUrl URL, по которому сервис экспонирует свой WSDL, в виде строки.
      * @throws MalformedURLException URL не валиден.
      */
     public static SMEVMessageExchangePortType createPort(String smevUrl) throws MalformedURLException, WebServiceClientException {
+        return createPort(smevUrl, DEFAULT_CONNECT_TIMEOUT, 0);
+    }
+
+    /**
+     * @param smevUrl URL, по которому сервис экспонирует свой WSDL, в виде строки.
+     * @param connectTimeoutMillis таймаут установления соединения.
+     * @param requestTimeoutMillis таймаут ожидания ответа СМЭВ на вызов; 0 - без ограничения.
+     *  Ограничивает также вызовы, срок которых ({@link Deadline}) истёк или которые были отменены
+     *  уже после отправки запроса.
+     * @throws MalformedURLException URL не валиден.
+     */
+    public static SMEVMessageExchangePortType createPort(String smevUrl, int connectTimeoutMillis, int requestTimeoutMillis)
+            throws MalformedURLException, WebServiceClientException {
+        return createPort(smevUrl, connectTimeoutMillis, requestTimeoutMillis, DEFAULT_MTOM_THRESHOLD);
+    }
+
+    /**
+     * @param mtomThreshold с какого размера (в байтах) содержимое вложения передаётся отдельной MTOM-частью,
+     *  а не встраивается в XML в base64.
+     * Остальные параметры - как у {@link #createPort(String, int, int)}.
+     * @throws MalformedURLException URL не валиден.
+     */
+    public static SMEVMessageExchangePortType createPort(String smevUrl, int connectTimeoutMillis, int requestTimeoutMillis,
+                                                         int mtomThreshold)
+            throws MalformedURLException, WebServiceClientException {
+        return createPort(smevUrl, connectTimeoutMillis, requestTimeoutMillis, mtomThreshold, TubelineProfile.LEAN);
+    }
+
+    /**
+     * @param tubelineProfile набор tube-ов Metro для вызовов порта; по умолчанию - {@link TubelineProfile#LEAN}.
+     * Остальные параметры - как у {@link #createPort(String, int, int, int)}.
+     * @throws MalformedURLException URL не валиден.
+     */
+    public static SMEVMessageExchangePortType createPort(String smevUrl, int connectTimeoutMillis, int requestTimeoutMillis,
+                                                         int mtomThreshold, TubelineProfile tubelineProfile)
+            throws MalformedURLException, WebServiceClientException {
         try {
             logger.debug("Obtaining WS connection");
-            SMEVMessageExchangeService service = new SMEVMessageExchangeService(new URL(smevUrl), SERVICE_QNAME);
+            SMEVMessageExchangeService service = tubelineProfile.newService(new URL(smevUrl), SERVICE_QNAME);
+            return configurePort(service.getSMEVMessageExchangeEndpoint(new MTOMFeature(true, mtomThreshold)),
+                connectTimeoutMillis, requestTimeoutMillis);
+        } catch (WebServiceException ex) {
+            throw new WebServiceClientException(ex);
+        }
+    }
 
-            SMEVMessageExchangePortType port = service.getSMEVMessageExchangeEndpoint();
-            ((BindingProvider) port).getRequestContext().put("com.sun.xml.ws.connect.timeout", 5 * 1000);
+    /**
+     * Создать порт по WSDL, входящему в состав библиотеки, без обращения к СМЭВ за WSDL.
+     * WSDL и схемы разбираются один раз на процесс, последующие порты создаются из готовой модели;
+     * недоступность СМЭВ в момент создания порта не мешает запуску.
+     * @param endpointAddress адрес сервиса СМЭВ (адрес из soap:address, без "?wsdl").
+     */
+    public static SMEVMessageExchangePortType createBundledPort(String endpointAddress) throws WebServiceClientException {
+        return createBundledPort(endpointAddress, DEFAULT_CONNECT_TIMEOUT, 0);
+    }
+
+    /**
+     * Создать порт по WSDL, входящему в состав библиотеки. См. {@link #createBundledPort(String)}.
+     * Таймауты - как у {@link #createPort(String, int, int)}.
+     */
+    public static SMEVMessageExchangePortType createBundledPort(String endpointAddress, int connectTimeoutMillis, int requestTimeoutMillis)
+            throws WebServiceClientException {
+        return createBundledPort(endpointAddress, connectTimeoutMillis, requestTimeoutMillis, DEFAULT_MTOM_THRESHOLD);
+    }
+
+    /**
+     * Создать порт по WSDL, входящему в состав библиотеки. См. {@link #createBundledPort(String)}.
+     * Параметры - как у {@link #createPort(String, int, int, int)}.
+     */
+    public static SMEVMessageExchangePortType createBundledPort(String endpointAddress, int connectTimeoutMillis, int requestTimeoutMillis,
+                                                                int mtomThreshold)
+            throws WebServiceClientException {
+        return createBundledPort(endpointAddress, connectTimeoutMillis, requestTimeoutMillis, mtomThreshold, TubelineProfile.LEAN);
+    }
 
-            SOAPBinding binding = (SOAPBinding)((BindingProvider) port).getBinding();
-            binding.setMTOMEnabled(true);
-            return port;
+    /**
+     * Создать порт по WSDL, входящему в состав библиотеки. См. {@link #createBundledPort(String)}.
+     * Параметры - как у {@link #createPort(String, int, int, int, TubelineProfile)}.
+     */
+    public static SMEVMessageExchangePortType createBundledPort(String endpointAddress, int connectTimeoutMillis, int requestTimeoutMillis,
+                                                                int mtomThreshold, TubelineProfile tubelineProfile)
+            throws WebServiceClientException {
+        try {
+            SMEVMessageExchangePortType port = bundledService(tubelineProfile).getSMEVMessageExchangeEndpoint(new MTOMFeature(true, mtomThreshold));
+            ((BindingProvider) port).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpointAddress);
+            return configurePort(port, connectTimeoutMillis, requestTimeoutMillis);
         } catch (WebServiceException ex) {
             throw new WebServiceClientException(ex);
         }
     }
 
+    /**
+     * @return модель сервиса по WSDL из состава библиотеки, общая для всех портов.
+     */
+    static SMEVMessageExchangeService bundledService() {
+        return bundledService(TubelineProfile.LEAN);
+    }
+
+    private static SMEVMessageExchangeService bundledService(TubelineProfile tubelineProfile) {
+        synchronized (bundledServices) {
+            SMEVMessageExchangeService service = bundledServices.get(tubelineProfile);
+            if (service == null) {
+                URL wsdl = MessageExchangeEndpoint.class.getResource(BUNDLED_WSDL_RESOURCE);
+                if (wsdl == null)
+                    throw new WebServiceException("Bundled WSDL not found: " + BUNDLED_WSDL_RESOURCE);
+                logger.debug("Parsing bundled WSDL {} for {} tubeline", wsdl, tubelineProfile);
+                service = tubelineProfile.newService(wsdl, SERVICE_QNAME);
+                bundledServices.put(tubelineProfile, service);
+            }
+            return service;
+        }
+    }
+
+    /**
+     * Включить gzip для HTTP-обмена порта или DispatchTransport-а: запрос получает заголовок
+     * Accept-Encoding: gzip (СМЭВ может сжать ответ, Metro распакует его), а при compressRequests -
+     * и Content-Encoding: gzip (Metro сжимает тело запроса целиком, вместе с MTOM-частями).
+     * Сервер СМЭВ должен поддерживать сжатые запросы; по умолчанию сжатие выключено.
+     * Порт со сжатием подключается к точке доступа методом {@link #setGzipPort}.
+     * Заголовки, уже заданные в контексте запроса, сохраняются; сам заданный map не изменяется (он может
+     * быть неизменяемым или общим для нескольких портов) - в контекст кладётся дополненная копия.
+     */
+    public static void enableGzip(BindingProvider port, boolean compressRequests) {
+        Map<String, Object> requestContext = port.getRequestContext();
+        @SuppressWarnings("unchecked")
+        Map<String, List<String>> existing = (Map<String, List<String>>) requestContext.get(MessageContext.HTTP_REQUEST_HEADERS);
+        Map<String, List<String>> headers = existing != null
+            ? new HashMap<String, List<String>>(existing) : new HashMap<String, List<String>>();
+        headers.put("Accept-Encoding", Collections.singletonList("gzip"));
+        if (compressRequests) {
+            headers.put("Content-Encoding", Collections.singletonList("gzip"));
+        }
+        requestContext.put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+    }
+
+    private static SMEVMessageExchangePortType configurePort(SMEVMessageExchangePortType port,
+                                                             int connectTimeoutMillis, int requestTimeoutMillis) {
+        Map<String, Object> requestContext = ((BindingProvider) port).getRequestContext();
+        requestContext.put("com.sun.xml.ws.connect.timeout", connectTimeoutMillis);
+        if (requestTimeoutMillis > 0) {
+            requestContext.put("com.sun.xml.ws.request.timeout", requestTimeoutMillis);
+        }
+        return port;
+    }
+
+    /**
+     * Передавать тело HTTP-запроса порта частями (chunked transfer encoding) по мере записи.
+     * Без этого HttpURLConnection накапливает весь запрос, включая MTOM-части вложений, в памяти,
+     * чтобы вычислить Content-Length; с ним память на отправку не зависит от размера вложений.
+     * Сервер (или прокси перед ним) должен принимать chunked-запросы.
+     * @param chunkSize размер части, байт; например, 64 Кб.
+     */
+    public static void enableChunkedStreaming(BindingProvider port, int chunkSize) {
+        port.getRequestContext().put(JAXWSProperties.HTTP_CLIENT_STREAMING_CHUNK_SIZE, chunkSize);
+    }
+
+    /**
+     * @return новый Marshaller для типов сообщений СМЭВ. Создаётся из общего для всех потоков JAXBContext.
+     */
     public static Marshaller getJAXBMarshaller() throws JAXBException {
-        return jaxbContext.get().createMarshaller();
+        return JAXBPool.forPackage(JAXBPool.TYPES_PACKAGE).getContext().createMarshaller();
     }
 
     /**
@@ -208,7 +437,33 @@ public class MessageExchangeEndpoint {
             InvalidMessageIdFormatException,
             StaleMessageIdException,
             WebServiceClientException {
-        return sendRequestInternal(messageId, content, signPersonal, businessProcessMetadata, attachmentList, false);
+        return sendRequestInternal(messageId, content, signPersonal, businessProcessMetadata, attachmentList, false, null);
+    }
+
+    /**
+     * Послать запрос со сроком отправки ({@link OutgoingRequest#withDeadline}): при его истечении или отмене
+     * отправка прекращается на ближайшем шаге (хэширование и закачка вложений, подписание, повтор передачи).
+     * Исключения - как у {@link #sendRequest(String, Element, PersonalSigner, List, List)}.
+     */
+    public MessageMetaDataAndSMEVSignature sendRequest(OutgoingRequest request)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            AccessDeniedException,
+            DestinationOverflowException,
+            ClientSideProcessingException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+        return sendRequestInternal(request.getMessageId(), request.getContent(), request.getSignPersonal(),
+            request.getBusinessProcessMetadata(), request.getAttachmentList(), request.isTestMessage(), request.getDeadline());
     }
 
     /**
@@ -235,7 +490,7 @@ public class MessageExchangeEndpoint {
             InvalidMessageIdFormatException,
             StaleMessageIdException,
             WebServiceClientException {
-        return sendRequestInternal(messageId, content, signPersonal, businessProcessMetadata, attachmentList, true);
+        return sendRequestInternal(messageId, content, signPersonal, businessProcessMetadata, attachmentList, true, null);
     }
 
     private MessageMetaDataAndSMEVSignature sendRequestInternal(String messageId,
@@ -243,7 +498,8 @@ public class MessageExchangeEndpoint {
                                                                 PersonalSigner signPersonal,
                                                                 List<Element> businessProcessMetadata,
                                                                 List<InAttachment> attachmentList,
-                                                                boolean testMessageFlag)
+                                                                boolean testMessageFlag,
+                                                                Deadline deadline)
             throws SignatureVerificationFaultException,
             SenderIsNotRegisteredException,
             SMEVFailureException,
@@ -261,15 +517,189 @@ public class MessageExchangeEndpoint {
             StaleMessageIdException,
             WebServiceClientException {
 
+        SendLane lane = selectLane(null, attachmentList);
+        if (lane == null) {
+            try (PreparedMessage message = buildRequest(messageId, content, signPersonal, businessProcessMetadata, attachmentList, testMessageFlag, deadline)) {
+                return transmitRequest(message, port, deadline);
+            }
+        }
+        lane.acquire();
+        try (PreparedMessage message = buildRequest(messageId, content, signPersonal, businessProcessMetadata, attachmentList, testMessageFlag, deadline)) {
+            return transmitRequest(message, portOf(lane), deadline);
+        } finally {
+            lane.release();
+        }
+    }
+
+    /**
+     * Подготовить запрос к передаче: обработать вложения, сформировать ЭП-СП и ЭП-ОВ.
+     * Сетевого обмена с СМЭВ не происходит (кроме закачки больших вложений на FTP).
+     * Подготовленный запрос передаётся методом {@link #send(PreparedMessage)}, в том числе повторно,
+     * и может быть сохранён на диск методом {@link PreparedMessage#writeTo}. После последней передачи
+     * его нужно закрыть ({@link PreparedMessage#close()}), чтобы освободить спулы вложений.
+     * Параметры - как у {@link #sendRequest(String, Element, PersonalSigner, List, List)}.
+     */
+    public PreparedMessage prepareRequest(String messageId,
+                                          Element content,
+                                          PersonalSigner signPersonal,
+                                          List<Element> businessProcessMetadata,
+                                          List<InAttachment> attachmentList) throws ClientSideProcessingException {
+        return buildRequest(messageId, content, signPersonal, businessProcessMetadata, attachmentList, false, null);
+    }
+
+    /**
+     * Подготовить запрос к передаче с учётом его срока отправки ({@link OutgoingRequest#withDeadline}).
+     * См. {@link #prepareRequest(String, Element, PersonalSigner, List, List)}.
+     */
+    public PreparedMessage prepareRequest(OutgoingRequest request) throws ClientSideProcessingException {
+        return buildRequest(request.getMessageId(), request.getContent(), request.getSignPersonal(),
+            request.getBusinessProcessMetadata(), request.getAttachmentList(), request.isTestMessage(), request.getDeadline());
+    }
+
+    /**
+     * Подготовить тестовый запрос к передаче. См. {@link #prepareRequest}.
+     */
+    public PreparedMessage prepareTestRequest(String messageId,
+                                              Element content,
+                                              PersonalSigner signPersonal,
+                                              List<Element> businessProcessMetadata,
+                                              List<InAttachment> attachmentList) throws ClientSideProcessingException {
+        return buildRequest(messageId, content, signPersonal, businessProcessMetadata, attachmentList, true, null);
+    }
+
+    /**
+     * Асинхронно послать запрос.
+     * Подготовка и подпись запроса выполняются на пуле подготовки конвейера {@link #getSendPipeline()},
+     * передача в СМЭВ - на пуле передачи. Отмена возвращённого future прерывает отправку.
+     * Параметры - как у {@link #sendRequest(String, Element, PersonalSigner, List, List)}.
+     * Срок отправки задаётся через {@link #sendRequestAsync(OutgoingRequest, SendLane.Priority)}.
+     * @return future, которое завершается метаданными сообщения, либо одним из исключений,
+     *  объявленных в sendRequest (в качестве причины ExecutionException).
+     */
+    public ListenableFuture<MessageMetaDataAndSMEVSignature> sendRequestAsync(String messageId,
+                                                                             Element content,
+                                                                             PersonalSigner signPersonal,
+                                                                             List<Element> businessProcessMetadata,
+                                                                             List<InAttachment> attachmentList) {
+        return sendRequestAsync(messageId, content, signPersonal, businessProcessMetadata, attachmentList, false, null, null);
+    }
+
+    /**
+     * Асинхронно послать запрос по полосе с указанным приоритетом (см. {@link #setSendLanes}).
+     * Если полосы не заданы, приоритет не учитывается.
+     * @param priority приоритет; если null, полоса выбирается по размеру вложений.
+     */
+    public ListenableFuture<MessageMetaDataAndSMEVSignature> sendRequestAsync(String messageId,
+                                                                             Element content,
+                                                                             PersonalSigner signPersonal,
+                                                                             List<Element> businessProcessMetadata,
+                                                                             List<InAttachment> attachmentList,
+                                                                             SendLane.Priority priority) {
+        return sendRequestAsync(messageId, content, signPersonal, businessProcessMetadata, attachmentList, false, null, priority);
+    }
+
+    /**
+     * Асинхронно послать запрос с его сроком отправки ({@link OutgoingRequest#withDeadline}).
+     * Срок распространяется на обе стадии; отмена future отменяет только эту отправку, но не сам срок.
+     * @param priority приоритет; если null, полоса выбирается по размеру вложений.
+     */
+    public ListenableFuture<MessageMetaDataAndSMEVSignature> sendRequestAsync(OutgoingRequest request, SendLane.Priority priority) {
+        return sendRequestAsync(request.getMessageId(), request.getContent(), request.getSignPersonal(),
+            request.getBusinessProcessMetadata(), request.getAttachmentList(), request.isTestMessage(), request.getDeadline(), priority);
+    }
+
+    private ListenableFuture<MessageMetaDataAndSMEVSignature> sendRequestAsync(final String messageId,
+                                                                              final Element content,
+                                                                              final PersonalSigner signPersonal,
+                                                                              final List<Element> businessProcessMetadata,
+                                                                              final List<InAttachment> attachmentList,
+                                                                              final boolean testMessageFlag,
+                                                                              Deadline callerDeadline,
+                                                                              SendLane.Priority priority) {
+        final SendLane lane = selectLane(priority, attachmentList);
+        final SendPipeline pipeline = lane != null ? lane.getPipeline() : getSendPipeline();
+        final SMEVMessageExchangePortType lanePort = portOf(lane);
+        final SendLane.Permit permit = lane != null ? lane.newPermit() : null;
+        final Deadline deadline = asyncDeadline(callerDeadline);
+        ListenableFuture<PreparedMessage> prepared = pipeline.prepare(new Callable<PreparedMessage>() {
+            @Override
+            public PreparedMessage call() throws Exception {
+                acquireLane(permit);
+                return buildRequest(messageId, content, signPersonal, businessProcessMetadata, attachmentList, testMessageFlag, deadline);
+            }
+        });
+        ListenableFuture<MessageMetaDataAndSMEVSignature> result = Futures.transform(prepared, new AsyncFunction<PreparedMessage, MessageMetaDataAndSMEVSignature>() {
+            @Override
+            public ListenableFuture<MessageMetaDataAndSMEVSignature> apply(final PreparedMessage message) {
+                return pipeline.transmit(new Callable<MessageMetaDataAndSMEVSignature>() {
+                    @Override
+                    public MessageMetaDataAndSMEVSignature call() throws Exception {
+                        return transmitRequest(message, lanePort, deadline);
+                    }
+                });
+            }
+        });
+        releaseLaneOnCompletion(permit, result);
+        closeOnCompletion(prepared, result);
+        trackCancellation(deadline, result);
+        return result;
+    }
+
+    /**
+     * Послать пакет запросов.
+     * Запросы подписываются параллельно на пуле подготовки конвейера {@link #getSendPipeline()}
+     * и передаются в СМЭВ на пуле передачи; ЭП-ОВ и точка доступа общие для всего пакета.
+     * Ошибка отправки одного запроса не прерывает отправку остальных.
+     * @return результаты в порядке следования запросов: метаданные сообщения либо исключение,
+     *  которое было бы выброшено методом sendRequest.
+     * @throws InterruptedException поток был прерван в ожидании результатов.
+     */
+    public List<SendResult> sendRequests(Collection<OutgoingRequest> requests) throws InterruptedException {
+        List<String> messageIds = new ArrayList<>(requests.size());
+        List<ListenableFuture<MessageMetaDataAndSMEVSignature>> futures = new ArrayList<>(requests.size());
+        for (OutgoingRequest request : requests) {
+            messageIds.add(request.getMessageId());
+            futures.add(sendRequestAsync(
+                request.getMessageId(), request.getContent(), request.getSignPersonal(),
+                request.getBusinessProcessMetadata(), request.getAttachmentList(), request.isTestMessage(), request.getDeadline(), null
+            ));
+        }
+        return collectResults(messageIds, futures);
+    }
+
+    private PreparedMessage buildRequest(String messageId,
+                                         Element content,
+                                         PersonalSigner signPersonal,
+                                         List<Element> businessProcessMetadata,
+                                         List<InAttachment> attachmentList,
+                                         boolean testMessageFlag,
+                                         Deadline deadline) throws ClientSideProcessingException {
+
+        checkDeadline(deadline);
+
+        // Проверка по схеме и ограничение частоты - до подписания и закачки вложений.
+        SchemaRegistry schemas = schemaRegistry;
+        if (schemas != null) {
+            schemas.validate(content);
+        }
+        SendRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire(content);
+        }
+
         long ts1 = System.currentTimeMillis();
 
+        // Вложения не зависят от ЭП-СП, поэтому, если задан attachmentExecutor,
+        // обрабатываем их параллельно с подписанием бизнес-данных.
+        Future<InAttachments> attachmentsFuture = internalizeAttachmentsAsync(attachmentList, deadline);
+
         SenderProvidedRequestData requestButAttachments = new SenderProvidedRequestData();
         requestButAttachments.setMessageID(messageId);
         requestButAttachments.setId(SIGNATURE_ID_CONSUMER);
 
         // Положим ЭП-СП, если есть.
         if (signPersonal != null) {
-            XMLDSigSignatureType signature = createPersonalSignature(signPersonal, content);
+            XMLDSigSignatureType signature = createPersonalSignature(signPersonal, content, attachmentsFuture, deadline);
             requestButAttachments.setPersonalSignature(signature);
         }
 
@@ -300,32 +730,98 @@ public class MessageExchangeEndpoint {
         // 2. Если у вложений нет ID, сгенерировать их.
         // 3. Если вложения не подписаны ЭП-СП, подписать их ЭП-ОВ.
         long ts2 = System.currentTimeMillis();
-        InAttachments attachmentsInterim = internalizeAttachments(attachmentList);
-        requestButAttachments.setAttachmentHeaderList(attachmentsInterim.headerList);
-        requestButAttachments.setRefAttachmentHeaderList(attachmentsInterim.fsAttachmentsList);
-        paramWrapper.setAttachmentContentList(attachmentsInterim.contentList);
+        InAttachments attachmentsInterim = joinAttachments(attachmentsFuture, attachmentList, deadline);
+        boolean ok = false;
+        try {
+            requestButAttachments.setAttachmentHeaderList(attachmentsInterim.headerList);
+            requestButAttachments.setRefAttachmentHeaderList(attachmentsInterim.fsAttachmentsList);
+            paramWrapper.setAttachmentContentList(attachmentsInterim.contentList);
+
+            long ts3 = System.currentTimeMillis();
+            // Подписать ЭП-ОВ. Подписываем всё, включая заголовки вложений, но не содержимое вложений.
+            // Так делается потому, что при любой попытке маршаллинга XML-фрагмента, содержащего MTOM-вложение,
+            // MTOM отключается.
+            checkDeadline(deadline);
+            Element signedData = marshalForDispatch(requestButAttachments);
+            XMLDSigSignatureType signatureWrapper = signedData != null ? signDOM(signedData) : sign(requestButAttachments);
+            paramWrapper.setCallerInformationSystemSignature(signatureWrapper);
+            long ts4 = System.currentTimeMillis();
+
+            logger.debug("Time before signing: {} ms. Attachment processing took {} ms. Signing took {} ms.",
+                ts2 - ts1, ts3 - ts2, ts4 - ts3);
+
+            PreparedMessage message = new PreparedMessage(paramWrapper, signedData, attachmentsInterim);
+            ok = true;
+            return message;
+        } finally {
+            if (!ok) {
+                attachmentsInterim.release();
+            }
+        }
+    }
 
-        long ts3 = System.currentTimeMillis();
-        // Подписать ЭП-ОВ. Подписываем всё, включая заголовки вложений, но не содержимое вложений.
-        // Так делается потому, что при любой попытке маршаллинга XML-фрагмента, содержащего MTOM-вложение,
-        // MTOM отключается.
-        XMLDSigSignatureType signatureWrapper = sign(requestButAttachments);
-        paramWrapper.setCallerInformationSystemSignature(signatureWrapper);
-        long ts4 = System.currentTimeMillis();
+    private MessageMetaDataAndSMEVSignature transmitRequest(PreparedMessage message, SMEVMessageExchangePortType port,
+                                                            Deadline deadline)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            AccessDeniedException,
+            DestinationOverflowException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+
+        long ts1 = System.currentTimeMillis();
 
-        // Посылаем сообщение.
-        sendingRequest(paramWrapper);
+        // Посылаем сообщение. При повторе уходит тот же подписанный объект с тем же message ID.
+        RetryPolicy policy = retryPolicy;
+        SendRateLimiter limiter = rateLimiter;
+        DispatchTransport transport = message.getSignedData() != null ? dispatchTransport : null;
+        SendRequestRequest paramWrapper = message.getRequest();
+        port = compressedPortFor(port, paramWrapper.getAttachmentContentList());
+        SenderProvidedRequestData requestData = paramWrapper.getSenderProvidedRequestData();
+        Element content = (Element) requestData.getMessagePrimaryContent().getAny();
         SendRequestResponse response;
-        try {
-            response = port.sendRequest(paramWrapper);
-        } catch (WebServiceException ex) {
-            throw new WebServiceClientException(ex);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                checkTransmitDeadline(deadline);
+                sendingRequest(paramWrapper);
+                try {
+                    response = transport != null ? transport.sendRequest(message) : port.sendRequest(paramWrapper);
+                } catch (WebServiceException ex) {
+                    throw new WebServiceClientException(ex);
+                }
+                break;
+            } catch (MessageIsAlreadySentException ex) {
+                if (attempt == 1)
+                    throw ex;
+                throw acceptedOnEarlierAttempt(message, attempt, ex);
+            } catch (WebServiceClientException ex) {
+                policy.awaitRetry(attempt, ex, deadline);
+            } catch (SMEVFailureException ex) {
+                policy.awaitRetry(attempt, ex, deadline);
+            } catch (DestinationOverflowException ex) {
+                throttled(limiter, content);
+                policy.awaitRetry(attempt, ex, deadline);
+            } catch (QuoteLimitExceededException ex) {
+                throttled(limiter, content);
+                throw ex;
+            }
+        }
+        if (limiter != null) {
+            limiter.onSuccess(content);
         }
         responseReceived(response);
-        long ts5 = System.currentTimeMillis();
+        long ts2 = System.currentTimeMillis();
 
-        logger.debug("Time before signing: {} ms. Attachment processing took {} ms. Signing took {} ms. Sending took {} ms.",
-            ts2 - ts1, ts3 - ts2, ts4 - ts3, ts5 - ts4);
+        logger.debug("Sending took {} ms.", ts2 - ts1);
 
         // Вынимаем из ответа метаданные сообщения и ЭП-СМЭВ.
         return new MessageMetaDataAndSMEVSignature(
@@ -378,6 +874,404 @@ public class MessageExchangeEndpoint {
             InvalidMessageIdFormatException,
             StaleMessageIdException,
             WebServiceClientException {
+        return sendResponseInternal(messageId, replyToAddress, content, signPersonal, attachmentList, null);
+    }
+
+    /**
+     * Послать ответ со сроком отправки ({@link OutgoingResponse#withDeadline}).
+     * Исключения - как у {@link #sendResponse(String, String, Element, PersonalSigner, List)}.
+     */
+    public MessageMetaDataAndSMEVSignature sendResponse(OutgoingResponse response)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            DestinationOverflowException,
+            ClientSideProcessingException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+        return sendResponseInternal(response.getMessageId(), response.getReplyToAddress(), response.getContent(),
+            response.getSignPersonal(), response.getAttachmentList(), response.getDeadline());
+    }
+
+    private MessageMetaDataAndSMEVSignature sendResponseInternal(String messageId,
+                                                                 String replyToAddress,
+                                                                 Element content,
+                                                                 PersonalSigner signPersonal,
+                                                                 List<InAttachment> attachmentList,
+                                                                 Deadline deadline)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            DestinationOverflowException,
+            ClientSideProcessingException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+
+        SendLane lane = selectLane(null, attachmentList);
+        if (lane == null) {
+            try (PreparedMessage message = buildResponse(messageId, replyToAddress, content, signPersonal, attachmentList, deadline)) {
+                return transmitResponse(message, port, deadline);
+            }
+        }
+        lane.acquire();
+        try (PreparedMessage message = buildResponse(messageId, replyToAddress, content, signPersonal, attachmentList, deadline)) {
+            return transmitResponse(message, portOf(lane), deadline);
+        } finally {
+            lane.release();
+        }
+    }
+
+    /**
+     * Подготовить ответ к передаче: обработать вложения, сформировать ЭП-СП и ЭП-ОВ.
+     * Параметры - как у {@link #sendResponse(String, String, Element, PersonalSigner, List)}.
+     * См. {@link #prepareRequest}.
+     */
+    public PreparedMessage prepareResponse(String messageId,
+                                           String replyToAddress,
+                                           Element content,
+                                           PersonalSigner signPersonal,
+                                           List<InAttachment> attachmentList) throws ClientSideProcessingException {
+        return buildResponse(messageId, replyToAddress, content, signPersonal, attachmentList, null);
+    }
+
+    /**
+     * Подготовить ответ к передаче с учётом его срока отправки ({@link OutgoingResponse#withDeadline}).
+     */
+    public PreparedMessage prepareResponse(OutgoingResponse response) throws ClientSideProcessingException {
+        return buildResponse(response.getMessageId(), response.getReplyToAddress(), response.getContent(),
+            response.getSignPersonal(), response.getAttachmentList(), response.getDeadline());
+    }
+
+    /**
+     * Передать в СМЭВ ранее подготовленное сообщение.
+     * Если в ходе передачи HTTP-соединение разорвалось, можно передать тот же объект повторно:
+     * message ID и подпись при этом не меняются.
+     *
+     * @return метаданные сообщения, в том числе ID, присвоенный сообщению СМЭВ.
+     */
+    public MessageMetaDataAndSMEVSignature send(PreparedMessage message)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            AccessDeniedException,
+            DestinationOverflowException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+        return send(message, null);
+    }
+
+    /**
+     * Передать подготовленное сообщение со сроком отправки: повторы передачи прекращаются,
+     * если не успевают до его истечения или отправка отменена.
+     * @param deadline срок отправки; может быть null.
+     */
+    public MessageMetaDataAndSMEVSignature send(PreparedMessage message, Deadline deadline)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            AccessDeniedException,
+            DestinationOverflowException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
+        if (message.getKind() == PreparedMessage.Kind.REQUEST) {
+            return transmitRequest(message, port, deadline);
+        } else {
+            return transmitResponse(message, port, deadline);
+        }
+    }
+
+    /**
+     * Асинхронно послать ответ на запрос.
+     * Подготовка и подпись ответа выполняются на пуле подготовки конвейера {@link #getSendPipeline()},
+     * передача в СМЭВ - на пуле передачи. Отмена возвращённого future прерывает отправку.
+     * Параметры - как у {@link #sendResponse(String, String, Element, PersonalSigner, List)}.
+     * Срок отправки задаётся через {@link #sendResponseAsync(OutgoingResponse, SendLane.Priority)}.
+     * @return future, которое завершается метаданными сообщения, либо одним из исключений,
+     *  объявленных в sendResponse (в качестве причины ExecutionException).
+     */
+    public ListenableFuture<MessageMetaDataAndSMEVSignature> sendResponseAsync(String messageId,
+                                                                              String replyToAddress,
+                                                                              Element content,
+                                                                              PersonalSigner signPersonal,
+                                                                              List<InAttachment> attachmentList) {
+        return sendResponseAsync(messageId, replyToAddress, content, signPersonal, attachmentList, null);
+    }
+
+    /**
+     * Асинхронно послать ответ по полосе с указанным приоритетом (см. {@link #setSendLanes}).
+     * Если полосы не заданы, приоритет не учитывается.
+     * @param priority приоритет; если null, полоса выбирается по размеру вложений.
+     */
+    public ListenableFuture<MessageMetaDataAndSMEVSignature> sendResponseAsync(String messageId,
+                                                                              String replyToAddress,
+                                                                              Element content,
+                                                                              PersonalSigner signPersonal,
+                                                                              List<InAttachment> attachmentList,
+                                                                              SendLane.Priority priority) {
+        return sendResponseAsync(messageId, replyToAddress, content, signPersonal, attachmentList, null, priority);
+    }
+
+    /**
+     * Асинхронно послать ответ с его сроком отправки ({@link OutgoingResponse#withDeadline}).
+     * См. {@link #sendRequestAsync(OutgoingRequest, SendLane.Priority)}.
+     */
+    public ListenableFuture<MessageMetaDataAndSMEVSignature> sendResponseAsync(OutgoingResponse response, SendLane.Priority priority) {
+        return sendResponseAsync(response.getMessageId(), response.getReplyToAddress(), response.getContent(),
+            response.getSignPersonal(), response.getAttachmentList(), response.getDeadline(), priority);
+    }
+
+    private ListenableFuture<MessageMetaDataAndSMEVSignature> sendResponseAsync(final String messageId,
+                                                                               final String replyToAddress,
+                                                                               final Element content,
+                                                                               final PersonalSigner signPersonal,
+                                                                               final List<InAttachment> attachmentList,
+                                                                               Deadline callerDeadline,
+                                                                               SendLane.Priority priority) {
+        final SendLane lane = selectLane(priority, attachmentList);
+        final SendPipeline pipeline = lane != null ? lane.getPipeline() : getSendPipeline();
+        final SMEVMessageExchangePortType lanePort = portOf(lane);
+        final SendLane.Permit permit = lane != null ? lane.newPermit() : null;
+        final Deadline deadline = asyncDeadline(callerDeadline);
+        ListenableFuture<PreparedMessage> prepared = pipeline.prepare(new Callable<PreparedMessage>() {
+            @Override
+            public PreparedMessage call() throws Exception {
+                acquireLane(permit);
+                return buildResponse(messageId, replyToAddress, content, signPersonal, attachmentList, deadline);
+            }
+        });
+        ListenableFuture<MessageMetaDataAndSMEVSignature> result = Futures.transform(prepared, new AsyncFunction<PreparedMessage, MessageMetaDataAndSMEVSignature>() {
+            @Override
+            public ListenableFuture<MessageMetaDataAndSMEVSignature> apply(final PreparedMessage message) {
+                return pipeline.transmit(new Callable<MessageMetaDataAndSMEVSignature>() {
+                    @Override
+                    public MessageMetaDataAndSMEVSignature call() throws Exception {
+                        return transmitResponse(message, lanePort, deadline);
+                    }
+                });
+            }
+        });
+        releaseLaneOnCompletion(permit, result);
+        closeOnCompletion(prepared, result);
+        trackCancellation(deadline, result);
+        return result;
+    }
+
+    /**
+     * Выбрать полосу отправки.
+     * @return полоса, либо null, если полосы не заданы.
+     */
+    private SendLane selectLane(SendLane.Priority priority, List<InAttachment> attachmentList) {
+        SendLane interactive = interactiveLane;
+        SendLane bulk = bulkLane;
+        if (interactive == null || bulk == null) {
+            return null;
+        }
+        if (priority == null) {
+            priority = SendLane.Priority.INTERACTIVE;
+            if (attachmentList != null) {
+                long totalLength = 0;
+                for (InAttachment attachment : attachmentList) {
+                    Long length = attachment.getLength();
+                    if (length == null) {
+                        // Размер неизвестен до чтения: считаем вложение большим.
+                        priority = SendLane.Priority.BULK;
+                        break;
+                    }
+                    totalLength += length;
+                }
+                if (totalLength > directLimit) {
+                    priority = SendLane.Priority.BULK;
+                }
+            }
+        }
+        return priority == SendLane.Priority.BULK ? bulk : interactive;
+    }
+
+    private SMEVMessageExchangePortType portOf(SendLane lane) {
+        return lane != null && lane.getPort() != null ? lane.getPort() : port;
+    }
+
+    /**
+     * Порт со сжатием (см. {@link #setGzipPort}) вместо основного порта - для сообщений без вложений,
+     * передаваемых напрямую: MTOM-части уже сжатых файлов gzip только замедлил бы.
+     * Порты полос отправки не подменяются.
+     */
+    private SMEVMessageExchangePortType compressedPortFor(SMEVMessageExchangePortType target, AttachmentContentList contentList) {
+        SMEVMessageExchangePortType compressed = gzipPort;
+        if (compressed == null || target != port)
+            return target;
+        return contentList == null || contentList.getAttachmentContent().isEmpty() ? compressed : target;
+    }
+
+    /**
+     * @return порт для GetRequest / GetResponse: ответы на них - самые объёмные.
+     */
+    private SMEVMessageExchangePortType receivingPort() {
+        SMEVMessageExchangePortType compressed = gzipPort;
+        return compressed != null ? compressed : port;
+    }
+
+    private static void acquireLane(SendLane.Permit permit) throws ClientSideProcessingException {
+        if (permit != null) {
+            permit.acquire();
+        }
+    }
+
+    /**
+     * Срок для асинхронной отправки: производный от срока, заданного вызывающим, если он задан.
+     * Производный срок можно отменить, не затрагивая другие отправки под тем же сроком.
+     */
+    private static Deadline asyncDeadline(Deadline parent) {
+        return parent != null ? parent.child() : Deadline.never();
+    }
+
+    /**
+     * Отмена future отменяет отправку: прерывает закачку на FTP и не даёт начать следующие шаги.
+     */
+    private static void trackCancellation(final Deadline deadline, final ListenableFuture<?> result) {
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled()) {
+                    deadline.cancel();
+                } else {
+                    deadline.release();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Закрыть подготовленное сообщение (освободить спулы вложений), когда асинхронная отправка завершится.
+     * Если future отменено, пока сообщение ещё готовится, оно закрывается по окончании подготовки.
+     */
+    private static void closeOnCompletion(final ListenableFuture<PreparedMessage> prepared, ListenableFuture<?> result) {
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                prepared.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Uninterruptibles.getUninterruptibly(prepared).close();
+                        } catch (ExecutionException | CancellationException ex) {
+                            // Сообщение не подготовлено - закрывать нечего.
+                        }
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Освободить место в полосе, когда асинхронная отправка завершится (успешно, с ошибкой или отменой).
+     * Место занимается в начале подготовки и держится до конца передачи; если future завершится раньше,
+     * чем задача подготовки займёт место, его освободит сама задача (см. SendLane.Permit).
+     */
+    private static void releaseLaneOnCompletion(final SendLane.Permit permit, ListenableFuture<?> result) {
+        if (permit == null)
+            return;
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                permit.close();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Послать пакет ответов. Аналог {@link #sendRequests(Collection)} для sendResponse.
+     * @return результаты в порядке следования ответов.
+     * @throws InterruptedException поток был прерван в ожидании результатов.
+     */
+    public List<SendResult> sendResponses(Collection<OutgoingResponse> responses) throws InterruptedException {
+        List<String> messageIds = new ArrayList<>(responses.size());
+        List<ListenableFuture<MessageMetaDataAndSMEVSignature>> futures = new ArrayList<>(responses.size());
+        for (OutgoingResponse response : responses) {
+            messageIds.add(response.getMessageId());
+            futures.add(sendResponseAsync(
+                response.getMessageId(), response.getReplyToAddress(), response.getContent(),
+                response.getSignPersonal(), response.getAttachmentList(), response.getDeadline(), null
+            ));
+        }
+        return collectResults(messageIds, futures);
+    }
+
+    private static List<SendResult> collectResults(List<String> messageIds,
+                                                   List<ListenableFuture<MessageMetaDataAndSMEVSignature>> futures) throws InterruptedException {
+        List<SendResult> results = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            String messageId = messageIds.get(i);
+            try {
+                results.add(SendResult.success(messageId, futures.get(i).get()));
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                results.add(SendResult.failure(messageId, (Exception) cause));
+            }
+        }
+        return results;
+    }
+
+    private PreparedMessage buildResponse(String messageId,
+                                          String replyToAddress,
+                                          Element content,
+                                          PersonalSigner signPersonal,
+                                          List<InAttachment> attachmentList,
+                                          Deadline deadline) throws ClientSideProcessingException {
+
+        checkDeadline(deadline);
+
+        // Проверка по схеме и ограничение частоты - до подписания и закачки вложений.
+        SchemaRegistry schemas = schemaRegistry;
+        if (schemas != null) {
+            schemas.validate(content);
+        }
+        SendRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire(content);
+        }
+
+        // Вложения не зависят от ЭП-СП, поэтому, если задан attachmentExecutor,
+        // обрабатываем их параллельно с подписанием бизнес-данных.
+        Future<InAttachments> attachmentsFuture = internalizeAttachmentsAsync(attachmentList, deadline);
 
         // Адрес, на который слать ответ.
         SenderProvidedResponseData responseButAttachments = new SenderProvidedResponseData();
@@ -387,7 +1281,7 @@ public class MessageExchangeEndpoint {
 
         // ЭП-СП XML-контента, если есть.
         if (signPersonal != null) {
-            XMLDSigSignatureType signature = createPersonalSignature(signPersonal, content);
+            XMLDSigSignatureType signature = createPersonalSignature(signPersonal, content, attachmentsFuture, deadline);
             responseButAttachments.setPersonalSignature(signature);
         }
 
@@ -403,24 +1297,87 @@ public class MessageExchangeEndpoint {
         // 1. Сделать отдельные блоки заголовков и содержимого.
         // 2. Если у вложений нет ID, сгенерировать их.
         // 3. Если вложения не подписаны ЭП-СП, подписать их ЭП-ОВ.
-        InAttachments attachmentsInterim = internalizeAttachments(attachmentList);
-        responseButAttachments.setAttachmentHeaderList(attachmentsInterim.headerList);
-        responseButAttachments.setRefAttachmentHeaderList(attachmentsInterim.fsAttachmentsList);
-        paramWrapper.setAttachmentContentList(attachmentsInterim.contentList);
+        InAttachments attachmentsInterim = joinAttachments(attachmentsFuture, attachmentList, deadline);
+        boolean ok = false;
+        try {
+            responseButAttachments.setAttachmentHeaderList(attachmentsInterim.headerList);
+            responseButAttachments.setRefAttachmentHeaderList(attachmentsInterim.fsAttachmentsList);
+            paramWrapper.setAttachmentContentList(attachmentsInterim.contentList);
+
+            // Подписать ЭП-ОВ. Подписываем всё, включая заголовки вложений, но не содержимое вложений.
+            // Так делается потому, что при любой попытке маршаллинга XML-фрагмента, содержащего MTOM-вложение,
+            // MTOM отключается.
+            checkDeadline(deadline);
+            Element signedData = marshalForDispatch(responseButAttachments);
+            XMLDSigSignatureType signatureWrapper = signedData != null ? signDOM(signedData) : sign(responseButAttachments);
+            paramWrapper.setCallerInformationSystemSignature(signatureWrapper);
+
+            PreparedMessage message = new PreparedMessage(paramWrapper, signedData, attachmentsInterim);
+            ok = true;
+            return message;
+        } finally {
+            if (!ok) {
+                attachmentsInterim.release();
+            }
+        }
+    }
 
-        // Подписать ЭП-ОВ. Подписываем всё, включая заголовки вложений, но не содержимое вложений.
-        // Так делается потому, что при любой попытке маршаллинга XML-фрагмента, содержащего MTOM-вложение,
-        // MTOM отключается.
-        XMLDSigSignatureType signatureWrapper = sign(responseButAttachments);
-        paramWrapper.setCallerInformationSystemSignature(signatureWrapper);
+    private MessageMetaDataAndSMEVSignature transmitResponse(PreparedMessage message, SMEVMessageExchangePortType port,
+                                                             Deadline deadline)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            DestinationOverflowException,
+            MessageIsAlreadySentException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException {
 
-        // Посылаем сообщение.
-        sendingRequest(paramWrapper);
+        // Посылаем сообщение. При повторе уходит тот же подписанный объект с тем же message ID.
+        RetryPolicy policy = retryPolicy;
+        SendRateLimiter limiter = rateLimiter;
+        DispatchTransport transport = message.getSignedData() != null ? dispatchTransport : null;
+        SendResponseRequest paramWrapper = message.getResponse();
+        port = compressedPortFor(port, paramWrapper.getAttachmentContentList());
+        SenderProvidedResponseData responseData = paramWrapper.getSenderProvidedResponseData();
+        Element content = responseData.getMessagePrimaryContent() == null
+            ? null : (Element) responseData.getMessagePrimaryContent().getAny();
         SendResponseResponse response;
-        try {
-            response = port.sendResponse(paramWrapper);
-        } catch (WebServiceException ex) {
-            throw new WebServiceClientException(ex);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                checkTransmitDeadline(deadline);
+                sendingRequest(paramWrapper);
+                try {
+                    response = transport != null ? transport.sendResponse(message) : port.sendResponse(paramWrapper);
+                } catch (WebServiceException ex) {
+                    throw new WebServiceClientException(ex);
+                }
+                break;
+            } catch (MessageIsAlreadySentException ex) {
+                if (attempt == 1)
+                    throw ex;
+                throw acceptedOnEarlierAttempt(message, attempt, ex);
+            } catch (WebServiceClientException ex) {
+                policy.awaitRetry(attempt, ex, deadline);
+            } catch (SMEVFailureException ex) {
+                policy.awaitRetry(attempt, ex, deadline);
+            } catch (DestinationOverflowException ex) {
+                throttled(limiter, content);
+                policy.awaitRetry(attempt, ex, deadline);
+            } catch (QuoteLimitExceededException ex) {
+                throttled(limiter, content);
+                throw ex;
+            }
+        }
+        if (limiter != null) {
+            limiter.onSuccess(content);
         }
         responseReceived(response);
 
@@ -500,18 +1457,11 @@ public class MessageExchangeEndpoint {
         // Подписать ЭП-ОВ. Подписываем всё, включая заголовки вложений, но не содержимое вложений.
         // Так делается потому, что при любой попытке маршаллинга XML-фрагмента, содержащего MTOM-вложение,
         // MTOM отключается.
-        XMLDSigSignatureType signatureWrapper = sign(responseButAttachments);
+        Element signedData = marshalForDispatch(responseButAttachments);
+        XMLDSigSignatureType signatureWrapper = signedData != null ? signDOM(signedData) : sign(responseButAttachments);
         paramWrapper.setCallerInformationSystemSignature(signatureWrapper);
 
-        // Посылаем сообщение.
-        sendingRequest(paramWrapper);
-        SendResponseResponse response;
-        try {
-            response = port.sendResponse(paramWrapper);
-        } catch (WebServiceException ex) {
-            throw new WebServiceClientException(ex);
-        }
-        responseReceived(response);
+        transmitResponse(new PreparedMessage(paramWrapper, signedData), port, null);
     }
 
     /**
@@ -535,6 +1485,49 @@ public class MessageExchangeEndpoint {
             ClientSideProcessingException,
             WebServiceClientException {
 
+        GetRequestRequest wsParameters = buildGetRequest(requestTypeSelector);
+
+        // Сделать запрос к сервису.
+        sendingRequest(wsParameters);
+        GetRequestResponse wsResponse;
+        try {
+            wsResponse = receivingPort().getRequest(wsParameters);
+        } catch (WebServiceException ex) {
+            throw new WebServiceClientException(ex);
+        }
+        return requestMessageReceived(wsResponse);
+    }
+
+    /**
+     * Асинхронно получить запрос из входящей очереди.
+     * Запрос к СМЭВ подписывается в вызывающем потоке, ответ ожидается и проверяется на потоках
+     * асинхронных вызовов JAX-WS (executor сервиса, из которого создан порт), а не на вызывающем потоке.
+     * Параметры - как у {@link #getRequest(QName)}.
+     * @return future, которое завершается ответом СМЭВ, либо одним из исключений, объявленных в getRequest
+     *  (в качестве причины ExecutionException).
+     */
+    public ListenableFuture<GetRequestResponse> getRequestAsync(QName requestTypeSelector) {
+        final SettableFuture<GetRequestResponse> result = SettableFuture.create();
+        try {
+            GetRequestRequest wsParameters = buildGetRequest(requestTypeSelector);
+            sendingRequest(wsParameters);
+            receivingPort().getRequestAsync(wsParameters, new AsyncHandler<GetRequestResponse>() {
+                @Override
+                public void handleResponse(Response<GetRequestResponse> response) {
+                    try {
+                        result.set(requestMessageReceived(response.get()));
+                    } catch (Exception ex) {
+                        result.setException(asyncFailure(ex));
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            result.setException(asyncFailure(ex));
+        }
+        return result;
+    }
+
+    private GetRequestRequest buildGetRequest(QName requestTypeSelector) throws ClientSideProcessingException {
         // Подготовить данные для запроса.
         MessageTypeSelector wsMessageTypeSelector = new MessageTypeSelector();
         wsMessageTypeSelector.setId(SIGNATURE_ID_CALLER);
@@ -550,15 +1543,16 @@ public class MessageExchangeEndpoint {
         // Подписать данные запроса.
         XMLDSigSignatureType signatureWrapper = sign(wsMessageTypeSelector);
         wsParameters.setCallerInformationSystemSignature(signatureWrapper);
+        return wsParameters;
+    }
 
-        // Сделать запрос к сервису.
-        sendingRequest(wsParameters);
-        GetRequestResponse wsResponse;
-        try {
-            wsResponse = port.getRequest(wsParameters);
-        } catch (WebServiceException ex) {
-            throw new WebServiceClientException(ex);
-        }
+    private GetRequestResponse requestMessageReceived(GetRequestResponse wsResponse)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            InvalidContentException,
+            ClientSideProcessingException,
+            WebServiceClientException {
         responseReceived(wsResponse);
 
         // Провалидировать ЭП-СМЭВ.
@@ -598,6 +1592,59 @@ public class MessageExchangeEndpoint {
             ClientSideProcessingException,
             WebServiceClientException {
 
+        GetResponseRequest wsParameters = buildGetResponse(responseTypeSelector);
+
+        // Сделать запрос к сервису.
+        sendingRequest(wsParameters);
+        GetResponseResponse wsResponse;
+        try {
+            wsResponse = receivingPort().getResponse(wsParameters);
+        } catch (WebServiceException ex) {
+            throw new WebServiceClientException(ex);
+        }
+        return responseMessageReceived(wsResponse);
+    }
+
+    /**
+     * Асинхронно получить ответ из входящей очереди. См. {@link #getRequestAsync(QName)}.
+     * Параметры - как у {@link #getResponse(QName)}.
+     */
+    public ListenableFuture<GetResponseResponse> getResponseAsync(QName responseTypeSelector) {
+        final SettableFuture<GetResponseResponse> result = SettableFuture.create();
+        try {
+            GetResponseRequest wsParameters = buildGetResponse(responseTypeSelector);
+            sendingRequest(wsParameters);
+            receivingPort().getResponseAsync(wsParameters, new AsyncHandler<GetResponseResponse>() {
+                @Override
+                public void handleResponse(Response<GetResponseResponse> response) {
+                    try {
+                        result.set(responseMessageReceived(response.get()));
+                    } catch (Exception ex) {
+                        result.setException(asyncFailure(ex));
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            result.setException(asyncFailure(ex));
+        }
+        return result;
+    }
+
+    /**
+     * Привести ошибку асинхронного вызова к исключениям синхронного: сгенерированные исключения СМЭВ
+     * и ClientSideProcessingException - как есть, сбой JAX-WS - WebServiceClientException.
+     */
+    private static Throwable asyncFailure(Throwable ex) {
+        if (ex instanceof ExecutionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        if (ex instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        return ex instanceof WebServiceException || ex instanceof InterruptedException ? new WebServiceClientException(ex) : ex;
+    }
+
+    private GetResponseRequest buildGetResponse(QName responseTypeSelector) throws ClientSideProcessingException {
         // Подготовить данные для запроса.
         MessageTypeSelector wsMessageTypeSelector = new MessageTypeSelector();
         wsMessageTypeSelector.setId(SIGNATURE_ID_CALLER);
@@ -613,15 +1660,16 @@ public class MessageExchangeEndpoint {
         // Подписать данные запроса.
         XMLDSigSignatureType signatureWrapper = sign(wsMessageTypeSelector);
         wsParameters.setCallerInformationSystemSignature(signatureWrapper);
+        return wsParameters;
+    }
 
-        // Сделать запрос к сервису.
-        sendingRequest(wsParameters);
-        GetResponseResponse wsResponse;
-        try {
-            wsResponse = port.getResponse(wsParameters);
-        } catch (WebServiceException ex) {
-            throw new WebServiceClientException(ex);
-        }
+    private GetResponseResponse responseMessageReceived(GetResponseResponse wsResponse)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            InvalidContentException,
+            ClientSideProcessingException,
+            WebServiceClientException {
         responseReceived(wsResponse);
 
         // Провалидировать ЭП-СМЭВ.
@@ -822,13 +1870,38 @@ public class MessageExchangeEndpoint {
     private static XMLGregorianCalendar getNow() {
         GregorianCalendar gc = new GregorianCalendar();
         gc.setTime(new Date());
-        return datatypeFactoryHolder.get().newXMLGregorianCalendar(gc);
+        return datatypeFactory.newXMLGregorianCalendar(gc);
     }
 
-    private static Element marshal(Object obj) throws JAXBException {
-        DOMResult domResult = new DOMResult();
-        getJAXBMarshaller().marshal(obj, domResult);
-        return ((Document) domResult.getNode()).getDocumentElement();
+    static Element marshal(Object obj) throws JAXBException {
+        JAXBPool pool = JAXBPool.forPackage(JAXBPool.TYPES_PACKAGE);
+        Marshaller marshaller = pool.acquireMarshaller();
+        try {
+            DOMResult domResult = new DOMResult();
+            marshaller.marshal(obj, domResult);
+            return ((Document) domResult.getNode()).getDocumentElement();
+        } finally {
+            pool.release(marshaller);
+        }
+    }
+
+    /**
+     * Подписать бизнес-данные ЭП-СП. Если подпись не удалась, параллельная обработка вложений отменяется.
+     */
+    private static XMLDSigSignatureType createPersonalSignature(PersonalSigner signPersonal, Element businessContent,
+                                                                Future<InAttachments> attachmentsFuture,
+                                                                Deadline deadline) throws ClientSideProcessingException {
+        boolean ok = false;
+        try {
+            checkDeadline(deadline);
+            XMLDSigSignatureType signature = createPersonalSignature(signPersonal, businessContent);
+            ok = true;
+            return signature;
+        } finally {
+            if (!ok && attachmentsFuture != null) {
+                discardAttachments(attachmentsFuture);
+            }
+        }
     }
 
     private static XMLDSigSignatureType createPersonalSignature(PersonalSigner signPersonal, Element businessContent) throws ClientSideProcessingException {
@@ -844,7 +1917,17 @@ public class MessageExchangeEndpoint {
 
     protected XMLDSigSignatureType sign(Object messageButAttachments) throws ClientSideProcessingException {
         try {
-            Element content2sign = marshal(messageButAttachments);
+            return signDOM(marshal(messageButAttachments));
+        } catch (JAXBException exception) {
+            throw new ClientSideProcessingException(exception);
+        }
+    }
+
+    /**
+     * Подписать ЭП-ОВ уже полученное DOM-представление данных. Сам DOM не изменяется.
+     */
+    private XMLDSigSignatureType signDOM(Element content2sign) throws ClientSideProcessingException {
+        try {
             Element signature = ovSigner.signXMLDSigDetached(content2sign, null);
             XMLDSigSignatureType signatureWrapper = new XMLDSigSignatureType();
             signatureWrapper.setAny(signature);
@@ -853,19 +1936,79 @@ public class MessageExchangeEndpoint {
             throw new ClientSideProcessingException(exception);
         } catch (SignatureProcessingException exception) {
             throw new ClientSideProcessingException(exception);
+        }
+    }
+
+    /**
+     * Если задан DispatchTransport, маршаллить данные для подписи здесь: полученный DOM после подписания
+     * уйдёт в СМЭВ без повторного маршаллинга.
+     * @return DOM данных, либо null, если DispatchTransport не задан (подпись - через {@link #sign(Object)}).
+     */
+    private Element marshalForDispatch(Object messageButAttachments) throws ClientSideProcessingException {
+        if (dispatchTransport == null)
+            return null;
+        try {
+            return marshal(messageButAttachments);
         } catch (JAXBException exception) {
             throw new ClientSideProcessingException(exception);
         }
     }
 
-    private InAttachments internalizeAttachments(List<InAttachment> attachmentList) throws ClientSideProcessingException {
-        AttachmentBuilder builder = new AttachmentBuilder(ftpAddress, ovSigner, directLimit);
+    private InAttachments internalizeAttachments(List<InAttachment> attachmentList, Deadline deadline) throws ClientSideProcessingException {
+        AttachmentBuilder builder = new AttachmentBuilder(ftpAddress, ovSigner, directLimit, attachmentSpoolThreshold, deadline);
         if (attachmentList != null) {
             builder.attach(attachmentList);
         }
         return builder.getResult();
     }
 
+    /**
+     * Запустить обработку вложений на attachmentExecutor.
+     * @return null, если executor не задан или вложений нет; тогда вложения обрабатываются в joinAttachments.
+     */
+    private Future<InAttachments> internalizeAttachmentsAsync(final List<InAttachment> attachmentList, final Deadline deadline) {
+        ExecutorService executor = attachmentExecutor;
+        if (executor == null || attachmentList == null || attachmentList.isEmpty())
+            return null;
+        return executor.submit(new Callable<InAttachments>() {
+            @Override
+            public InAttachments call() throws ClientSideProcessingException {
+                return internalizeAttachments(attachmentList, deadline);
+            }
+        });
+    }
+
+    /**
+     * Отменить параллельную обработку вложений; если она уже завершилась, освободить её спулы.
+     */
+    private static void discardAttachments(Future<InAttachments> attachmentsFuture) {
+        if (attachmentsFuture.cancel(true))
+            return;
+        try {
+            Uninterruptibles.getUninterruptibly(attachmentsFuture).release();
+        } catch (ExecutionException | CancellationException ex) {
+            // Обработка не удалась - спулы освобождены в AttachmentBuilder.attach.
+        }
+    }
+
+    private InAttachments joinAttachments(Future<InAttachments> attachmentsFuture, List<InAttachment> attachmentList,
+                                          Deadline deadline) throws ClientSideProcessingException {
+        if (attachmentsFuture == null)
+            return internalizeAttachments(attachmentList, deadline);
+        try {
+            return attachmentsFuture.get();
+        } catch (InterruptedException ex) {
+            attachmentsFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ClientSideProcessingException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof ClientSideProcessingException)
+                throw (ClientSideProcessingException) cause;
+            throw new ClientSideProcessingException(cause);
+        }
+    }
+
     protected void validateSMEVSignature(RequestMessage message) throws SignatureProcessingException, SignatureValidationException {
         Element smevSignature = message.getSMEVSignature().getAny();
         Element content2validate;
@@ -1011,4 +2154,241 @@ public class MessageExchangeEndpoint {
     public SignatureOperationsClient getOV() {
         return ovSigner;
     }
+
+    /**
+     * Конвейер, на котором выполняются sendRequestAsync и sendResponseAsync.
+     * Если не задан явно, при первом обращении создаётся конвейер с настройками по умолчанию.
+     */
+    public SendPipeline getSendPipeline() {
+        SendPipeline pipeline = sendPipeline;
+        if (pipeline == null) {
+            synchronized (this) {
+                pipeline = sendPipeline;
+                if (pipeline == null) {
+                    pipeline = SendPipeline.create();
+                    sendPipeline = pipeline;
+                }
+            }
+        }
+        return pipeline;
+    }
+
+    public void setSendPipeline(SendPipeline sendPipeline) {
+        this.sendPipeline = sendPipeline;
+    }
+
+    public long getAttachmentSpoolThreshold() {
+        return attachmentSpoolThreshold;
+    }
+
+    /**
+     * Однопроходная обработка вложений: вложение, для которого нужно вычислить хэш, читается из источника один раз -
+     * в спул с одновременным вычислением хэша, - и передаётся в СМЭВ из спула. Полезно для медленных
+     * и неповторяемых источников (сетевые потоки).
+     * @param attachmentSpoolThreshold сколько байт вложения держать в памяти, большее пишется во временный файл;
+     *  AttachmentBuilder.NO_SPOOL (по умолчанию) - режим выключен.
+     */
+    public void setAttachmentSpoolThreshold(long attachmentSpoolThreshold) {
+        this.attachmentSpoolThreshold = attachmentSpoolThreshold;
+    }
+
+    public ExecutorService getAttachmentExecutor() {
+        return attachmentExecutor;
+    }
+
+    /**
+     * Задать пул потоков, на котором вложения сообщения обрабатываются (хэшируются, подписываются,
+     * закачиваются на FTP) параллельно с формированием ЭП-СП бизнес-данных.
+     * Если null (по умолчанию), оба шага выполняются последовательно в вызывающем потоке.
+     * Это не должен быть пул подготовки конвейера {@link SendPipeline}: его потоки ждут результат
+     * обработки вложений, и при исчерпании пула отправка зависнет.
+     */
+    public void setAttachmentExecutor(ExecutorService attachmentExecutor) {
+        this.attachmentExecutor = attachmentExecutor;
+    }
+
+    /**
+     * @throws ClientSideProcessingException срок отправки истёк или отправка отменена.
+     */
+    private static void checkDeadline(Deadline deadline) throws ClientSideProcessingException {
+        if (deadline != null) {
+            deadline.check();
+        }
+    }
+
+    private static void checkTransmitDeadline(Deadline deadline) throws WebServiceClientException {
+        try {
+            checkDeadline(deadline);
+        } catch (ClientSideProcessingException ex) {
+            throw new WebServiceClientException(ex);
+        }
+    }
+
+    /**
+     * Повтор завершился MessageIsAlreadySentException: предыдущая попытка, ответ на которую не был получен,
+     * всё-таки дошла до СМЭВ. См. MessageAcceptedOnEarlierAttemptException.
+     */
+    private static MessageAcceptedOnEarlierAttemptException acceptedOnEarlierAttempt(PreparedMessage message, int attempt,
+                                                                                     MessageIsAlreadySentException ex) {
+        logger.info("Message {} was accepted by SMEV on an earlier attempt (detected on attempt {})",
+            message.getMessageId(), attempt);
+        return new MessageAcceptedOnEarlierAttemptException(message.getMessageId(), attempt, ex);
+    }
+
+    private static void throttled(SendRateLimiter limiter, Element content) {
+        if (limiter != null) {
+            limiter.onThrottled(content);
+        }
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Задать политику повтора передачи сообщений (sendRequest, sendResponse, send и их асинхронных вариантов).
+     * Повторяется только сетевой обмен: сообщение не переподписывается и уходит с тем же message ID.
+     * Если предыдущая попытка на самом деле дошла до СМЭВ и повтор получил MessageIsAlreadySentException,
+     * выбрасывается {@link MessageAcceptedOnEarlierAttemptException} (наследник MessageIsAlreadySentException):
+     * сообщение принято, но его метаданные и ЭП-СМЭВ не известны. MessageIsAlreadySentException на первой
+     * попытке по-прежнему выбрасывается как есть.
+     * По умолчанию - {@link RetryPolicy#NONE}.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("Retry policy cannot be null");
+        this.retryPolicy = retryPolicy;
+    }
+
+    public SendRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Задать адаптивное ограничение частоты отправки сообщений. Если null (по умолчанию), частота не ограничивается.
+     */
+    public void setRateLimiter(SendRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public SendLane getInteractiveLane() {
+        return interactiveLane;
+    }
+
+    public SendLane getBulkLane() {
+        return bulkLane;
+    }
+
+    /**
+     * Задать полосы отправки. Сообщения без явного приоритета, суммарный размер вложений которых больше
+     * directLimit (т.е. вложения пойдут через FTP), отправляются по полосе bulk, остальные - по interactive.
+     * Синхронные методы sendRequest / sendResponse также соблюдают ограничение числа сообщений полосы
+     * и используют её порт. Если обе полосы null (по умолчанию), используются {@link #getSendPipeline()}
+     * и порт точки доступа.
+     */
+    public void setSendLanes(SendLane interactive, SendLane bulk) {
+        if ((interactive == null) != (bulk == null))
+            throw new IllegalArgumentException("Both lanes must be set or both must be null");
+        this.interactiveLane = interactive;
+        this.bulkLane = bulk;
+        if (interceptorStorage != null) {
+            applyInterceptorStorage(interceptorStorage);
+        }
+    }
+
+    public SchemaRegistry getSchemaRegistry() {
+        return schemaRegistry;
+    }
+
+    /**
+     * Задать реестр схем, по которым бизнес-данные запросов и ответов проверяются перед подписанием.
+     * Если null (по умолчанию), проверка не выполняется.
+     */
+    public void setSchemaRegistry(SchemaRegistry schemaRegistry) {
+        this.schemaRegistry = schemaRegistry;
+    }
+
+    /**
+     * @return метрики узлов СМЭВ, если сервис создан по списку адресов; иначе пустой список.
+     */
+    public List<BalancedPort.NodeStats> getNodeStats() {
+        BalancedPort balancedPort = this.balancedPort;
+        return balancedPort != null ? balancedPort.getNodeStats() : Collections.<BalancedPort.NodeStats>emptyList();
+    }
+
+    public DispatchTransport getDispatchTransport() {
+        return dispatchTransport;
+    }
+
+    /**
+     * Передавать SendRequest / SendResponse через DispatchTransport: DOM, по которому вычислена ЭП-ОВ,
+     * кладётся в SOAP-конверт как есть, без повторного JAXB-маршаллинга бизнес-данных.
+     * Действует для сообщений, подготовленных после вызова; остальные вызовы СМЭВ по-прежнему идут через порт,
+     * полосы отправки ({@link #setSendLanes}) ограничивают параллельность, но их порты не используются.
+     * При этом переопределённый {@link #sign(Object)} не вызывается.
+     * @param dispatchTransport транспорт, либо null - передавать через порт (по умолчанию).
+     */
+    public void setDispatchTransport(DispatchTransport dispatchTransport) {
+        this.dispatchTransport = dispatchTransport;
+        if (interceptorStorage != null) {
+            applyInterceptorStorage(interceptorStorage);
+        }
+    }
+
+    public SMEVMessageExchangePortType getGzipPort() {
+        return gzipPort;
+    }
+
+    /**
+     * Задать порт со сжатием HTTP (см. {@link #enableGzip}), отдельный от основного порта точки доступа.
+     * Через него идут GetRequest / GetResponse и отправка сообщений без вложений, передаваемых напрямую;
+     * сообщения с такими вложениями идут через основной порт без сжатия.
+     * @param gzipPort порт, либо null - не сжимать (по умолчанию).
+     */
+    public void setGzipPort(SMEVMessageExchangePortType gzipPort) {
+        this.gzipPort = gzipPort;
+        if (interceptorStorage != null) {
+            applyInterceptorStorage(interceptorStorage);
+        }
+    }
+
+    public InterceptorStorage getInterceptorStorage() {
+        return interceptorStorage;
+    }
+
+    /**
+     * Сохранять конверты запросов и ответов в хранилище. Хранилище подключается к контексту запроса
+     * всех портов точки доступа (основного, со сжатием, портов полос отправки и DispatchTransport),
+     * в том числе заданных позже.
+     * @param interceptorStorage хранилище, либо null - не перехватывать (по умолчанию).
+     */
+    public void setInterceptorStorage(InterceptorStorage interceptorStorage) {
+        this.interceptorStorage = interceptorStorage;
+        applyInterceptorStorage(interceptorStorage);
+    }
+
+    private void applyInterceptorStorage(InterceptorStorage storage) {
+        List<Object> ports = new ArrayList<>();
+        ports.add(port);
+        ports.add(gzipPort);
+        SendLane interactive = interactiveLane;
+        SendLane bulk = bulkLane;
+        if (interactive != null && bulk != null) {
+            ports.add(interactive.getPort());
+            ports.add(bulk.getPort());
+        }
+        DispatchTransport transport = dispatchTransport;
+        if (transport != null) {
+            ports.addAll(transport.getBindingProviders());
+        }
+        for (Object candidate : ports) {
+            if (candidate instanceof BindingProvider) {
+                if (storage != null) {
+                    storage.attachTo((BindingProvider) candidate);
+                } else {
+                    InterceptorStorage.detach((BindingProvider) candidate);
+                }
+            }
+        }
+    }
 }
@@ -3,7 +3,6 @@ package ru.voskhod.smev.message_exchange_service_client;
 import com.fasterxml.uuid.EthernetAddress;
 import com.fasterxml.uuid.UUIDTimer;
 import com.fasterxml.uuid.impl.TimeBasedGenerator;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetRequestResponse;
 import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetResponseResponse;
@@ -11,9 +10,7 @@ import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetStatusRespon
 import ru.voskhod.smev.message_exchange_service_client.datatypes.MessageTypeEnum;
 
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.transform.dom.DOMResult;
 import java.io.IOException;
 import java.util.Date;
 import java.util.Random;
@@ -174,18 +171,13 @@ public final class MessageExchangeHelper {
             return null;
         }
         
-        Marshaller jaxbMarshaller = MessageExchangeEndpoint.getJAXBMarshaller();
-        DOMResult domResult = new DOMResult();
-        
         if (requestResponse.getRequestMessage().getRequest() != null) {
-            jaxbMarshaller.marshal(requestResponse.getRequestMessage().getRequest().getSenderProvidedRequestData(), domResult);
+            return MessageExchangeEndpoint.marshal(requestResponse.getRequestMessage().getRequest().getSenderProvidedRequestData());
         } else if (requestResponse.getRequestMessage().getCancel() != null) {
-            jaxbMarshaller.marshal(requestResponse.getRequestMessage().getCancel().getMessageReference(), domResult);
+            return MessageExchangeEndpoint.marshal(requestResponse.getRequestMessage().getCancel().getMessageReference());
         } else {
             return null;
         }
-        
-        return ((Document) domResult.getNode()).getDocumentElement();
     }
     
     public static Element marshalContentSignedBySender(GetResponseResponse responseResponse) throws JAXBException {
@@ -193,12 +185,8 @@ public final class MessageExchangeHelper {
             return null;
         }
         
-        Marshaller jaxbMarshaller = MessageExchangeEndpoint.getJAXBMarshaller();
-        DOMResult domResult = new DOMResult();
-        
         if (responseResponse.getResponseMessage().getResponse() != null) {
-            jaxbMarshaller.marshal(responseResponse.getResponseMessage().getResponse().getSenderProvidedResponseData(), domResult);
-            return ((Document) domResult.getNode()).getDocumentElement();
+            return MessageExchangeEndpoint.marshal(responseResponse.getResponseMessage().getResponse().getSenderProvidedResponseData());
         } else {
             return null;
         }
@@ -0,0 +1,621 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+
+import javax.xml.ws.AsyncHandler;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Response;
+import javax.xml.ws.WebServiceException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул портов СМЭВ с ограничением числа одновременных вызовов.
+ * <p/>
+ * Каждый вызов берёт порт из пула и возвращает его по завершении; одновременно выполняется не больше
+ * maxPorts вызовов, остальные ждут освобождения порта не дольше borrowTimeout. Асинхронный вызов
+ * (getRequestAsync и т.п.) держит порт, пока не придёт ответ или вызов не будет отменён. Порты, простаивающие
+ * дольше idleTimeout, удаляются из пула фоновой задачей.
+ * <p/>
+ * HTTP-соединения Metro берёт из кэша keep-alive HttpURLConnection, общего для JVM: соединение
+ * возвращается в кэш после полного чтения ответа и переиспользуется следующим вызовом к тому же узлу.
+ * Размер кэша на узел задаётся {@link #configureKeepAlive(int)} и должен быть не меньше maxPorts,
+ * иначе соединения сверх размера кэша закрываются после каждого вызова.
+ * <p/>
+ * Пул подключается к MessageExchangeEndpoint через {@link #asPort()}.
+ */
+public final class PortPool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PortPool.class);
+
+    // Предел ожидания соединения и ответа при прогреве, если таймауты порта больше или не заданы.
+    private static final int WARM_UP_TIMEOUT = 10 * 1000;
+
+    /**
+     * Создаёт порты для пула.
+     */
+    public interface Factory {
+        SMEVMessageExchangePortType create() throws WebServiceClientException;
+    }
+
+    /**
+     * Снимок статистики пула.
+     */
+    public static final class Stats {
+
+        private final int maxPorts;
+        private final int idle;
+        private final int inUse;
+        private final long created;
+        private final long evicted;
+        private final long calls;
+        private final long waits;
+        private final long waitMillis;
+
+        private Stats(int maxPorts, int idle, int inUse, long created, long evicted, long calls, long waits, long waitMillis) {
+            this.maxPorts = maxPorts;
+            this.idle = idle;
+            this.inUse = inUse;
+            this.created = created;
+            this.evicted = evicted;
+            this.calls = calls;
+            this.waits = waits;
+            this.waitMillis = waitMillis;
+        }
+
+        public int getMaxPorts() {
+            return maxPorts;
+        }
+
+        /**
+         * @return число созданных портов, ожидающих вызова.
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return число вызовов, выполняющихся в данный момент.
+         */
+        public int getInUse() {
+            return inUse;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return число портов, удалённых из пула после простоя.
+         */
+        public long getEvicted() {
+            return evicted;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return число вызовов, которым пришлось ждать свободного порта.
+         */
+        public long getWaits() {
+            return waits;
+        }
+
+        /**
+         * @return суммарное время ожидания свободного порта.
+         */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "PortPool.Stats{maxPorts=" + maxPorts + ", idle=" + idle + ", inUse=" + inUse
+                + ", created=" + created + ", evicted=" + evicted + ", calls=" + calls
+                + ", waits=" + waits + ", waitMillis=" + waitMillis + "}";
+        }
+    }
+
+    private static final class Entry {
+        final SMEVMessageExchangePortType port;
+        long lastUsedNanos;
+
+        Entry(SMEVMessageExchangePortType port) {
+            this.port = port;
+            this.lastUsedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Порт, выданный одному вызову; возвращается в пул один раз, где бы ни завершился вызов.
+     */
+    private final class Lease {
+        final Entry entry;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                PortPool.this.release(entry);
+            }
+        }
+    }
+
+    /**
+     * Результат асинхронного вызова без обработчика: вызов выполняется через вариант с AsyncHandler,
+     * чтобы порт вернулся в пул по приходу ответа, а не тогда, когда вызывающий заберёт результат.
+     */
+    private static final class PooledResponse implements Response<Object> {
+        private final Lease lease;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Response<Object> response;
+        private volatile Future<?> call;
+
+        PooledResponse(Lease lease) {
+            this.lease = lease;
+        }
+
+        void complete(Response<Object> response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        @Override
+        public Map<String, Object> getContext() {
+            Response<Object> current = response;
+            return current != null ? current.getContext() : null;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = call.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                lease.release();
+                done.countDown();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return call.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return result();
+        }
+
+        private Object result() throws InterruptedException, ExecutionException {
+            if (call.isCancelled())
+                throw new CancellationException();
+            return response.get();
+        }
+    }
+
+    private final Factory factory;
+    private final int maxPorts;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutNanos;
+    private final Semaphore permits;
+    // Последний возвращённый порт берётся первым: его соединение вероятнее всего ещё в кэше keep-alive.
+    private final Deque<Entry> idle = new ArrayDeque<>();
+    private final ScheduledThreadPoolExecutor evictor;
+    private final FanOutRequestContext requestContext = new FanOutRequestContext();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param factory создаёт порты; например, вызывает MessageExchangeEndpoint.createBundledPort.
+     * @param maxPorts максимальное число одновременных вызовов (и портов в пуле).
+     * @param borrowTimeoutMillis сколько вызов ждёт свободного порта, прежде чем завершиться ошибкой.
+     * @param idleTimeoutMillis через сколько простоя порт удаляется из пула; 0 - не удалять.
+     */
+    public PortPool(Factory factory, int maxPorts, long borrowTimeoutMillis, long idleTimeoutMillis) {
+        if (factory == null)
+            throw new IllegalArgumentException("Factory cannot be null");
+        if (maxPorts < 1)
+            throw new IllegalArgumentException("maxPorts must be positive");
+        if (borrowTimeoutMillis < 0 || idleTimeoutMillis < 0)
+            throw new IllegalArgumentException("Timeouts cannot be negative");
+        this.factory = factory;
+        this.maxPorts = maxPorts;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.permits = new Semaphore(maxPorts, true);
+        if (idleTimeoutMillis > 0) {
+            evictor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("smev-port-evictor-%d").setDaemon(true).build());
+            long period = Math.max(1000, idleTimeoutMillis / 2);
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Пул портов, созданных по WSDL из состава библиотеки (см. MessageExchangeEndpoint.createBundledPort).
+     */
+    public static PortPool bundled(final String endpointAddress, int maxPorts,
+                                   final int connectTimeoutMillis, final int requestTimeoutMillis) {
+        return new PortPool(new Factory() {
+            @Override
+            public SMEVMessageExchangePortType create() throws WebServiceClientException {
+                return MessageExchangeEndpoint.createBundledPort(endpointAddress, connectTimeoutMillis, requestTimeoutMillis);
+            }
+        }, maxPorts, Math.max(requestTimeoutMillis, 60 * 1000), 5 * 60 * 1000);
+    }
+
+    /**
+     * Включить keep-alive HttpURLConnection и задать число простаивающих соединений, сохраняемых на узел
+     * (системные свойства http.keepAlive и http.maxConnections; по умолчанию в JDK - 5).
+     * JDK читает эти свойства один раз, поэтому метод нужно вызвать до первого HTTP-вызова в процессе;
+     * значения, заданные в командной строке JVM, не переопределяются.
+     */
+    public static void configureKeepAlive(int maxConnectionsPerHost) {
+        if (System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "true");
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+        }
+    }
+
+    /**
+     * @return порт, каждый вызов которого выполняется на порту из пула. Потокобезопасен.
+     *  Если свободный порт не освободился за borrowTimeout, вызов завершается WebServiceException
+     *  (MessageExchangeEndpoint оборачивает её в WebServiceClientException).
+     *  Порт реализует BindingProvider: свойства, заданные в его контексте запроса, переносятся
+     *  во все порты пула, в том числе созданные позже (см. FanOutRequestContext).
+     */
+    public SMEVMessageExchangePortType asPort() {
+        return (SMEVMessageExchangePortType) Proxy.newProxyInstance(
+            SMEVMessageExchangePortType.class.getClassLoader(),
+            new Class<?>[]{SMEVMessageExchangePortType.class, BindingProvider.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class) {
+                        if ("equals".equals(method.getName()))
+                            return proxy == args[0];
+                        return method.invoke(PortPool.this, args);
+                    }
+                    if (method.getDeclaringClass() == BindingProvider.class) {
+                        if ("getBinding".equals(method.getName()) && requestContext.anyTarget() == null) {
+                            // Binding одинаков у всех портов пула; нужен хотя бы один созданный порт.
+                            release(borrow());
+                        }
+                        return requestContext.invokeBindingProvider(method);
+                    }
+                    if (Response.class.isAssignableFrom(method.getReturnType()))
+                        return callPolling(method, args);
+                    if (Future.class.isAssignableFrom(method.getReturnType()))
+                        return callAsync(method, args);
+                    Entry entry = borrow();
+                    try {
+                        return method.invoke(entry.port, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    } finally {
+                        release(entry);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Асинхронный вызов с AsyncHandler: порт возвращается в пул перед вызовом обработчика,
+     * либо при успешной отмене вызова.
+     */
+    @SuppressWarnings("unchecked")
+    private Object callAsync(Method method, Object[] args) throws Throwable {
+        final Lease lease = new Lease(borrow());
+        AsyncHandler<Object> handler = (AsyncHandler<Object>) args[args.length - 1];
+        final Future<?> call = invokeAsync(lease, method, args, handler);
+        return new Future<Object>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = call.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    // Обработчик отменённого вызова может и не быть вызван.
+                    lease.release();
+                }
+                return cancelled;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return call.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return call.isDone();
+            }
+
+            @Override
+            public Object get() throws InterruptedException, ExecutionException {
+                return call.get();
+            }
+
+            @Override
+            public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+                return call.get(timeout, unit);
+            }
+        };
+    }
+
+    /**
+     * Асинхронный вызов без обработчика (возвращает Response): выполняется через вариант метода с AsyncHandler.
+     */
+    private Object callPolling(Method method, Object[] args) throws Throwable {
+        Class<?>[] types = Arrays.copyOf(method.getParameterTypes(), method.getParameterTypes().length + 1);
+        types[types.length - 1] = AsyncHandler.class;
+        Method withHandler = SMEVMessageExchangePortType.class.getMethod(method.getName(), types);
+        Object[] handlerArgs = args == null ? new Object[1] : Arrays.copyOf(args, args.length + 1);
+        Lease lease = new Lease(borrow());
+        final PooledResponse response = new PooledResponse(lease);
+        response.call = invokeAsync(lease, withHandler, handlerArgs, new AsyncHandler<Object>() {
+            @Override
+            public void handleResponse(Response<Object> result) {
+                response.complete(result);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Вызвать метод с AsyncHandler на порту из пула, подставив обработчик, возвращающий порт в пул.
+     */
+    private Future<?> invokeAsync(final Lease lease, Method method, Object[] args, final AsyncHandler<Object> handler) throws Throwable {
+        Object[] pooledArgs = args.clone();
+        pooledArgs[pooledArgs.length - 1] = new AsyncHandler<Object>() {
+            @Override
+            public void handleResponse(Response<Object> response) {
+                lease.release();
+                if (handler != null) {
+                    handler.handleResponse(response);
+                }
+            }
+        };
+        try {
+            return (Future<?>) method.invoke(lease.entry.port, pooledArgs);
+        } catch (InvocationTargetException ex) {
+            lease.release();
+            throw ex.getCause();
+        } catch (RuntimeException | Error ex) {
+            lease.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Заранее создать порты и открыть HTTP-соединения, чтобы первые вызовы не тратили время
+     * на установление TCP/TLS-соединений. Соединения открываются параллельно запросом GET на адрес сервиса
+     * и после чтения ответа остаются в кэше keep-alive. Соединение и ответ ждутся не дольше таймаутов порта
+     * и не дольше 10 секунд: недоступный узел не задерживает вызывающего.
+     * @param connections сколько портов и соединений подготовить; не больше maxPorts. 0 и меньше - ничего не делать.
+     * @return число успешно открытых соединений.
+     */
+    public int warmUp(int connections) throws WebServiceClientException {
+        int count = Math.min(connections, maxPorts);
+        if (count <= 0)
+            return 0;
+        List<Entry> entries = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                entries.add(borrow());
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(count,
+                new ThreadFactoryBuilder().setNameFormat("smev-port-warmup-%d").setDaemon(true).build());
+            try {
+                List<Future<Boolean>> results = new ArrayList<>(count);
+                for (final Entry entry : entries) {
+                    results.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return openConnection(entry.port);
+                        }
+                    }));
+                }
+                int opened = 0;
+                for (Future<Boolean> result : results) {
+                    if (result.get()) {
+                        opened++;
+                    }
+                }
+                logger.info("Port pool warmed up: {} of {} connections opened", opened, count);
+                return opened;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new WebServiceClientException(ex);
+            } catch (ExecutionException ex) {
+                throw new WebServiceClientException(ex.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        } catch (WebServiceException ex) {
+            throw new WebServiceClientException(ex);
+        } finally {
+            for (Entry entry : entries) {
+                release(entry);
+            }
+        }
+    }
+
+    private static boolean openConnection(SMEVMessageExchangePortType port) {
+        Map<String, Object> context = ((BindingProvider) port).getRequestContext();
+        Object address = context.get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+        if (address == null)
+            return false;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(address.toString()).openConnection();
+            connection.setConnectTimeout(warmUpTimeout(context.get("com.sun.xml.ws.connect.timeout")));
+            connection.setReadTimeout(warmUpTimeout(context.get("com.sun.xml.ws.request.timeout")));
+            InputStream input = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (input != null) {
+                // Ответ дочитывается до конца, иначе соединение не вернётся в кэш keep-alive.
+                try {
+                    byte[] buffer = new byte[4096];
+                    while (input.read(buffer) >= 0) {
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            logger.warn("Cannot open connection to {}: {}", address, ex.toString());
+            return false;
+        }
+    }
+
+    /**
+     * @param portTimeout таймаут из контекста запроса порта (Integer, мс), либо null.
+     */
+    private static int warmUpTimeout(Object portTimeout) {
+        int millis = portTimeout instanceof Number ? ((Number) portTimeout).intValue() : 0;
+        return millis > 0 ? Math.min(millis, WARM_UP_TIMEOUT) : WARM_UP_TIMEOUT;
+    }
+
+    public Stats getStats() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        return new Stats(maxPorts, idleCount, maxPorts - permits.availablePermits(), created.get(), evicted.get(),
+            calls.get(), waits.get(), TimeUnit.NANOSECONDS.toMillis(waitNanos.get()));
+    }
+
+    /**
+     * Закрыть пул: остановить удаление простаивающих портов и отбросить их.
+     * Выполняющиеся вызовы завершаются, новые завершаются ошибкой.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        synchronized (idle) {
+            idle.clear();
+        }
+    }
+
+    private Entry borrow() throws WebServiceException {
+        if (closed)
+            throw new WebServiceException("Port pool is closed");
+        calls.incrementAndGet();
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                boolean acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+                waitNanos.addAndGet(System.nanoTime() - start);
+                if (!acquired)
+                    throw new WebServiceException("No free SMEV port in pool within " + borrowTimeoutMillis + " ms");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new WebServiceException("Interrupted while waiting for SMEV port", ex);
+            }
+        }
+        try {
+            Entry entry;
+            synchronized (idle) {
+                entry = idle.pollFirst();
+            }
+            if (entry == null) {
+                entry = new Entry(factory.create());
+                requestContext.addTarget(entry.port);
+                created.incrementAndGet();
+            }
+            return entry;
+        } catch (WebServiceClientException | RuntimeException ex) {
+            permits.release();
+            throw ex instanceof WebServiceException ? (WebServiceException) ex : new WebServiceException(ex);
+        }
+    }
+
+    private void release(Entry entry) {
+        entry.lastUsedNanos = System.nanoTime();
+        if (!closed) {
+            synchronized (idle) {
+                idle.addFirst(entry);
+            }
+        }
+        permits.release();
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        synchronized (idle) {
+            // Давно простаивающие порты - в конце очереди.
+            for (Iterator<Entry> it = idle.descendingIterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (now - entry.lastUsedNanos < idleTimeoutNanos)
+                    break;
+                requestContext.removeTarget(entry.port);
+                it.remove();
+                evicted.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestRequest;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendResponseRequest;
+import ru.voskhod.smev.message_exchange_service_client.impl.InAttachments;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Подписанное ЭП-ОВ сообщение, готовое к передаче в СМЭВ.
+ * Создаётся методами MessageExchangeEndpoint.prepareRequest / prepareResponse и передаётся методом
+ * MessageExchangeEndpoint.send. Вложения к этому моменту уже обработаны: большие закачаны на FTP,
+ * заголовки всех вложений подписаны. Повторная передача того же объекта не требует повторной подписи.
+ * <p/>
+ * Объект неизменяем; JAXB-представление, возвращаемое getRequest / getResponse, изменять нельзя -
+ * это нарушит ЭП-ОВ.
+ * <p/>
+ * Если вложения прочитаны в спул (MessageExchangeEndpoint.setAttachmentSpoolThreshold), сообщение держит
+ * их временные файлы до {@link #close()}: закройте его после последней передачи. Методы отправки
+ * MessageExchangeEndpoint, которые сами готовят сообщение, закрывают его по завершении передачи.
+ */
+public final class PreparedMessage implements Closeable {
+
+    public enum Kind {
+        REQUEST, RESPONSE
+    }
+
+    private final String messageId;
+    private final SendRequestRequest request;
+    private final SendResponseRequest response;
+    private final Element signedData;
+    private final InAttachments attachments;
+
+    PreparedMessage(SendRequestRequest request) {
+        this(request, null);
+    }
+
+    PreparedMessage(SendResponseRequest response) {
+        this(response, null);
+    }
+
+    PreparedMessage(SendRequestRequest request, Element signedData) {
+        this(request, signedData, null);
+    }
+
+    PreparedMessage(SendResponseRequest response, Element signedData) {
+        this(response, signedData, null);
+    }
+
+    /**
+     * @param signedData DOM-представление SenderProvidedRequestData, по которому вычислена ЭП-ОВ.
+     * @param attachments обработанные вложения, спулы которых освобождаются при закрытии; может быть null.
+     */
+    PreparedMessage(SendRequestRequest request, Element signedData, InAttachments attachments) {
+        this.messageId = request.getSenderProvidedRequestData().getMessageID();
+        this.request = request;
+        this.response = null;
+        this.signedData = signedData;
+        this.attachments = attachments;
+    }
+
+    /**
+     * @param signedData DOM-представление SenderProvidedResponseData, по которому вычислена ЭП-ОВ.
+     * @param attachments обработанные вложения, спулы которых освобождаются при закрытии; может быть null.
+     */
+    PreparedMessage(SendResponseRequest response, Element signedData, InAttachments attachments) {
+        this.messageId = response.getSenderProvidedResponseData().getMessageID();
+        this.request = null;
+        this.response = response;
+        this.signedData = signedData;
+        this.attachments = attachments;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public Kind getKind() {
+        return request != null ? Kind.REQUEST : Kind.RESPONSE;
+    }
+
+    /**
+     * @return параметры операции SendRequest, либо null, если это ответ.
+     */
+    public SendRequestRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return параметры операции SendResponse, либо null, если это запрос.
+     */
+    public SendResponseRequest getResponse() {
+        return response;
+    }
+
+    /**
+     * @return подписанный ЭП-ОВ DOM, который {@link DispatchTransport} кладёт в SOAP-конверт без повторного
+     *  маршаллинга; null, если сообщение подготовлено без DispatchTransport или прочитано из потока.
+     */
+    Element getSignedData() {
+        return signedData;
+    }
+
+    /**
+     * Освободить спулы вложений. После этого сообщение с вложениями из спула нельзя ни передать,
+     * ни записать методом {@link #writeTo}. Повторный вызов ничего не делает.
+     */
+    @Override
+    public void close() {
+        if (attachments != null) {
+            attachments.release();
+        }
+    }
+
+    /**
+     * Записать сообщение в поток в сжатом виде (gzip поверх XML).
+     * Содержимое вложений, передаваемых напрямую (не через FTP), записывается в base64 внутри XML,
+     * поэтому такие вложения к моменту записи должны быть доступны для чтения.
+     * Поток не закрывается.
+     */
+    public void writeTo(OutputStream output) throws IOException, ClientSideProcessingException {
+        GZIPOutputStream gzip = new GZIPOutputStream(new NonClosingOutputStream(output));
+        try {
+            JAXBPool pool = JAXBPool.forPackage(JAXBPool.TYPES_PACKAGE);
+            Marshaller marshaller = pool.acquireMarshaller();
+            try {
+                marshaller.marshal(request != null ? request : response, gzip);
+            } finally {
+                pool.release(marshaller);
+            }
+        } catch (JAXBException ex) {
+            throw new ClientSideProcessingException(ex);
+        }
+        gzip.close();
+    }
+
+    /**
+     * Прочитать сообщение, ранее записанное методом {@link #writeTo(OutputStream)}.
+     * Поток не закрывается.
+     */
+    public static PreparedMessage readFrom(InputStream input) throws IOException, ClientSideProcessingException {
+        Object message;
+        try {
+            JAXBPool pool = JAXBPool.forPackage(JAXBPool.TYPES_PACKAGE);
+            Unmarshaller unmarshaller = pool.acquireUnmarshaller();
+            try {
+                message = unmarshaller.unmarshal(new GZIPInputStream(input));
+            } finally {
+                pool.release(unmarshaller);
+            }
+        } catch (JAXBException ex) {
+            throw new ClientSideProcessingException(ex);
+        }
+        if (message instanceof SendRequestRequest) {
+            return new PreparedMessage((SendRequestRequest) message);
+        } else if (message instanceof SendResponseRequest) {
+            return new PreparedMessage((SendResponseRequest) message);
+        } else {
+            throw new ClientSideProcessingException("Unexpected prepared message content: " + message);
+        }
+    }
+
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
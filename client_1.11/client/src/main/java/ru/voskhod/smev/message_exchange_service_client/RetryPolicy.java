@@ -0,0 +1,206 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.DestinationOverflowException;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVFailureException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Политика повтора вызовов СМЭВ.
+ * Ошибки делятся на классы ({@link FaultClass}); для каждого класса задаётся своя задержка
+ * ({@link Backoff}) - экспоненциальная, со случайным разбросом, чтобы клиенты, получившие ошибку
+ * одновременно, не повторяли вызов тоже одновременно. Классы, для которых задержка не задана, не повторяются.
+ * <p/>
+ * Объект неизменяем; методы {@link #retry(FaultClass, Backoff)} возвращают новую политику.
+ */
+public final class RetryPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private static final String HTTP_STATUS_CODE_KEY = "http.status.code";
+
+    public enum FaultClass {
+        /**
+         * Сбой транспорта: обрыв или таймаут соединения, HTTP-ошибка шлюза (502, 503, 504).
+         * Остальные HTTP-статусы (400, 401, 403, 404, 413 и т.п.) - PERMANENT.
+         */
+        TRANSIENT,
+        /**
+         * SMEVFailureException - сбой в работе СМЭВ.
+         */
+        SMEV_FAILURE,
+        /**
+         * DestinationOverflowException - переполнена очередь получателя.
+         */
+        DESTINATION_OVERFLOW,
+        /**
+         * Прочие ошибки (неверный контент, нет доступа и т.п.): повтор не поможет.
+         */
+        PERMANENT;
+
+        public static FaultClass of(Throwable ex) {
+            if (ex instanceof SMEVFailureException) {
+                return SMEV_FAILURE;
+            } else if (ex instanceof DestinationOverflowException) {
+                return DESTINATION_OVERFLOW;
+            } else if (ex instanceof WebServiceClientException) {
+                for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException || isGatewayError(cause)) {
+                        return TRANSIENT;
+                    }
+                }
+            }
+            return PERMANENT;
+        }
+
+        /**
+         * Metro выбрасывает ClientTransportException с ключом http.status.code и кодом в первом аргументе
+         * на любой ответ с HTTP-статусом ошибки без SOAP-конверта.
+         */
+        private static boolean isGatewayError(Throwable ex) {
+            if (!(ex instanceof ClientTransportException))
+                return false;
+            ClientTransportException transportException = (ClientTransportException) ex;
+            Object[] arguments = transportException.getArguments();
+            if (!HTTP_STATUS_CODE_KEY.equals(transportException.getKey()) || arguments == null || arguments.length == 0)
+                return false;
+            int code;
+            try {
+                code = Integer.parseInt(String.valueOf(arguments[0]).trim());
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+            return code == HttpURLConnection.HTTP_BAD_GATEWAY || code == HttpURLConnection.HTTP_UNAVAILABLE
+                || code == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+        }
+    }
+
+
+    /**
+     * Параметры повтора: число попыток (включая первую) и экспоненциальная задержка между ними.
+     */
+    public static final class Backoff {
+
+        private final int maxAttempts;
+        private final long initialDelayMillis;
+        private final long maxDelayMillis;
+        private final double multiplier;
+
+        public Backoff(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double multiplier) {
+            if (maxAttempts < 1)
+                throw new IllegalArgumentException("maxAttempts must be positive");
+            if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis)
+                throw new IllegalArgumentException("Invalid delay bounds");
+            if (multiplier < 1)
+                throw new IllegalArgumentException("multiplier must be at least 1");
+            this.maxAttempts = maxAttempts;
+            this.initialDelayMillis = initialDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            this.multiplier = multiplier;
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public long getInitialDelayMillis() {
+            return initialDelayMillis;
+        }
+
+        public long getMaxDelayMillis() {
+            return maxDelayMillis;
+        }
+
+        public double getMultiplier() {
+            return multiplier;
+        }
+
+        /**
+         * Задержка перед попыткой attempt + 1: половина - детерминированная, половина - случайная.
+         * @param attempt номер неудавшейся попытки, начиная с 1.
+         */
+        long delayAfter(int attempt) {
+            double delay = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, attempt - 1));
+            long half = (long) (delay / 2);
+            return half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+        }
+    }
+
+    /**
+     * Без повторов.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(new EnumMap<FaultClass, Backoff>(FaultClass.class));
+
+    /**
+     * Рекомендуемая политика: транспортные сбои и сбои СМЭВ повторяются быстро,
+     * переполнение очереди получателя - с долгими паузами.
+     */
+    public static final RetryPolicy DEFAULT = NONE
+        .retry(FaultClass.TRANSIENT, new Backoff(4, 200, 5000, 2))
+        .retry(FaultClass.SMEV_FAILURE, new Backoff(3, 1000, 10000, 3))
+        .retry(FaultClass.DESTINATION_OVERFLOW, new Backoff(3, 5000, 60000, 4));
+
+    private final Map<FaultClass, Backoff> backoffs;
+
+    private RetryPolicy(EnumMap<FaultClass, Backoff> backoffs) {
+        this.backoffs = backoffs;
+    }
+
+    /**
+     * @return копия политики, в которой ошибки класса faultClass повторяются с указанными параметрами;
+     *  null вместо backoff отключает повтор этого класса.
+     */
+    public RetryPolicy retry(FaultClass faultClass, Backoff backoff) {
+        if (faultClass == FaultClass.PERMANENT && backoff != null)
+            throw new IllegalArgumentException("Permanent faults cannot be retried");
+        EnumMap<FaultClass, Backoff> copy = new EnumMap<>(FaultClass.class);
+        copy.putAll(backoffs);
+        if (backoff != null) {
+            copy.put(faultClass, backoff);
+        } else {
+            copy.remove(faultClass);
+        }
+        return new RetryPolicy(copy);
+    }
+
+    /**
+     * @return параметры повтора для класса ошибок, либо null, если он не повторяется.
+     */
+    public Backoff getBackoff(FaultClass faultClass) {
+        return backoffs.get(faultClass);
+    }
+
+    /**
+     * Выдержать паузу перед следующей попыткой, либо выбросить ex, если попытки исчерпаны
+     * или ошибка не повторяется. Прерывание потока во время паузы также приводит к выбросу ex
+     * (с сохранением флага прерывания).
+     * @param attempt номер неудавшейся попытки, начиная с 1.
+     * @param deadline срок отправки: если повтор не успеет до его истечения, выбрасывается ex; может быть null.
+     */
+    <T extends Exception> void awaitRetry(int attempt, T ex, Deadline deadline) throws T {
+        FaultClass faultClass = FaultClass.of(ex);
+        Backoff backoff = backoffs.get(faultClass);
+        if (backoff == null || attempt >= backoff.maxAttempts) {
+            throw ex;
+        }
+        long delay = backoff.delayAfter(attempt);
+        if (deadline != null && deadline.remainingMillis() <= delay) {
+            // Повтор не успеет завершиться до истечения срока отправки.
+            throw ex;
+        }
+        logger.warn("Attempt {} failed with {} fault, retrying in {} ms: {}", attempt, faultClass, delay, ex.toString());
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Реестр XML-схем бизнес-данных для проверки сообщений до подписания.
+ * Схемы компилируются один раз при регистрации и хранятся по целевому пространству имён;
+ * объекты Validator, которые не потокобезопасны, берутся из пула.
+ * <p/>
+ * Реестр задаётся методом MessageExchangeEndpoint.setSchemaRegistry. Сообщение, не прошедшее проверку,
+ * отвергается с ClientSideProcessingException до ЭП-СП, ЭП-ОВ и закачки вложений - вместо
+ * InvalidContentException от СМЭВ после полного цикла отправки.
+ */
+public final class SchemaRegistry {
+
+    private static final int DEFAULT_POOL_SIZE = 16;
+
+    private static final class Entry {
+        final Schema schema;
+        final BlockingQueue<Validator> validators;
+
+        Entry(Schema schema, int poolSize) {
+            this.schema = schema;
+            this.validators = new ArrayBlockingQueue<>(poolSize);
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> schemas = new ConcurrentHashMap<>();
+    private final SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    private final int poolSize;
+    private volatile boolean strict = false;
+
+    public SchemaRegistry() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize сколько объектов Validator на схему хранить для повторного использования.
+     */
+    public SchemaRegistry(int poolSize) {
+        if (poolSize < 1)
+            throw new IllegalArgumentException("poolSize must be positive");
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Зарегистрировать схему. Пространство имён берётся из атрибута targetNamespace схемы.
+     * Импортируемые схемы разрешаются относительно url.
+     */
+    public void register(URL url) throws ClientSideProcessingException {
+        register(readTargetNamespace(url), new StreamSource(url.toExternalForm()));
+    }
+
+    /**
+     * Зарегистрировать схему для пространства имён, заменив ранее зарегистрированную.
+     * @param sources схема и, при необходимости, схемы, на которые она ссылается.
+     */
+    public void register(String namespace, Source... sources) throws ClientSideProcessingException {
+        Schema schema;
+        try {
+            // SchemaFactory не потокобезопасна, скомпилированная Schema - потокобезопасна.
+            synchronized (schemaFactory) {
+                schema = schemaFactory.newSchema(sources);
+            }
+        } catch (SAXException ex) {
+            throw new ClientSideProcessingException("Cannot compile schema for namespace " + namespace, ex);
+        }
+        schemas.put(namespace, new Entry(schema, poolSize));
+    }
+
+    public void unregister(String namespace) {
+        schemas.remove(namespace);
+    }
+
+    public Set<String> getNamespaces() {
+        return new HashSet<>(schemas.keySet());
+    }
+
+    public boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * @param strict если true, бизнес-данные из незарегистрированного пространства имён отвергаются
+     *  (как BusinessDataTypeIsNotSupportedException в СМЭВ); по умолчанию - пропускаются без проверки.
+     */
+    public void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    /**
+     * Проверить бизнес-данные по схеме их пространства имён.
+     * @throws ClientSideProcessingException данные не соответствуют схеме, либо схема не зарегистрирована
+     *  в строгом режиме.
+     */
+    public void validate(Element content) throws ClientSideProcessingException {
+        if (content == null)
+            return;
+        String namespace = content.getNamespaceURI() == null ? "" : content.getNamespaceURI();
+        Entry entry = schemas.get(namespace);
+        if (entry == null) {
+            if (strict)
+                throw new ClientSideProcessingException("No schema registered for namespace " + namespace);
+            return;
+        }
+        Validator validator = entry.validators.poll();
+        if (validator == null) {
+            validator = entry.schema.newValidator();
+        }
+        try {
+            validator.validate(new DOMSource(content));
+        } catch (SAXParseException ex) {
+            throw new ClientSideProcessingException(
+                "Business data {" + namespace + "}" + content.getLocalName() + " is invalid: " + ex.getMessage(), ex
+            );
+        } catch (SAXException | IOException ex) {
+            throw new ClientSideProcessingException(ex);
+        } finally {
+            validator.reset();
+            entry.validators.offer(validator);
+        }
+    }
+
+    private static String readTargetNamespace(URL url) throws ClientSideProcessingException {
+        try (InputStream input = url.openStream()) {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+            try {
+                reader.nextTag();
+                String namespace = reader.getAttributeValue(null, "targetNamespace");
+                return namespace == null ? "" : namespace;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException ex) {
+            throw new ClientSideProcessingException("Cannot read schema " + url, ex);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Полоса отправки: собственный конвейер потоков, собственный порт и ограничение числа одновременно
+ * отправляемых сообщений. Полосы позволяют развести небольшие интерактивные сообщения и сообщения
+ * с большими вложениями, закачиваемыми на FTP, так чтобы последние не занимали ресурсы первых.
+ * <p/>
+ * Полосы задаются методом MessageExchangeEndpoint.setSendLanes. Сообщение направляется в полосу
+ * по явно указанному приоритету, либо, если приоритет не указан, по суммарному размеру вложений:
+ * если он больше порога прямой передачи (directLimit), сообщение идёт в полосу BULK.
+ */
+public final class SendLane {
+
+    public enum Priority {
+        INTERACTIVE, BULK
+    }
+
+    private final String name;
+    private final SendPipeline pipeline;
+    private final SMEVMessageExchangePortType port;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+
+    /**
+     * @param pipeline конвейер, на котором полоса выполняет асинхронную отправку.
+     * @param port порт для передачи сообщений полосы; если null, используется порт точки доступа.
+     *  Отдельный порт - это отдельные HTTP-соединения.
+     * @param maxConcurrent сколько сообщений полосы может одновременно готовиться и передаваться,
+     *  считая закачку вложений на FTP.
+     */
+    public SendLane(String name, SendPipeline pipeline, SMEVMessageExchangePortType port, int maxConcurrent) {
+        if (pipeline == null)
+            throw new IllegalArgumentException("Pipeline cannot be null");
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        this.name = name;
+        this.pipeline = pipeline;
+        this.port = port;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public SendPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public SMEVMessageExchangePortType getPort() {
+        return port;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return число сообщений, которые отправляются по полосе в данный момент.
+     */
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    void acquire() throws ClientSideProcessingException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ClientSideProcessingException("Interrupted while waiting for send lane " + name, ex);
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * @return место в полосе для асинхронной отправки, ещё не занятое.
+     */
+    Permit newPermit() {
+        return new Permit(this);
+    }
+
+    /**
+     * Место в полосе, которое занимает задача подготовки, а освобождает завершение future отправки.
+     * Эти два события могут произойти в любом порядке (future отменена, пока задача ждёт места),
+     * поэтому владение передаётся через compareAndSet: место освобождает та сторона, которая пришла второй.
+     */
+    static final class Permit {
+
+        private static final int FREE = 0;
+        private static final int HELD = 1;
+        private static final int CLOSED = 2;
+
+        private final SendLane lane;
+        private final AtomicInteger state = new AtomicInteger(FREE);
+
+        private Permit(SendLane lane) {
+            this.lane = lane;
+        }
+
+        /**
+         * Занять место; вызывается задачей подготовки.
+         * @throws ClientSideProcessingException отправка уже завершена (отменена), место не занято.
+         */
+        void acquire() throws ClientSideProcessingException {
+            if (state.get() == CLOSED)
+                throw new ClientSideProcessingException("Send cancelled before entering lane " + lane.name);
+            lane.acquire();
+            if (!state.compareAndSet(FREE, HELD)) {
+                // Отправка завершилась, пока ждали места: его уже некому освободить.
+                lane.release();
+                throw new ClientSideProcessingException("Send cancelled before entering lane " + lane.name);
+            }
+        }
+
+        /**
+         * Отправка завершена; освободить место, если оно занято. Повторные вызовы ничего не делают.
+         */
+        void close() {
+            if (state.getAndSet(CLOSED) == HELD) {
+                lane.release();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,123 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Конвейер асинхронной отправки сообщений.
+ * Подготовка сообщения (обработка вложений, ЭП-СП, ЭП-ОВ) и его передача в СМЭВ
+ * выполняются на разных пулах потоков, поэтому подпись сообщения N
+ * идёт параллельно с сетевым обменом для сообщения N-1.
+ * Оба пула ограничены по числу потоков и длине очереди; при переполнении очереди
+ * вызывающий поток ждёт места в ней, что притормаживает источник сообщений.
+ * После {@link #shutdown()} новые задачи не принимаются: их future завершаются RejectedExecutionException.
+ */
+public final class SendPipeline {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Ждать места в очереди, пока пул не остановлен. Задача не выполняется в вызывающем потоке:
+     * подпись ГОСТ или вызов СМЭВ в потоке источника сообщений (или в потоке подготовки - для задачи передачи)
+     * задержали бы его на всё время отправки.
+     */
+    private static final RejectedExecutionHandler WAIT_FOR_QUEUE = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            try {
+                while (!executor.isShutdown()) {
+                    if (executor.getQueue().offer(task, 100, TimeUnit.MILLISECONDS)) {
+                        // Пул мог остановиться, пока задача вставала в очередь, и её некому будет выполнить.
+                        if (executor.isShutdown() && executor.getQueue().remove(task))
+                            break;
+                        return;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for a place in the send queue", ex);
+            }
+            throw new RejectedExecutionException("Send pipeline is shut down");
+        }
+    };
+
+    private final ListeningExecutorService prepareExecutor;
+    private final ListeningExecutorService transmitExecutor;
+
+    public SendPipeline(ExecutorService prepareExecutor, ExecutorService transmitExecutor) {
+        if (prepareExecutor == null)
+            throw new IllegalArgumentException("Prepare executor cannot be null");
+        if (transmitExecutor == null)
+            throw new IllegalArgumentException("Transmit executor cannot be null");
+        this.prepareExecutor = MoreExecutors.listeningDecorator(prepareExecutor);
+        this.transmitExecutor = MoreExecutors.listeningDecorator(transmitExecutor);
+    }
+
+    /**
+     * Конвейер с настройками по умолчанию: по потоку подготовки на ядро,
+     * вчетверо больше потоков передачи, которые большую часть времени ждут ответа СМЭВ.
+     */
+    public static SendPipeline create() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return create(cores, cores * 4, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param prepareThreads число потоков подготовки и подписи сообщений.
+     * @param transmitThreads число потоков передачи сообщений в СМЭВ.
+     * @param queueCapacity длина очереди каждого из пулов.
+     */
+    public static SendPipeline create(int prepareThreads, int transmitThreads, int queueCapacity) {
+        return new SendPipeline(
+            newBoundedExecutor("smev-prepare-%d", prepareThreads, queueCapacity),
+            newBoundedExecutor("smev-transmit-%d", transmitThreads, queueCapacity)
+        );
+    }
+
+    static ExecutorService newBoundedExecutor(String nameFormat, int threads, int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueCapacity),
+            new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+            WAIT_FOR_QUEUE
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    <T> ListenableFuture<T> prepare(Callable<T> task) {
+        return submit(prepareExecutor, task);
+    }
+
+    <T> ListenableFuture<T> transmit(Callable<T> task) {
+        return submit(transmitExecutor, task);
+    }
+
+    private static <T> ListenableFuture<T> submit(ListeningExecutorService executor, Callable<T> task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
+    /**
+     * Остановить пулы потоков. Уже принятые задачи будут выполнены,
+     * future задач, переданных после остановки, завершаются RejectedExecutionException.
+     */
+    public void shutdown() {
+        prepareExecutor.shutdown();
+        transmitExecutor.shutdown();
+    }
+}
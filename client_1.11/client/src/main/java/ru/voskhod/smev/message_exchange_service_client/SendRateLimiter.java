@@ -0,0 +1,135 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import javax.xml.namespace.QName;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Адаптивное ограничение частоты отправки сообщений на стороне клиента.
+ * Частота ведётся отдельно для каждого вида сообщений - полного имени корневого элемента бизнес-данных.
+ * Получатель ответа в ключ не входит: адрес replyTo разовый, и ограничение по нему не накапливало бы
+ * снижение частоты, а только множило бы ограничители.
+ * <p/>
+ * Частота регулируется по схеме AIMD: QuoteLimitExceededException и DestinationOverflowException
+ * уменьшают её вдвое (но не ниже минимальной), каждая успешная отправка увеличивает на
+ * increaseStep / текущая частота, т.е. при непрерывном потоке сообщений - примерно на increaseStep в секунду.
+ * <p/>
+ * Разрешение на отправку берётся до подписания и закачки вложений, поэтому сообщение,
+ * обречённое на отказ по квоте, не тратит ресурсы на криптографию.
+ */
+public final class SendRateLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SendRateLimiter.class);
+
+    // Ключ для сообщений без бизнес-данных.
+    private static final QName NO_CONTENT = new QName("");
+
+    private final double minRate;
+    private final double maxRate;
+    private final double increaseStep;
+    private final long timeoutMillis;
+
+    // Видов сообщений у клиента немного, ограничители не вытесняются.
+    private final ConcurrentMap<QName, Limiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * @param minRate нижняя граница частоты, сообщений в секунду.
+     * @param maxRate верхняя и начальная частота, сообщений в секунду.
+     * @param increaseStep прирост частоты в секунду при успешной отправке.
+     * @param timeoutMillis сколько ждать разрешения на отправку; 0 - отказывать сразу.
+     */
+    public SendRateLimiter(double minRate, double maxRate, double increaseStep, long timeoutMillis) {
+        if (minRate <= 0 || maxRate < minRate)
+            throw new IllegalArgumentException("Invalid rate bounds");
+        if (increaseStep <= 0)
+            throw new IllegalArgumentException("increaseStep must be positive");
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increaseStep = increaseStep;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Получить разрешение на отправку сообщения.
+     * @param content бизнес-данные сообщения; может быть null.
+     * @throws ClientSideProcessingException разрешение не получено за отведённое время.
+     */
+    void acquire(Element content) throws ClientSideProcessingException {
+        QName key = key(content);
+        Limiter limiter = limiter(key);
+        if (!limiter.rateLimiter.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new ClientSideProcessingException("Send rate limit exceeded for " + key + ": " + limiter.rate + " msg/s");
+        }
+    }
+
+    void onSuccess(Element content) {
+        Limiter limiter = limiters.get(key(content));
+        if (limiter == null)
+            return;
+        synchronized (limiter) {
+            if (limiter.rate < maxRate) {
+                limiter.setRate(Math.min(maxRate, limiter.rate + increaseStep / limiter.rate));
+            }
+        }
+    }
+
+    void onThrottled(Element content) {
+        QName key = key(content);
+        Limiter limiter = limiter(key);
+        synchronized (limiter) {
+            limiter.setRate(Math.max(minRate, limiter.rate / 2));
+        }
+        logger.warn("SMEV throttled {}, send rate lowered to {} msg/s", key, limiter.rate);
+    }
+
+    /**
+     * @return текущая частота отправки (сообщений в секунду) по ключам вида "{namespace}name".
+     *  Ключи, по которым ещё не было отправок, отсутствуют.
+     */
+    public Map<String, Double> getRates() {
+        Map<String, Double> rates = new TreeMap<>();
+        for (Map.Entry<QName, Limiter> entry : limiters.entrySet()) {
+            rates.put(entry.getKey().toString(), entry.getValue().rate);
+        }
+        return rates;
+    }
+
+    private Limiter limiter(QName key) {
+        Limiter limiter = limiters.get(key);
+        if (limiter == null) {
+            Limiter created = new Limiter(maxRate);
+            limiter = limiters.putIfAbsent(key, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    private static QName key(Element content) {
+        return content == null ? NO_CONTENT : new QName(content.getNamespaceURI(), content.getLocalName());
+    }
+
+    private static final class Limiter {
+        final RateLimiter rateLimiter;
+        volatile double rate;
+
+        Limiter(double rate) {
+            this.rateLimiter = RateLimiter.create(rate);
+            this.rate = rate;
+        }
+
+        void setRate(double rate) {
+            this.rate = rate;
+            rateLimiter.setRate(rate);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.sun.xml.ws.api.server.Container;
+import com.sun.xml.ws.api.server.ContainerResolver;
+import com.sun.xml.ws.api.server.ThreadLocalContainerResolver;
+import com.sun.xml.ws.assembler.MetroConfigName;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangeService;
+
+import javax.xml.namespace.QName;
+import java.net.URL;
+
+/**
+ * Набор tube-ов Metro, через которые проходит каждый вызов порта.
+ */
+public enum TubelineProfile {
+
+    /**
+     * Тублайн из META-INF/metro.xml клиента: обработчики JAX-WS, валидация, проверка mustUnderstand,
+     * перехватчик, дамп сообщений и транспорт.
+     * Используется по умолчанию.
+     */
+    LEAN(null),
+
+    /**
+     * Полный тублайн Metro из META-INF/metro-full.xml (WS-Addressing, WS-RM, WS-Security и т.д.).
+     * Нужен, только если порт используется вне СМЭВ с политиками WS-*.
+     */
+    FULL("metro-full.xml");
+
+    private static final String METRO_DEFAULT_CONFIG = "metro-default.xml";
+
+    private final String configName;
+
+    TubelineProfile(String configName) {
+        this.configName = configName;
+    }
+
+    /**
+     * Создать модель сервиса, порты которой собираются с тублайном профиля.
+     * Metro читает конфигурацию тублайна из контейнера, текущего при создании сервиса,
+     * поэтому для FULL сервис создаётся внутри контейнера, подменяющего имя конфигурации.
+     */
+    SMEVMessageExchangeService newService(URL wsdl, QName serviceName) {
+        if (configName == null)
+            return new SMEVMessageExchangeService(wsdl, serviceName);
+        ThreadLocalContainerResolver resolver = ContainerResolver.getDefault();
+        Container previous = resolver.enterContainer(new ConfigContainer(resolver.getContainer(), configName));
+        try {
+            return new SMEVMessageExchangeService(wsdl, serviceName);
+        } finally {
+            resolver.exitContainer(previous);
+        }
+    }
+
+    private static final class ConfigContainer extends Container {
+
+        private final Container parent;
+        private final MetroConfigName configName;
+
+        ConfigContainer(Container parent, final String appFileName) {
+            this.parent = parent;
+            this.configName = new MetroConfigName() {
+                @Override
+                public String getDefaultFileName() {
+                    return METRO_DEFAULT_CONFIG;
+                }
+
+                @Override
+                public String getAppFileName() {
+                    return appFileName;
+                }
+            };
+        }
+
+        @Override
+        public <S> S getSPI(Class<S> spiType) {
+            if (spiType == MetroConfigName.class)
+                return spiType.cast(configName);
+            return parent.getSPI(spiType);
+        }
+    }
+}
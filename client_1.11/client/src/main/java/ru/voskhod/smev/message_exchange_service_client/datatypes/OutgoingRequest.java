@@ -0,0 +1,95 @@
+package ru.voskhod.smev.message_exchange_service_client.datatypes;
+
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange_service_client.Deadline;
+import ru.voskhod.smev.message_exchange_service_client.InAttachment;
+import ru.voskhod.smev.message_exchange_service_client.PersonalSigner;
+
+import java.util.List;
+
+/**
+ * Запрос, подготовленный для пакетной отправки через MessageExchangeEndpoint.sendRequests.
+ * Поля - параметры метода MessageExchangeEndpoint.sendRequest; срок отправки задаётся {@link #withDeadline}.
+ */
+public final class OutgoingRequest {
+
+    private final String messageId;
+    private final Element content;
+    private final PersonalSigner signPersonal;
+    private final List<Element> businessProcessMetadata;
+    private final List<InAttachment> attachmentList;
+    private final boolean testMessage;
+    private final Deadline deadline;
+
+    public OutgoingRequest(String messageId,
+                           Element content,
+                           PersonalSigner signPersonal,
+                           List<Element> businessProcessMetadata,
+                           List<InAttachment> attachmentList) {
+        this(messageId, content, signPersonal, businessProcessMetadata, attachmentList, false);
+    }
+
+    public OutgoingRequest(String messageId,
+                           Element content,
+                           PersonalSigner signPersonal,
+                           List<Element> businessProcessMetadata,
+                           List<InAttachment> attachmentList,
+                           boolean testMessage) {
+        this(messageId, content, signPersonal, businessProcessMetadata, attachmentList, testMessage, null);
+    }
+
+    private OutgoingRequest(String messageId,
+                            Element content,
+                            PersonalSigner signPersonal,
+                            List<Element> businessProcessMetadata,
+                            List<InAttachment> attachmentList,
+                            boolean testMessage,
+                            Deadline deadline) {
+        this.messageId = messageId;
+        this.content = content;
+        this.signPersonal = signPersonal;
+        this.businessProcessMetadata = businessProcessMetadata;
+        this.attachmentList = attachmentList;
+        this.testMessage = testMessage;
+        this.deadline = deadline;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public Element getContent() {
+        return content;
+    }
+
+    public PersonalSigner getSignPersonal() {
+        return signPersonal;
+    }
+
+    public List<Element> getBusinessProcessMetadata() {
+        return businessProcessMetadata;
+    }
+
+    public List<InAttachment> getAttachmentList() {
+        return attachmentList;
+    }
+
+    public boolean isTestMessage() {
+        return testMessage;
+    }
+
+    /**
+     * @return срок отправки, либо null.
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return копия с указанным сроком отправки: при его истечении или отмене отправка прекращается
+     *  (хэширование и закачка вложений, подписание, повторы передачи).
+     */
+    public OutgoingRequest withDeadline(Deadline deadline) {
+        return new OutgoingRequest(messageId, content, signPersonal, businessProcessMetadata, attachmentList, testMessage, deadline);
+    }
+}
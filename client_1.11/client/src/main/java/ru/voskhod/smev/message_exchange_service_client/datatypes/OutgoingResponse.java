@@ -0,0 +1,79 @@
+package ru.voskhod.smev.message_exchange_service_client.datatypes;
+
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange_service_client.Deadline;
+import ru.voskhod.smev.message_exchange_service_client.InAttachment;
+import ru.voskhod.smev.message_exchange_service_client.PersonalSigner;
+
+import java.util.List;
+
+/**
+ * Ответ, подготовленный для пакетной отправки через MessageExchangeEndpoint.sendResponses.
+ * Поля - параметры метода MessageExchangeEndpoint.sendResponse; срок отправки задаётся {@link #withDeadline}.
+ */
+public final class OutgoingResponse {
+
+    private final String messageId;
+    private final String replyToAddress;
+    private final Element content;
+    private final PersonalSigner signPersonal;
+    private final List<InAttachment> attachmentList;
+    private final Deadline deadline;
+
+    public OutgoingResponse(String messageId,
+                            String replyToAddress,
+                            Element content,
+                            PersonalSigner signPersonal,
+                            List<InAttachment> attachmentList) {
+        this(messageId, replyToAddress, content, signPersonal, attachmentList, null);
+    }
+
+    private OutgoingResponse(String messageId,
+                             String replyToAddress,
+                             Element content,
+                             PersonalSigner signPersonal,
+                             List<InAttachment> attachmentList,
+                             Deadline deadline) {
+        this.messageId = messageId;
+        this.replyToAddress = replyToAddress;
+        this.content = content;
+        this.signPersonal = signPersonal;
+        this.attachmentList = attachmentList;
+        this.deadline = deadline;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getReplyToAddress() {
+        return replyToAddress;
+    }
+
+    public Element getContent() {
+        return content;
+    }
+
+    public PersonalSigner getSignPersonal() {
+        return signPersonal;
+    }
+
+    public List<InAttachment> getAttachmentList() {
+        return attachmentList;
+    }
+
+    /**
+     * @return срок отправки, либо null.
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return копия с указанным сроком отправки: при его истечении или отмене отправка прекращается
+     *  (хэширование и закачка вложений, подписание, повторы передачи).
+     */
+    public OutgoingResponse withDeadline(Deadline deadline) {
+        return new OutgoingResponse(messageId, replyToAddress, content, signPersonal, attachmentList, deadline);
+    }
+}
@@ -0,0 +1,49 @@
+package ru.voskhod.smev.message_exchange_service_client.datatypes;
+
+/**
+ * Результат отправки одного сообщения из пакета.
+ * Содержит либо метаданные, присвоенные сообщению СМЭВ, либо исключение,
+ * которое было бы выброшено при одиночной отправке.
+ */
+public final class SendResult {
+
+    private final String messageId;
+    private final MessageMetaDataAndSMEVSignature metadata;
+    private final Exception fault;
+
+    private SendResult(String messageId, MessageMetaDataAndSMEVSignature metadata, Exception fault) {
+        this.messageId = messageId;
+        this.metadata = metadata;
+        this.fault = fault;
+    }
+
+    public static SendResult success(String messageId, MessageMetaDataAndSMEVSignature metadata) {
+        return new SendResult(messageId, metadata, null);
+    }
+
+    public static SendResult failure(String messageId, Exception fault) {
+        return new SendResult(messageId, null, fault);
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public boolean isSuccess() {
+        return fault == null;
+    }
+
+    /**
+     * @return метаданные сообщения, либо null, если отправка не удалась.
+     */
+    public MessageMetaDataAndSMEVSignature getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return исключение, из-за которого сообщение не было отправлено, либо null при успехе.
+     */
+    public Exception getFault() {
+        return fault;
+    }
+}
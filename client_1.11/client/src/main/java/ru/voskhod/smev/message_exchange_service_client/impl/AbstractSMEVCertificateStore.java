@@ -5,8 +5,10 @@ import ru.voskhod.smev.message_exchange_service_client.SMEVCertificateStore;
 import java.io.IOException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Абстрактный класс - хранилище, в котором лежат сертификаты СМЭВ.
@@ -18,9 +20,10 @@ public abstract class AbstractSMEVCertificateStore extends SMEVCertificateStore
 
     private static final long CACHE_UPDATE_INTERVAL_MILLIS = 1000;
 
-    private final List<X509Certificate> certificateCache = new ArrayList<>();
-    private final List<X509Certificate> negativeCertificateCache = new ArrayList<>();
-    private long lastCacheUpdate = 0;
+    // Кэш заменяется целиком (copy-on-write), поэтому проверка известного сертификата не требует блокировки.
+    private volatile Set<X509Certificate> certificateCache = Collections.emptySet();
+    private volatile Set<X509Certificate> negativeCertificateCache = Collections.emptySet();
+    private volatile long lastCacheUpdate = 0;
 
     /**
      * Известен ли такой сертификат СМЭВ.
@@ -30,28 +33,36 @@ public abstract class AbstractSMEVCertificateStore extends SMEVCertificateStore
      * @throws java.security.cert.CertificateException невозможно преобразовать сертификат из бинарного формата в Java-объект.
      */
     public boolean isKnown(X509Certificate certificate) throws IOException, CertificateException {
+        if (certificateCache.contains(certificate))
+            return true;
+        if (isRecentlyUnknown(certificate))
+            return false;
+
         // Может случиться так, что по ходу работы приложения в хранилище добавили сертификат.
         // Поэтому при отсутствии его в кэше пытаемся обновить кэш.
         synchronized (this) {
+            // Пока ждали блокировку, кэш мог обновить другой поток.
             if (certificateCache.contains(certificate))
                 return true;
-            long now = System.currentTimeMillis();
-            if (negativeCertificateCache.contains(certificate) && now - lastCacheUpdate <= CACHE_UPDATE_INTERVAL_MILLIS)
+            if (isRecentlyUnknown(certificate))
                 return false;
 
-            certificateCache.clear();
-            negativeCertificateCache.clear();
-            certificateCache.addAll(getSMEVCertificates());
+            Set<X509Certificate> known = new HashSet<>(getSMEVCertificates());
+            boolean found = known.contains(certificate);
+            certificateCache = known;
+            negativeCertificateCache = found
+                ? Collections.<X509Certificate>emptySet()
+                : Collections.singleton(certificate);
             lastCacheUpdate = System.currentTimeMillis();
-
-            boolean found = certificateCache.contains(certificate);
-            if (!found) {
-                negativeCertificateCache.add(certificate);
-            }
             return found;
         }
     }
 
+    private boolean isRecentlyUnknown(X509Certificate certificate) {
+        return negativeCertificateCache.contains(certificate)
+            && System.currentTimeMillis() - lastCacheUpdate <= CACHE_UPDATE_INTERVAL_MILLIS;
+    }
+
     /**
      * Прочитать сертификаты СМЭВ из долговременной памяти.
      * @return список сертификатов.
@@ -8,10 +8,11 @@ import ru.voskhod.crypto.PipeInputStream;
 import ru.voskhod.crypto.exceptions.SignatureProcessingException;
 import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.*;
 import ru.voskhod.smev.message_exchange_service_client.*;
+import ru.voskhod.smev.message_exchange_service_client.util.AttachmentSpool;
 
-import javax.activation.DataHandler;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,25 +22,60 @@ public final class AttachmentBuilder {
 
     private static final int MAX_ATTEMPTS = 3;
 
+    /**
+     * Значение порога спула, при котором однопроходный режим выключен (выключает его любое отрицательное).
+     */
+    public static final long NO_SPOOL = -1;
+
     private final String ftpAddress;
     private final SignatureOperationsClient ovSigner;
     private final long directLimit;
+    private final long spoolThreshold;
+    private final Deadline deadline;
 
     private final List<RefAttachmentHeaderType> ftpHeaders = new ArrayList<>();
     private final List<AttachmentContentType> directContents = new ArrayList<>();
     private final List<AttachmentHeaderType> directHeaders = new ArrayList<>();
+    private final List<AttachmentSpool> spools = new ArrayList<>();
 
     public AttachmentBuilder(String ftpAddress, SignatureOperationsClient ovSigner, long directLimit) {
+        this(ftpAddress, ovSigner, directLimit, NO_SPOOL);
+    }
+
+    /**
+     * @param spoolThreshold однопроходный режим: вложение, хэш которого нужно вычислять, читается из источника один раз -
+     *  в спул (в памяти до spoolThreshold байт, иначе во временном файле) с одновременным вычислением хэша,
+     *  и в СМЭВ передаётся из спула. {@link #NO_SPOOL} - режим выключен: источник читается для хэша и ещё раз для передачи.
+     */
+    public AttachmentBuilder(String ftpAddress, SignatureOperationsClient ovSigner, long directLimit, long spoolThreshold) {
+        this(ftpAddress, ovSigner, directLimit, spoolThreshold, null);
+    }
+
+    /**
+     * @param deadline срок отправки: хэширование и закачка вложений прерываются при его истечении или отмене; может быть null.
+     */
+    public AttachmentBuilder(String ftpAddress, SignatureOperationsClient ovSigner, long directLimit, long spoolThreshold,
+                             Deadline deadline) {
         this.ftpAddress = ftpAddress;
         this.ovSigner = ovSigner;
         this.directLimit = directLimit;
+        this.spoolThreshold = spoolThreshold;
+        this.deadline = deadline;
+    }
+
+    private InAttachment spool(InAttachment attachment) throws IOException, SignatureProcessingException {
+        try (InputStream inputStream = attachment.getInputStream()) {
+            AttachmentSpool spool = AttachmentSpool.spool(inputStream, spoolThreshold, deadline);
+            spools.add(spool);
+            return new SpooledAttachment(attachment, spool);
+        }
     }
 
     private void sendDirect(InAttachment attachment, DigestResult digest) throws SignatureProcessingException, IOException {
         byte[] signature;
         if (attachment.getPersonalSignature() == null) {
             if (digest == null) {
-                digest = attachment.getDigest();
+                digest = attachment.getDigest(deadline);
             }
             signature = ovSigner.signPKCS7Detached(digest.getDataDigest());
         } else {
@@ -54,13 +90,13 @@ public final class AttachmentBuilder {
 
         AttachmentContentType ac = new AttachmentContentType();
         ac.setId(attachment.getId());
-        ac.setContent(new DataHandler(new AttachmentDataSourceImpl(attachment)));
+        ac.setContent(new StreamingAttachmentDataHandler(attachment));
         directContents.add(ac);
     }
 
-    private static <T extends Exception> void checkAttempt(int attempt, T ex) throws T {
+    private <T extends Exception> void checkAttempt(int attempt, T ex) throws T {
         logger.warn("Ошибка закачки", ex);
-        if (attempt >= MAX_ATTEMPTS - 1) {
+        if (attempt >= MAX_ATTEMPTS - 1 || (deadline != null && deadline.isExpired())) {
             throw ex;
         }
     }
@@ -85,9 +121,20 @@ public final class AttachmentBuilder {
     private DigestResult uploadToFTP(String uuid, String fileName, InAttachment attachment) throws FTPException, IOException, FTPIllegalReplyException, FTPDataTransferException, FTPAbortedException, SignatureProcessingException {
         for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
             try {
-                FTPClient ftp = new FTPClient();
+                final FTPClient ftp = new FTPClient();
                 connect(ftp, ftpAddress);
                 boolean ok = false;
+                // При отмене или истечении срока отправки прерываем передачу файла.
+                Deadline.Registration abortHook = deadline == null ? null : deadline.onCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ftp.abortCurrentDataTransfer(true);
+                        } catch (IOException | FTPIllegalReplyException ex) {
+                            logger.warn("Cannot abort FTP transfer", ex);
+                        }
+                    }
+                });
                 try {
                     ftp.login("anonymous", "smev");
                     try {
@@ -98,9 +145,17 @@ public final class AttachmentBuilder {
                         }
                     }
                     ftp.changeDirectory(uuid);
-                    PipeInputStream pipeStream;
+                    // Если хэш уже вычислен (ЭП-СП, проверка размера), файл передаётся без повторного хэширования.
+                    DigestResult knownDigest = attachment.getKnownDigest();
+                    PipeInputStream pipeStream = null;
                     try (InputStream inputStream = attachment.getInputStream()) {
-                        pipeStream = SignatureOperationsClient.getDigestCollectingInputStream(inputStream);
+                        InputStream uploadStream;
+                        if (knownDigest == null) {
+                            pipeStream = SignatureOperationsClient.getDigestCollectingInputStream(inputStream);
+                            uploadStream = pipeStream;
+                        } else {
+                            uploadStream = inputStream;
+                        }
                         long currentSize = 0;
                         boolean createNew;
                         if (attempt == 0) {
@@ -114,15 +169,25 @@ public final class AttachmentBuilder {
                                 logger.warn("Невозможно получить размер файла", ex);
                             }
                         }
+                        if (deadline != null && deadline.isExpired()) {
+                            throw new InterruptedIOException("FTP upload aborted: sending deadline exceeded or cancelled");
+                        }
                         if (createNew) {
-                            ftp.upload(fileName, pipeStream, 0, 0, null);
+                            ftp.upload(fileName, uploadStream, 0, 0, null);
                         } else {
-                            ftp.append(fileName, pipeStream, currentSize, null);
+                            ftp.append(fileName, uploadStream, currentSize, null);
                         }
                         ok = true;
                     }
-                    return new DigestResult(pipeStream);
+                    if (knownDigest != null)
+                        return knownDigest;
+                    DigestResult digest = new DigestResult(pipeStream);
+                    attachment.setKnownDigest(digest);
+                    return digest;
                 } finally {
+                    if (abortHook != null) {
+                        abortHook.remove();
+                    }
                     try {
                         ftp.disconnect(ok);
                     } catch (Exception ex) {
@@ -174,19 +239,31 @@ public final class AttachmentBuilder {
         }
     }
 
+    /**
+     * Обработать вложения. Спулы, созданные для вложений, передаваемых напрямую, живут до вызова
+     * {@link InAttachments#release()} у результата; если обработка не удалась, они освобождаются здесь.
+     */
     public void attach(List<InAttachment> attachments) throws ClientSideProcessingException {
+        boolean ok = false;
         try {
+            // Вложения, прочитанные в спул, заменяются здесь вложениями из спула.
+            List<InAttachment> sources = new ArrayList<>(attachments);
             List<DigestResult> digests = new ArrayList<>();
             long totalSize = 0;
             int attachmentCount = 0;
-            for (InAttachment attachment : attachments) {
+            for (int i = 0; i < sources.size(); i++) {
+                InAttachment attachment = sources.get(i);
                 if (attachment.getId() == null) {
                     attachment.setId("__ATT_ID_SMEV_C_AUTOGEN__" + (++attachmentCount));
                 }
                 Long length = attachment.getLength();
                 DigestResult digest;
                 if (length == null) {
-                    digest = attachment.getDigest();
+                    if (spoolThreshold >= 0) {
+                        attachment = spool(attachment);
+                        sources.set(i, attachment);
+                    }
+                    digest = attachment.getDigest(deadline);
                     totalSize += digest.getDataSize();
                 } else {
                     digest = null;
@@ -196,20 +273,40 @@ public final class AttachmentBuilder {
             }
 
             if (totalSize > directLimit) {
-                for (InAttachment attachment : attachments) {
+                for (InAttachment attachment : sources) {
                     sendFTP(attachment);
                 }
+                // Всё закачано на FTP: спулы больше не нужны.
+                releaseSpools();
             } else {
-                for (int i = 0; i < attachments.size(); i++) {
-                    InAttachment attachment = attachments.get(i);
-                    sendDirect(attachment, digests.get(i));
+                for (int i = 0; i < sources.size(); i++) {
+                    InAttachment attachment = sources.get(i);
+                    DigestResult digest = digests.get(i);
+                    if (digest == null && attachment.getPersonalSignature() == null && spoolThreshold >= 0) {
+                        // Хэш для ЭП-ОВ и MTOM - из одного чтения источника.
+                        attachment = spool(attachment);
+                        digest = attachment.getDigest(deadline);
+                    }
+                    sendDirect(attachment, digest);
                 }
             }
+            ok = true;
         } catch (SignatureProcessingException ex) {
             throw new ClientSideProcessingException(ex);
         } catch (IOException ex) {
             throw new ClientSideProcessingException(ex);
+        } finally {
+            if (!ok) {
+                releaseSpools();
+            }
+        }
+    }
+
+    private void releaseSpools() {
+        for (AttachmentSpool spool : spools) {
+            spool.close();
         }
+        spools.clear();
     }
 
     public InAttachments getResult() {
@@ -231,6 +328,6 @@ public final class AttachmentBuilder {
         } else {
             fsAttachmentsList = null;
         }
-        return new InAttachments(headerList, contentList, fsAttachmentsList);
+        return new InAttachments(headerList, contentList, fsAttachmentsList, new ArrayList<>(spools));
     }
 }
@@ -1,24 +1,80 @@
 package ru.voskhod.smev.message_exchange_service_client.impl;
 
+import ru.voskhod.crypto.exceptions.SignatureProcessingException;
+import ru.voskhod.smev.message_exchange_service_client.Deadline;
+import ru.voskhod.smev.message_exchange_service_client.DigestResult;
 import ru.voskhod.smev.message_exchange_service_client.InAttachment;
 import ru.voskhod.smev.message_exchange_service_client.SomeMimeTypes;
+import ru.voskhod.smev.message_exchange_service_client.util.DigestEngine;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 
+/**
+ * Вложение из файла. По умолчанию хэш файла вычисляется при каждом обращении: файл может быть перезаписан
+ * на месте так, что ни размер, ни время изменения (с точностью файловой системы, до 2 с) не изменятся,
+ * и подписанный хэш не совпал бы с переданным содержимым.
+ * <p/>
+ * Если файл не меняется, пока вложение используется, его можно создать с immutable = true: хэш вычисляется
+ * один раз и используется повторно (ЭП-СП, ЭП-ОВ, передача в СМЭВ). Изменение времени изменения или размера
+ * файла всё же сбрасывает запомненный хэш; после незаметной перезаписи нужно вызвать {@link #invalidateDigest()}.
+ */
 public final class FileAttachmentImpl extends InAttachment {
 
     private final File content;
+    private final boolean immutable;
+    // Время изменения и размер файла, для которых выдана текущая метка версии.
+    private long stampedModified = -1;
+    private long stampedLength = -1;
+    private long version = 0;
 
     public FileAttachmentImpl(File content) {
         this(content, SomeMimeTypes.guessMimeType(content));
     }
 
     public FileAttachmentImpl(File content, String mimeType) {
+        this(content, mimeType, false);
+    }
+
+    /**
+     * @param immutable файл не меняется, пока вложение используется: хэш можно запомнить.
+     */
+    public FileAttachmentImpl(File content, String mimeType, boolean immutable) {
         super(mimeType, content.length());
         this.content = content;
+        this.immutable = immutable;
     }
 
     public InputStream getInputStream() throws FileNotFoundException {
         return new BufferedInputStream(new FileInputStream(content));
     }
+
+    /**
+     * Без immutable - {@link #UNSTAMPED}. Иначе метка версии меняется, если изменилось время изменения
+     * или размер файла.
+     */
+    @Override
+    protected synchronized long contentStamp() {
+        if (!immutable)
+            return UNSTAMPED;
+        long modified = content.lastModified();
+        long length = content.length();
+        if (modified != stampedModified || length != stampedLength) {
+            stampedModified = modified;
+            stampedLength = length;
+            version++;
+        }
+        return version;
+    }
+
+    /**
+     * Хэш считается по файлу, отображённому в память.
+     */
+    @Override
+    protected DigestResult computeDigest(Deadline deadline) throws IOException, SignatureProcessingException {
+        try (FileInputStream input = new FileInputStream(content);
+             FileChannel channel = input.getChannel()) {
+            return DigestEngine.digest(channel, deadline);
+        }
+    }
 }
@@ -3,6 +3,9 @@ package ru.voskhod.smev.message_exchange_service_client.impl;
 import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentList;
 import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentHeaderList;
 import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.RefAttachmentHeaderList;
+import ru.voskhod.smev.message_exchange_service_client.util.AttachmentSpool;
+
+import java.util.List;
 
 public final class InAttachments {
 
@@ -10,9 +13,25 @@ public final class InAttachments {
     public final AttachmentContentList contentList;
     public final RefAttachmentHeaderList fsAttachmentsList;
 
-    InAttachments(AttachmentHeaderList headerList, AttachmentContentList contentList, RefAttachmentHeaderList fsAttachmentsList) {
+    /**
+     * Спулы, из которых читается содержимое вложений, передаваемых напрямую.
+     */
+    private final List<AttachmentSpool> spools;
+
+    InAttachments(AttachmentHeaderList headerList, AttachmentContentList contentList, RefAttachmentHeaderList fsAttachmentsList,
+                  List<AttachmentSpool> spools) {
         this.headerList = headerList;
         this.contentList = contentList;
         this.fsAttachmentsList = fsAttachmentsList;
+        this.spools = spools;
+    }
+
+    /**
+     * Освободить спулы вложений. После этого содержимое вложений из спула прочитать нельзя.
+     */
+    public void release() {
+        for (AttachmentSpool spool : spools) {
+            spool.close();
+        }
     }
 }
@@ -0,0 +1,46 @@
+package ru.voskhod.smev.message_exchange_service_client.impl;
+
+import ru.voskhod.smev.message_exchange_service_client.Deadline;
+import ru.voskhod.smev.message_exchange_service_client.DigestResult;
+import ru.voskhod.smev.message_exchange_service_client.InAttachment;
+import ru.voskhod.smev.message_exchange_service_client.util.AttachmentSpool;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Вложение, содержимое которого прочитано из исходного вложения в спул: повторные чтения
+ * (MTOM, FTP) идут из спула, а хэш уже известен.
+ */
+final class SpooledAttachment extends InAttachment {
+
+    private final AttachmentSpool spool;
+
+    SpooledAttachment(InAttachment source, AttachmentSpool spool) {
+        super(source.getMimeType(), spool.getSize());
+        this.spool = spool;
+        setId(source.getId());
+        setPersonalSignature(source.getPersonalSignature());
+        // Хэш вычислен при чтении в спул. Исходному вложению он не передаётся: его содержимое
+        // после чтения могло измениться, а метка версии (contentStamp) этого может не отразить.
+        setKnownDigest(spool.getDigest());
+    }
+
+    /**
+     * Содержимое спула не меняется.
+     */
+    @Override
+    protected long contentStamp() {
+        return 0;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return spool.openStream();
+    }
+
+    @Override
+    protected DigestResult computeDigest(Deadline deadline) {
+        return spool.getDigest();
+    }
+}
@@ -0,0 +1,59 @@
+package ru.voskhod.smev.message_exchange_service_client.impl;
+
+import com.sun.xml.ws.developer.StreamingDataHandler;
+import ru.voskhod.smev.message_exchange_service_client.InAttachment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * DataHandler вложения, передаваемого в СМЭВ напрямую (MTOM).
+ * Содержимое не буферизуется: каждое чтение открывает новый поток InAttachment.getInputStream(),
+ * и Metro пишет MTOM-часть прямо из него. Вместе с потоковой передачей HTTP
+ * (MessageExchangeEndpoint.enableChunkedStreaming) память на отправку не зависит от размера вложения.
+ */
+public final class StreamingAttachmentDataHandler extends StreamingDataHandler {
+
+    private final InAttachment attachment;
+
+    public StreamingAttachmentDataHandler(InAttachment attachment) {
+        super(new AttachmentDataSourceImpl(attachment));
+        this.attachment = attachment;
+    }
+
+    @Override
+    public InputStream readOnce() throws IOException {
+        return attachment.getInputStream();
+    }
+
+    @Override
+    public void moveTo(File file) throws IOException {
+        try (InputStream input = attachment.getInputStream();
+             OutputStream output = new FileOutputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Потоки, открытые readOnce / getInputStream, закрывает тот, кто их читает.
+    }
+
+    @Override
+    public void writeTo(OutputStream output) throws IOException {
+        try (InputStream input = attachment.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, n);
+            }
+        }
+    }
+}
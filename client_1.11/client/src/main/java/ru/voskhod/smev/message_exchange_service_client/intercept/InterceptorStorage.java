@@ -1,51 +1,226 @@
 package ru.voskhod.smev.message_exchange_service_client.intercept;
 
+import javax.xml.ws.BindingProvider;
 import java.io.UnsupportedEncodingException;
 
 /**
+ * Конверты последнего запроса и ответа, прошедших через порт, к которому подключено хранилище.
+ * <p/>
+ * Хранилище передаётся перехватчику через контекст запроса порта (свойство {@link #CONTEXT_PROPERTY}),
+ * а не через поток: перехват не зависит от того, в каком потоке выполняется вызов, и ничего не оставляет
+ * в потоках пула после него. Если порт используется из нескольких потоков одновременно, в хранилище
+ * остаётся обмен, завершившийся последним.
+ * <p/>
+ * Прежний способ - статические {@link #getRequest()}/{@link #getResponse()} и включение перехвата
+ * в текущем потоке через {@link #setIntercept(boolean)} - по-прежнему работает, но устарел.
+ * Вместо
+ * <pre>
+ * InterceptorStorage.getRequest().setIntercept(true);
+ * endpoint.sendRequest(...);
+ * String request = InterceptorStorage.getRequest().getString();
+ * </pre>
+ * следует писать
+ * <pre>
+ * InterceptorStorage storage = new InterceptorStorage();
+ * endpoint.setInterceptorStorage(storage);
+ * endpoint.sendRequest(...);
+ * String request = storage.getRequestString();
+ * </pre>
+ *
  * @author bshalin@it.ru
  */
 public final class InterceptorStorage {
 
-    private static final InterceptorStorage request = new InterceptorStorage();
-    private static final InterceptorStorage response = new InterceptorStorage();
+    /**
+     * Свойство контекста запроса, в котором перехватчик ищет хранилище.
+     */
+    public static final String CONTEXT_PROPERTY = InterceptorStorage.class.getName();
 
-    private final ThreadLocal<byte[]> data = new ThreadLocal<byte[]>();
-    private final ThreadLocal<Boolean> intercept = new ThreadLocal<Boolean>();
+    private static final InterceptorStorage legacyRequest = new InterceptorStorage(true);
+    private static final InterceptorStorage legacyResponse = new InterceptorStorage(true);
 
-    public static InterceptorStorage getRequest() {
+    // Выставляется при первом обращении к устаревшим getRequest()/getResponse(); пока его нет, перехватчик
+    // не трогает ThreadLocal-ы и не создаёт в потоках вызовов никакого состояния.
+    private static volatile boolean legacyUsed;
+
+    private volatile byte[] request;
+    private volatile byte[] response;
+
+    // Только у хранилищ, возвращаемых устаревшими getRequest()/getResponse().
+    private final ThreadLocal<byte[]> data;
+    private final ThreadLocal<Boolean> intercept;
+
+    public InterceptorStorage() {
+        this(false);
+    }
+
+    private InterceptorStorage(boolean legacy) {
+        data = legacy ? new ThreadLocal<byte[]>() : null;
+        intercept = legacy ? new ThreadLocal<Boolean>() : null;
+    }
+
+    /**
+     * Подключить новое хранилище к порту: перехват включается для всех последующих вызовов через порт.
+     */
+    public static InterceptorStorage attach(BindingProvider port) {
+        InterceptorStorage storage = new InterceptorStorage();
+        storage.attachTo(port);
+        return storage;
+    }
+
+    /**
+     * Отключить перехват на порту.
+     */
+    public static void detach(BindingProvider port) {
+        port.getRequestContext().remove(CONTEXT_PROPERTY);
+    }
+
+    /**
+     * Подключить это хранилище к порту (например, к нескольким портам одной точки доступа).
+     */
+    public void attachTo(BindingProvider port) {
+        port.getRequestContext().put(CONTEXT_PROPERTY, this);
+    }
+
+    public byte[] getRequestBytes() {
         return request;
     }
 
-    public static InterceptorStorage getResponse() {
+    public String getRequestString() {
+        return toString(request);
+    }
+
+    public byte[] getResponseBytes() {
         return response;
     }
 
+    public String getResponseString() {
+        return toString(response);
+    }
+
+    void setRequest(byte[] request) {
+        this.request = request;
+    }
+
+    void setResponse(byte[] response) {
+        this.response = response;
+    }
+
+    /**
+     * Удалить перехваченные данные; перехват при этом не выключается.
+     */
+    public void clear() {
+        request = null;
+        response = null;
+    }
+
+    /**
+     * Хранилище запросов, перехваченных в текущем потоке.
+     * @deprecated перехват через поток не работает для асинхронных вызовов и вызовов из пулов потоков;
+     *  используйте хранилище, подключённое к порту (см. описание класса).
+     */
+    @Deprecated
+    public static InterceptorStorage getRequest() {
+        legacyUsed = true;
+        return legacyRequest;
+    }
+
+    /**
+     * Хранилище ответов, перехваченных в текущем потоке.
+     * @deprecated см. {@link #getRequest()}.
+     */
+    @Deprecated
+    public static InterceptorStorage getResponse() {
+        legacyUsed = true;
+        return legacyResponse;
+    }
+
+    /**
+     * @deprecated см. {@link #getRequest()}.
+     */
+    @Deprecated
     public void set(byte[] data) {
-        this.data.set(data);
+        legacyData().set(data);
     }
 
+    /**
+     * @deprecated используйте {@link #getRequestBytes()}/{@link #getResponseBytes()}.
+     */
+    @Deprecated
     public byte[] get() {
-        return data.get();
+        return legacyData().get();
     }
 
+    /**
+     * @deprecated используйте {@link #getRequestString()}/{@link #getResponseString()}.
+     */
+    @Deprecated
     public String getString() {
-        byte[] bytes = get();
-        if (bytes == null)
-            return null;
-        try {
-            return new String(bytes, "UTF-8");
-        } catch (UnsupportedEncodingException ex) {
-            return new String(bytes);
-        }
+        return toString(get());
     }
 
+    /**
+     * Включить или выключить перехват в текущем потоке.
+     * @deprecated используйте MessageExchangeEndpoint.setInterceptorStorage или {@link #attach(BindingProvider)}.
+     */
+    @Deprecated
     public void setIntercept(boolean on) {
-        intercept.set(on);
+        legacyIntercept().set(on);
     }
 
+    /**
+     * @deprecated см. {@link #setIntercept(boolean)}.
+     */
+    @Deprecated
     public boolean isIntercept() {
-        Boolean value = intercept.get();
+        Boolean value = legacyIntercept().get();
         return value != null && value.booleanValue();
     }
+
+    /**
+     * @return включён ли в текущем потоке перехват запросов через устаревшее {@link #getRequest()}.
+     */
+    static boolean isLegacyRequestIntercept() {
+        if (!legacyUsed)
+            return false;
+        Boolean value = legacyRequest.intercept.get();
+        return value != null && value.booleanValue();
+    }
+
+    static boolean isLegacyResponseIntercept() {
+        if (!legacyUsed)
+            return false;
+        Boolean value = legacyResponse.intercept.get();
+        return value != null && value.booleanValue();
+    }
+
+    static void setLegacyRequest(byte[] bytes) {
+        legacyRequest.data.set(bytes);
+    }
+
+    static void setLegacyResponse(byte[] bytes) {
+        legacyResponse.data.set(bytes);
+    }
+
+    private ThreadLocal<byte[]> legacyData() {
+        if (data == null)
+            throw new IllegalStateException("Thread-bound interception is only available through InterceptorStorage.getRequest()/getResponse()");
+        return data;
+    }
+
+    private ThreadLocal<Boolean> legacyIntercept() {
+        if (intercept == null)
+            throw new IllegalStateException("Thread-bound interception is only available through InterceptorStorage.getRequest()/getResponse()");
+        return intercept;
+    }
+
+    private static String toString(byte[] bytes) {
+        if (bytes == null)
+            return null;
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return new String(bytes);
+        }
+    }
 }
@@ -10,11 +10,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
+/**
+ * Сохраняет конверты запроса и ответа в {@link InterceptorStorage}, переданное в свойствах вызова
+ * (контекст запроса порта). Экземпляр tube-а обрабатывает один вызов за раз, поэтому хранилище запроса
+ * запоминается до обработки ответа в поле.
+ * <p/>
+ * Если в текущем потоке включён перехват через устаревшие InterceptorStorage.getRequest()/getResponse(),
+ * конверты сохраняются и туда.
+ */
 final class InterceptorTube extends AbstractFilterTubeImpl {
 
     private static final Logger logger = LoggerFactory.getLogger(InterceptorTube.class);
 
     private final boolean client;
+    private InterceptorStorage storage;
 
     InterceptorTube(Tube tube, boolean client) {
         super(tube);
@@ -31,34 +40,59 @@ final class InterceptorTube extends AbstractFilterTubeImpl {
         return new InterceptorTube(this, cloner);
     }
 
-    private void intercept(String what, InterceptorStorage storage, Packet packet) {
-        if (storage.isIntercept()) {
-            logger.debug(String.format("Message %s intercepted on %s side", what, client ? "client" : "server"));
-            try {
-                CustomByteArrayOutputStream baos = new CustomByteArrayOutputStream();
-                Packet requestCopy = packet.copy(true);
-                requestCopy.writeTo(baos);
-                storage.set(baos.getParsedContent());
-            } catch (IOException ex) {
-                logger.error(null, ex);
-            }
+    /**
+     * @return содержимое пакета, либо null, если его не удалось записать.
+     */
+    private byte[] intercept(String what, Packet packet) {
+        logger.debug(String.format("Message %s intercepted on %s side", what, client ? "client" : "server"));
+        try {
+            CustomByteArrayOutputStream baos = new CustomByteArrayOutputStream();
+            Packet requestCopy = packet.copy(true);
+            requestCopy.writeTo(baos);
+            return baos.getParsedContent();
+        } catch (IOException ex) {
+            logger.error(null, ex);
+            return null;
         }
     }
 
     @Override
     public NextAction processRequest(Packet request) {
-        intercept("request", InterceptorStorage.getRequest(), request);
+        Object property = request.invocationProperties.get(InterceptorStorage.CONTEXT_PROPERTY);
+        storage = property instanceof InterceptorStorage ? (InterceptorStorage) property : null;
+        boolean legacy = InterceptorStorage.isLegacyRequestIntercept();
+        if (storage != null || legacy) {
+            byte[] bytes = intercept("request", request);
+            if (storage != null) {
+                storage.setRequest(bytes);
+            }
+            if (legacy) {
+                InterceptorStorage.setLegacyRequest(bytes);
+            }
+        }
         return super.processRequest(request);
     }
 
     @Override
     public NextAction processResponse(Packet response) {
-        intercept("response", InterceptorStorage.getResponse(), response);
+        InterceptorStorage current = storage;
+        storage = null;
+        boolean legacy = InterceptorStorage.isLegacyResponseIntercept();
+        if (current != null || legacy) {
+            byte[] bytes = intercept("response", response);
+            if (current != null) {
+                current.setResponse(bytes);
+            }
+            if (legacy) {
+                InterceptorStorage.setLegacyResponse(bytes);
+            }
+        }
         return super.processResponse(response);
     }
 
     @Override
     public NextAction processException(Throwable throwable) {
+        storage = null;
         logger.warn(String.format("Message processing exception intercepted on %s side", client ? "client" : "server"));
         return super.processException(throwable);
     }
@@ -0,0 +1,202 @@
+package ru.voskhod.smev.message_exchange_service_client.outbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.*;
+import ru.voskhod.smev.message_exchange_service_client.ClientSideProcessingException;
+import ru.voskhod.smev.message_exchange_service_client.MessageExchangeEndpoint;
+import ru.voskhod.smev.message_exchange_service_client.PreparedMessage;
+import ru.voskhod.smev.message_exchange_service_client.WebServiceClientException;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.MessageMetaDataAndSMEVSignature;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.SendResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Исходящий ящик: хранит подготовленные сообщения в журнале на диске до получения подтверждения от СМЭВ.
+ * <p/>
+ * Сообщение вместе с ЭП-ОВ записывается в журнал и сбрасывается на диск до передачи в СМЭВ: если процесс
+ * упадёт после того, как СМЭВ принял сообщение, его message ID всё равно останется в журнале. Параллельные
+ * вызовы {@link #send(PreparedMessage)} сбрасывают журнал одной операцией, поэтому ожидание сброса делится
+ * между ними. Если соединение разорвалось или процесс упал, сообщение остаётся в журнале
+ * и {@link #resendPending()} передаёт его повторно
+ * с тем же message ID, как того требуют методические рекомендации. {@link MessageIsAlreadySentException}
+ * при этом означает, что СМЭВ уже принял сообщение, и считается успехом.
+ * <p/>
+ * Данные сообщений, ожидающих подтверждения, в памяти не держатся: при повторной передаче они
+ * читаются из журнала.
+ * <p/>
+ * Сообщения, отвергнутые СМЭВ по существу (неверный контент, нет доступа и т.п.), из ящика удаляются:
+ * повторная передача их не исправит.
+ */
+public final class Outbox implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Outbox.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final MessageExchangeEndpoint endpoint;
+    private final OutboxJournal journal;
+
+    public Outbox(File directory, MessageExchangeEndpoint endpoint) throws IOException {
+        this(directory, endpoint, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory каталог журнала; создаётся, если не существует. Одним каталогом может пользоваться
+     *  только один экземпляр Outbox.
+     * @param segmentSize размер файла-сегмента журнала в байтах. Сообщение, не помещающееся в сегмент,
+     *  пишется в отдельный сегмент большего размера.
+     */
+    public Outbox(File directory, MessageExchangeEndpoint endpoint, int segmentSize) throws IOException {
+        if (endpoint == null)
+            throw new IllegalArgumentException("Endpoint cannot be null");
+        this.endpoint = endpoint;
+        this.journal = new OutboxJournal(directory, segmentSize);
+        int pending = journal.pending().size();
+        if (pending > 0) {
+            logger.info("Outbox {} contains {} unacknowledged message(s)", directory, pending);
+        }
+    }
+
+    /**
+     * Записать сообщение в журнал, дождаться сброса записи на диск и передать сообщение в СМЭВ.
+     * Параллельные вызовы сбрасывают журнал одной операцией.
+     * <p/>
+     * При {@link WebServiceClientException}, {@link SMEVFailureException}, {@link DestinationOverflowException}
+     * и {@link QuoteLimitExceededException} сообщение остаётся в ящике для {@link #resendPending()}.
+     *
+     * @return метаданные сообщения, либо null, если СМЭВ сообщил, что сообщение с этим ID уже было принято.
+     * @throws ClientSideProcessingException сообщение не удалось записать в журнал; в СМЭВ оно не передавалось.
+     */
+    public MessageMetaDataAndSMEVSignature send(final PreparedMessage message)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            AccessDeniedException,
+            DestinationOverflowException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException,
+            ClientSideProcessingException {
+        String messageId = message.getMessageId();
+        try {
+            journal.sync(journal.append(OutboxJournal.PREPARED, messageId, serialize(message)));
+        } catch (IOException ex) {
+            throw new ClientSideProcessingException("Cannot write message " + messageId + " to outbox journal", ex);
+        }
+        return transmit(messageId, message);
+    }
+
+    /**
+     * Повторно передать все сообщения, не получившие подтверждения, в порядке постановки.
+     * Обычно вызывается при старте приложения, до отправки новых сообщений. Если одновременно с этим
+     * идёт {@link #send(PreparedMessage)}, одно и то же сообщение может уйти дважды - второй раз
+     * СМЭВ ответит {@link MessageIsAlreadySentException}, что тоже считается успехом.
+     *
+     * @return результаты передачи; для сообщений, оставшихся в ящике, - неуспешные.
+     */
+    public List<SendResult> resendPending() {
+        List<String> snapshot = journal.pending();
+        List<SendResult> results = new ArrayList<>(snapshot.size());
+        for (String messageId : snapshot) {
+            try {
+                byte[] payload = journal.read(messageId);
+                if (payload == null) {
+                    // Подтверждено параллельным send, пока шёл повтор предыдущих.
+                    continue;
+                }
+                PreparedMessage message = PreparedMessage.readFrom(new ByteArrayInputStream(payload));
+                results.add(SendResult.success(messageId, transmit(messageId, message)));
+            } catch (Exception ex) {
+                logger.warn("Resending message " + messageId + " from outbox failed", ex);
+                results.add(SendResult.failure(messageId, ex));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return message ID сообщений, ожидающих подтверждения, в порядке постановки.
+     */
+    public List<String> getPendingMessageIds() {
+        return journal.pending();
+    }
+
+    /**
+     * Передать сообщение, уже записанное в журнал, и отметить в журнале результат.
+     */
+    private MessageMetaDataAndSMEVSignature transmit(String messageId, PreparedMessage message)
+            throws SignatureVerificationFaultException,
+            SenderIsNotRegisteredException,
+            SMEVFailureException,
+            RecipientIsNotFoundException,
+            InvalidContentException,
+            IncorrectResponseContentTypeException,
+            BusinessDataTypeIsNotSupportedException,
+            AttachmentContentMiscoordinationException,
+            AttachmentSizeLimitExceededException,
+            QuoteLimitExceededException,
+            AccessDeniedException,
+            DestinationOverflowException,
+            InvalidMessageIdFormatException,
+            StaleMessageIdException,
+            WebServiceClientException,
+            ClientSideProcessingException {
+        MessageMetaDataAndSMEVSignature metadata;
+        try {
+            metadata = endpoint.send(message);
+        } catch (MessageIsAlreadySentException ex) {
+            // В том числе MessageAcceptedOnEarlierAttemptException - повтор внутри endpoint.send.
+            logger.debug("Message {} was already accepted by SMEV", messageId);
+            complete(messageId, OutboxJournal.SENT);
+            return null;
+        } catch (WebServiceClientException | SMEVFailureException | DestinationOverflowException | QuoteLimitExceededException ex) {
+            // Временные сбои: сообщение остаётся в ящике.
+            throw ex;
+        } catch (Exception ex) {
+            complete(messageId, OutboxJournal.FAILED);
+            throw ex;
+        }
+        complete(messageId, OutboxJournal.SENT);
+        return metadata;
+    }
+
+    private void complete(String messageId, byte state) {
+        // Отметку о завершении на диск не сбрасываем: если она потеряется, сообщение будет передано
+        // повторно и СМЭВ ответит MessageIsAlreadySentException.
+        try {
+            journal.append(state, messageId, null);
+        } catch (IOException ex) {
+            logger.warn("Cannot record completion of message " + messageId + " in outbox journal", ex);
+        }
+    }
+
+    private static byte[] serialize(PreparedMessage message) throws ClientSideProcessingException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            message.writeTo(buffer);
+        } catch (IOException ex) {
+            throw new ClientSideProcessingException(ex);
+        }
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+}
@@ -0,0 +1,407 @@
+package ru.voskhod.smev.message_exchange_service_client.outbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал исходящих сообщений только на дозапись, поверх отображённых в память файлов-сегментов.
+ * <p/>
+ * Формат записи: [int длина тела][int CRC32 тела][тело], тело - [byte тип][short длина ID][ID в UTF-8][данные].
+ * Нулевая длина означает конец сегмента (новый файл заполнен нулями).
+ * При чтении журнала запись с неверной CRC или выходящая за границу сегмента считается хвостом,
+ * недописанным из-за сбоя, и отбрасывается.
+ * <p/>
+ * Сброс на диск групповой: поток, которому нужна гарантия записи, вызывает {@link #sync(long)};
+ * первый из ожидающих делает force() за всех, остальные к моменту получения блокировки
+ * уже оказываются покрыты этим сбросом. Сегменты удаляются с начала журнала,
+ * когда все сообщения, поставленные в них, завершены.
+ * <p/>
+ * Данные незавершённых сообщений в памяти не хранятся: журнал помнит только, где лежит запись,
+ * и читает её из сегмента по {@link #read(String)}. Отображение удалённого сегмента освобождается сразу
+ * (под flushLock, чтобы не отобрать буфер у идущего force()), не дожидаясь сборщика мусора.
+ */
+final class OutboxJournal implements Closeable {
+
+    static final byte PREPARED = 1;
+    static final byte SENT = 2;
+    static final byte FAILED = 3;
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxJournal.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECORD_HEADER = 4 + 4;
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    // Освобождение отображения: Unsafe.invokeCleaner (Java 9+) либо DirectBuffer.cleaner().clean() (Java 7-8).
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method method = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            method = null;
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = method;
+    }
+
+    /**
+     * Место данных сообщения в сегменте.
+     */
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final long index;
+        final File file;
+        final MappedByteBuffer buffer;
+        int live;
+
+        Segment(long index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+
+    private final Object writeLock = new Object();
+    private final Object flushLock = new Object();
+
+    // Всё, что ниже, защищено writeLock.
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    // Незавершённые сообщения в порядке постановки.
+    private final Map<String, Location> prepared = new LinkedHashMap<>();
+    // Сегменты, удалённые из журнала, отображение которых ещё не освобождено.
+    private final List<Segment> retired = new ArrayList<>();
+    private Segment current;
+    private long lastSeq = 0;
+    private boolean closed = false;
+
+    // Защищено flushLock.
+    private long durableSeq = 0;
+
+    OutboxJournal(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create outbox directory " + directory);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        synchronized (writeLock) {
+            open();
+        }
+    }
+
+    private void open() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        SortedMap<Long, File> ordered = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                String number = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                try {
+                    ordered.put(Long.parseLong(number), file);
+                } catch (NumberFormatException ex) {
+                    logger.warn("Skipping foreign file in outbox directory: {}", file);
+                }
+            }
+        }
+
+        byte[] body = new byte[0];
+        for (Map.Entry<Long, File> entry : ordered.entrySet()) {
+            File file = entry.getValue();
+            Segment segment = new Segment(entry.getKey(), file, map(file, Math.max(segmentSize, (int) file.length())));
+            body = replay(segment, body);
+            segments.add(segment);
+        }
+
+        for (Location location : prepared.values()) {
+            location.segment.live++;
+        }
+        current = segments.isEmpty() ? newSegment(0, segmentSize) : segments.getLast();
+        releaseCompleted();
+    }
+
+    /**
+     * Прочитать записи сегмента, запоминая положение данных незавершённых сообщений.
+     * @param body буфер для тела записи; если мал, заменяется большим.
+     * @return буфер для следующих сегментов.
+     */
+    private byte[] replay(Segment segment, byte[] body) {
+        MappedByteBuffer buffer = segment.buffer;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            if (body.length < length) {
+                body = new byte[Math.max(length, 2 * body.length)];
+            }
+            buffer.get(body, 0, length);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Outbox journal {} is truncated at offset {}", segment.file, start);
+                buffer.position(start);
+                break;
+            }
+
+            byte type = body[0];
+            int idLength = ((body[1] & 0xFF) << 8) | (body[2] & 0xFF);
+            String messageId = new String(body, 3, idLength, UTF_8);
+            if (type == PREPARED) {
+                int offset = start + RECORD_HEADER + 3 + idLength;
+                prepared.put(messageId, new Location(segment, offset, length - 3 - idLength));
+            } else {
+                prepared.remove(messageId);
+            }
+        }
+        // Хвост после последней целой записи затираем, чтобы новые записи не склеились с мусором.
+        int tail = buffer.position();
+        if (buffer.remaining() >= 4 && buffer.getInt(tail) != 0) {
+            byte[] zeros = new byte[8192];
+            while (buffer.hasRemaining()) {
+                buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+            }
+            buffer.position(tail);
+        }
+        return body;
+    }
+
+    /**
+     * Дописать запись.
+     * @return порядковый номер записи; передать в {@link #sync(long)}, чтобы дождаться записи на диск.
+     */
+    long append(byte type, String messageId, byte[] payload) throws IOException {
+        byte[] id = messageId.getBytes(UTF_8);
+        int length = 1 + 2 + id.length + (payload == null ? 0 : payload.length);
+        byte[] body = new byte[length];
+        body[0] = type;
+        body[1] = (byte) (id.length >>> 8);
+        body[2] = (byte) id.length;
+        System.arraycopy(id, 0, body, 3, id.length);
+        if (payload != null) {
+            System.arraycopy(payload, 0, body, 3 + id.length, payload.length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        synchronized (writeLock) {
+            if (closed)
+                throw new IOException("Outbox journal is closed");
+            if (current.buffer.remaining() < RECORD_HEADER + length) {
+                roll(RECORD_HEADER + length);
+            }
+            int start = current.buffer.position();
+            current.buffer.putInt(length);
+            current.buffer.putInt((int) crc.getValue());
+            current.buffer.put(body);
+
+            if (type == PREPARED) {
+                Location previous = prepared.remove(messageId);
+                if (previous != null) {
+                    previous.segment.live--;
+                }
+                current.live++;
+                prepared.put(messageId, new Location(current, start + RECORD_HEADER + 3 + id.length, length - 3 - id.length));
+                if (previous != null) {
+                    releaseCompleted();
+                }
+            } else {
+                Location location = prepared.remove(messageId);
+                if (location != null) {
+                    location.segment.live--;
+                    releaseCompleted();
+                }
+            }
+            return ++lastSeq;
+        }
+    }
+
+    /**
+     * @return ID незавершённых сообщений в порядке постановки.
+     */
+    List<String> pending() {
+        synchronized (writeLock) {
+            return new ArrayList<>(prepared.keySet());
+        }
+    }
+
+    /**
+     * Прочитать из сегмента данные незавершённого сообщения.
+     * Копия снимается под блокировкой: после завершения сообщения сегмент может быть удалён.
+     * @return данные, либо null, если сообщение уже завершено.
+     */
+    byte[] read(String messageId) throws IOException {
+        synchronized (writeLock) {
+            if (closed)
+                throw new IOException("Outbox journal is closed");
+            Location location = prepared.get(messageId);
+            if (location == null)
+                return null;
+            ByteBuffer record = location.segment.buffer.duplicate();
+            record.position(location.offset);
+            byte[] payload = new byte[location.length];
+            record.get(payload);
+            return payload;
+        }
+    }
+
+    /**
+     * Дождаться, пока запись с указанным номером и все предыдущие окажутся на диске.
+     */
+    void sync(long seq) throws IOException {
+        synchronized (flushLock) {
+            if (durableSeq < seq) {
+                long target;
+                MappedByteBuffer buffer;
+                synchronized (writeLock) {
+                    if (closed)
+                        throw new IOException("Outbox journal is closed");
+                    target = lastSeq;
+                    buffer = current.buffer;
+                }
+                buffer.force();
+                durableSeq = target;
+            }
+            disposeRetired();
+        }
+    }
+
+    private void roll(int required) throws IOException {
+        // Предыдущие сегменты сбрасываются при переключении, поэтому sync достаточно сбросить текущий.
+        current.buffer.force();
+        current = newSegment(current.index + 1, Math.max(segmentSize, required));
+        releaseCompleted();
+    }
+
+    /**
+     * Удалить завершённые сегменты с начала журнала.
+     * Удалять можно только с начала: в сегменте могут лежать отметки о завершении сообщений,
+     * поставленных в более ранние сегменты, и без них эти сообщения при восстановлении считались бы неотправленными.
+     */
+    private void releaseCompleted() {
+        while (segments.size() > 1 && segments.getFirst() != current && segments.getFirst().live == 0) {
+            retired.add(segments.removeFirst());
+        }
+    }
+
+    /**
+     * Освободить отображения и удалить файлы сегментов, выведенных из журнала. Вызывается под flushLock:
+     * force() выполняется вне writeLock, и без этого буфер могли бы освободить прямо во время сброса.
+     */
+    private void disposeRetired() {
+        List<Segment> toDispose;
+        synchronized (writeLock) {
+            if (retired.isEmpty())
+                return;
+            toDispose = new ArrayList<>(retired);
+            retired.clear();
+        }
+        for (Segment segment : toDispose) {
+            delete(segment);
+        }
+    }
+
+    private Segment newSegment(long index, int size) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        Segment segment = new Segment(index, file, map(file, size));
+        segments.add(segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        unmap(segment.buffer);
+        // Если освободить отображение не удалось, на Windows удаление может не пройти -
+        // такой сегмент будет удалён при следующем открытии журнала.
+        if (!segment.file.delete()) {
+            logger.debug("Cannot delete outbox journal segment {}", segment.file);
+        }
+    }
+
+    /**
+     * Освободить отображение немедленно. Обращаться к буферу после этого нельзя.
+     * Если JVM этого не позволяет, отображение освободит сборщик мусора.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            logger.debug("Cannot unmap outbox journal segment, leaving it to garbage collector", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (flushLock) {
+            synchronized (writeLock) {
+                if (closed)
+                    return;
+                closed = true;
+                for (Segment segment : segments) {
+                    segment.buffer.force();
+                }
+            }
+            disposeRetired();
+            for (Segment segment : segments) {
+                unmap(segment.buffer);
+            }
+        }
+    }
+}
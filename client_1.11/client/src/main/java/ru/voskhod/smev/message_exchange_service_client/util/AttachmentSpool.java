@@ -0,0 +1,210 @@
+package ru.voskhod.smev.message_exchange_service_client.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.voskhod.crypto.exceptions.SignatureProcessingException;
+import ru.voskhod.smev.message_exchange_service_client.Deadline;
+import ru.voskhod.smev.message_exchange_service_client.DigestResult;
+import ru.voskhod.smev.message_exchange_service_client.SignatureOperationsClient;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Копия содержимого вложения, снятая за одно чтение источника вместе с хэшем.
+ * <p/>
+ * Содержимое до memoryThreshold байт хранится в памяти, большее - во временном файле.
+ * Спул освобождается методом {@link #close()}: MessageExchangeEndpoint закрывает спулы, когда сообщение
+ * передано (или закрыто подготовленное сообщение, см. PreparedMessage.close). Если спул не закрыт,
+ * временный файл удаляется после того, как спул станет недостижим, - при создании следующих спулов.
+ */
+public final class AttachmentSpool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AttachmentSpool.class);
+
+    private static final ReferenceQueue<AttachmentSpool> collected = new ReferenceQueue<>();
+    private static final Set<SpoolFileReference> spoolFiles =
+        Collections.newSetFromMap(new ConcurrentHashMap<SpoolFileReference, Boolean>());
+
+    private static final class SpoolFileReference extends PhantomReference<AttachmentSpool> {
+        final File file;
+
+        SpoolFileReference(AttachmentSpool spool, File file) {
+            super(spool, collected);
+            this.file = file;
+        }
+    }
+
+    private volatile byte[] memory;
+    private final File file;
+    private final DigestResult digest;
+    private final SpoolFileReference reference;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private AttachmentSpool(byte[] memory, File file, DigestResult digest) {
+        this.memory = memory;
+        this.file = file;
+        this.digest = digest;
+        if (file != null) {
+            reference = new SpoolFileReference(this, file);
+            spoolFiles.add(reference);
+        } else {
+            reference = null;
+        }
+    }
+
+    /**
+     * Прочитать поток до конца, сохранив содержимое и вычислив хэш. Поток не закрывается.
+     * @param memoryThreshold сколько байт держать в памяти; если содержимое больше, оно целиком пишется во временный файл.
+     * @param deadline срок отправки, при истечении которого чтение прерывается; может быть null.
+     */
+    public static AttachmentSpool spool(InputStream input, long memoryThreshold, Deadline deadline)
+            throws IOException, SignatureProcessingException {
+        return spool(input, memoryThreshold, SignatureOperationsClient.getMessageDigest(), deadline);
+    }
+
+    /**
+     * То же с заданным алгоритмом хэширования.
+     */
+    public static AttachmentSpool spool(InputStream input, long memoryThreshold, MessageDigest messageDigest, Deadline deadline)
+            throws IOException {
+        deleteCollected();
+        SpoolOutputStream output = new SpoolOutputStream(memoryThreshold);
+        DigestResult digest;
+        try {
+            digest = DigestEngine.digest(input, output, messageDigest, deadline);
+            output.close();
+        } catch (IOException | RuntimeException ex) {
+            output.discard();
+            throw ex;
+        }
+        return new AttachmentSpool(output.file == null ? output.memory.toByteArray() : null, output.file, digest);
+    }
+
+    public DigestResult getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return digest.getDataSize();
+    }
+
+    /**
+     * @return временный файл спула, либо null, если содержимое в памяти.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return новый поток с содержимым спула.
+     * @throws IOException спул закрыт.
+     */
+    public InputStream openStream() throws IOException {
+        if (closed.get())
+            throw new IOException("Attachment spool is closed");
+        byte[] data = memory;
+        return data != null ? new ByteArrayInputStream(data) : new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * Удалить временный файл и отпустить содержимое в памяти. Повторный вызов ничего не делает.
+     * Потоки, открытые до закрытия, под Unix дочитываются; под Windows файл удаляется при закрытии потока
+     * или, если это не удалось, при выходе из JVM.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        memory = null;
+        if (reference != null) {
+            spoolFiles.remove(reference);
+            reference.clear();
+            if (!file.delete() && file.exists()) {
+                logger.warn("Cannot delete attachment spool file {}, will retry on exit", file);
+                file.deleteOnExit();
+            }
+        }
+        deleteCollected();
+    }
+
+    private static void deleteCollected() {
+        Reference<? extends AttachmentSpool> reference;
+        while ((reference = collected.poll()) != null) {
+            SpoolFileReference spoolFile = (SpoolFileReference) reference;
+            spoolFiles.remove(spoolFile);
+            if (!spoolFile.file.delete() && spoolFile.file.exists()) {
+                logger.warn("Cannot delete attachment spool file {}", spoolFile.file);
+            }
+        }
+    }
+
+    /**
+     * Пишет в память, пока не превышен порог, затем переносит записанное во временный файл.
+     */
+    private static final class SpoolOutputStream extends OutputStream {
+
+        private final long memoryThreshold;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File file;
+        private OutputStream fileOutput;
+
+        SpoolOutputStream(long memoryThreshold) {
+            this.memoryThreshold = memoryThreshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOutput == null && memory.size() + (long) len > memoryThreshold) {
+                file = File.createTempFile("smev-attachment-", ".spool");
+                fileOutput = new FileOutputStream(file);
+                memory.writeTo(fileOutput);
+                memory = null;
+            }
+            if (fileOutput != null) {
+                fileOutput.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOutput != null) {
+                fileOutput.close();
+            }
+        }
+
+        void discard() {
+            try {
+                close();
+            } catch (IOException ex) {
+                logger.warn("Cannot close attachment spool file {}", file, ex);
+            }
+            if (file != null && !file.delete()) {
+                logger.warn("Cannot delete attachment spool file {}", file);
+            }
+        }
+    }
+}
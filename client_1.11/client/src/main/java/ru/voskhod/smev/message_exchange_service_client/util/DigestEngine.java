@@ -0,0 +1,143 @@
+package ru.voskhod.smev.message_exchange_service_client.util;
+
+import ru.voskhod.crypto.exceptions.SignatureProcessingException;
+import ru.voskhod.smev.message_exchange_service_client.Deadline;
+import ru.voskhod.smev.message_exchange_service_client.DigestResult;
+import ru.voskhod.smev.message_exchange_service_client.SignatureOperationsClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Вычисление хэша ГОСТ Р 34.11-94 для содержимого вложений блоками.
+ * <p/>
+ * Данные читаются блоками в буфер из небольшого ограниченного пула и передаются в MessageDigest порциями
+ * не больше MAX_UPDATE - часть криптопровайдеров не принимает за один вызов update больше.
+ * При исчерпании пула буфер создаётся на время вызова, лишние при возврате отбрасываются, поэтому память
+ * не растёт с числом потоков. Срок отправки ({@link Deadline}) проверяется после каждого блока.
+ */
+public final class DigestEngine {
+
+    static final int BUFFER_SIZE = 256 * 1024;
+    static final int MAX_UPDATE = 65535;
+    private static final int BUFFER_POOL_SIZE = 8;
+
+    /**
+     * Размер отображаемого в память сегмента файла.
+     */
+    static final long MAPPED_SEGMENT = 64L * 1024 * 1024;
+
+    private static final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(BUFFER_POOL_SIZE);
+
+    private DigestEngine() {
+    }
+
+    /**
+     * Хэш содержимого потока. Поток читается до конца, но не закрывается.
+     */
+    public static DigestResult digest(InputStream input, Deadline deadline) throws IOException, SignatureProcessingException {
+        return digest(input, null, deadline);
+    }
+
+    /**
+     * Хэш содержимого потока с одновременным копированием прочитанного в copy.
+     * Поток читается до конца; ни input, ни copy не закрываются.
+     * @param copy куда копировать содержимое; null - не копировать.
+     */
+    public static DigestResult digest(InputStream input, OutputStream copy, Deadline deadline)
+            throws IOException, SignatureProcessingException {
+        return digest(input, copy, SignatureOperationsClient.getMessageDigest(), deadline);
+    }
+
+    /**
+     * То же с заданным алгоритмом хэширования.
+     */
+    public static DigestResult digest(InputStream input, OutputStream copy, MessageDigest digest, Deadline deadline)
+            throws IOException {
+        byte[] buffer = acquireBuffer();
+        try {
+            long size = 0;
+            int n;
+            while ((n = readBlock(input, buffer)) > 0) {
+                update(digest, buffer, n);
+                if (copy != null) {
+                    copy.write(buffer, 0, n);
+                }
+                size += n;
+                checkDeadline(deadline);
+            }
+            return new DigestResult(size, digest.digest());
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Хэш файла, отображаемого в память сегментами по MAPPED_SEGMENT байт.
+     * Страницы файла берутся прямо из кэша ОС, без системного вызова read на каждый блок и без BufferedInputStream;
+     * отображение освобождается сборщиком мусора.
+     */
+    public static DigestResult digest(FileChannel channel, Deadline deadline) throws IOException, SignatureProcessingException {
+        return digest(channel, SignatureOperationsClient.getMessageDigest(), deadline);
+    }
+
+    /**
+     * То же с заданным алгоритмом хэширования.
+     */
+    public static DigestResult digest(FileChannel channel, MessageDigest digest, Deadline deadline) throws IOException {
+        byte[] buffer = acquireBuffer();
+        try {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAPPED_SEGMENT) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_SEGMENT, size - position));
+                while (segment.hasRemaining()) {
+                    int n = Math.min(buffer.length, segment.remaining());
+                    segment.get(buffer, 0, n);
+                    update(digest, buffer, n);
+                    checkDeadline(deadline);
+                }
+            }
+            return new DigestResult(size, digest.digest());
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    private static byte[] acquireBuffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Заполнить буфер, насколько позволяет поток.
+     * @return число прочитанных байт; 0 - поток закончился.
+     */
+    private static int readBlock(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = input.read(buffer, total, buffer.length - total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    private static void update(MessageDigest digest, byte[] buffer, int length) {
+        for (int offset = 0; offset < length; offset += MAX_UPDATE) {
+            digest.update(buffer, offset, Math.min(MAX_UPDATE, length - offset));
+        }
+    }
+
+    private static void checkDeadline(Deadline deadline) throws InterruptedIOException {
+        if (deadline != null && deadline.isExpired())
+            throw new InterruptedIOException("Digest calculation aborted: sending deadline exceeded or cancelled");
+    }
+}
@@ -135,8 +135,8 @@ public class ClientIT extends TestCase {
      */
     public void testEcho() {
         // в процессе разработки и отладки можно включить трассировку запросов и ответов (по умолчанию выключена)
-        InterceptorStorage.getRequest().setIntercept(true);
-        InterceptorStorage.getResponse().setIntercept(true);
+        InterceptorStorage interceptor = new InterceptorStorage();
+        consumerClient.setInterceptorStorage(interceptor);
 
         String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><EchoPlease xmlns=\"urn://x-artefacts-smev-gov-ru/services/echo/1.0\"><MyYell>Это - русский текст</MyYell></EchoPlease>";
         Element dataToSend = stringToElement(xml);
@@ -167,8 +167,8 @@ public class ClientIT extends TestCase {
         }
 
         // если трассировка запросов и ответов была включена, то можно посмотреть реально отосланные и полученные данные
-        assertTrue("Отправлены неверные данные", InterceptorStorage.getRequest().getString().contains("MyYell"));
-        assertTrue("Получен ответ неверного вида", InterceptorStorage.getResponse().getString().contains("SendRequestResponse"));
+        assertTrue("Отправлены неверные данные", interceptor.getRequestString().contains("MyYell"));
+        assertTrue("Получен ответ неверного вида", interceptor.getResponseString().contains("SendRequestResponse"));
     }
 
     /**
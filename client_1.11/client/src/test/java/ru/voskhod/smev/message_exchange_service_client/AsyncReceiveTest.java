@@ -0,0 +1,85 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.TestCase;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVFailureException;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetRequestResponse;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetResponseResponse;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getRequestAsync / getResponseAsync через настоящий порт и заглушку {@link StubSmevServer}: ответ СМЭВ,
+ * SOAP Fault СМЭВ и сбой транспорта приходят через future так же, как из синхронных getRequest / getResponse.
+ */
+public class AsyncReceiveTest extends TestCase {
+
+    private StubSmevServer server;
+    private MessageExchangeEndpoint endpoint;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubSmevServer();
+        endpoint = new SimulatedSigningEndpoint(MessageExchangeEndpoint.createBundledPort(server.getAddress()), 0);
+    }
+
+    @Override
+    protected void tearDown() {
+        server.close();
+    }
+
+    public void testGetRequestAsync() throws Exception {
+        ListenableFuture<GetRequestResponse> future = endpoint.getRequestAsync(null);
+        GetRequestResponse response = future.get(10, TimeUnit.SECONDS);
+        assertNotNull(response);
+        assertNull(response.getRequestMessage());
+        assertEquals(1, server.getReceived());
+        assertTrue(server.lastHeader("SOAPAction").contains("GetRequest"));
+    }
+
+    public void testGetResponseAsync() throws Exception {
+        ListenableFuture<GetResponseResponse> future = endpoint.getResponseAsync(null);
+        GetResponseResponse response = future.get(10, TimeUnit.SECONDS);
+        assertNotNull(response);
+        assertNull(response.getResponseMessage());
+        assertEquals(1, server.getReceived());
+        assertTrue(server.lastHeader("SOAPAction").contains("GetResponse"));
+    }
+
+    public void testSmevFaultIsFutureCause() throws Exception {
+        server.setFault(StubSmevServer.smevFailure());
+        assertTrue(failure(endpoint.getRequestAsync(null)) instanceof SMEVFailureException);
+        assertTrue(failure(endpoint.getResponseAsync(null)) instanceof SMEVFailureException);
+    }
+
+    public void testTransportErrorIsWrapped() throws Exception {
+        String deadAddress = "http://127.0.0.1:" + freePort() + "/transport/";
+        MessageExchangeEndpoint unreachable = new SimulatedSigningEndpoint(
+            MessageExchangeEndpoint.createBundledPort(deadAddress, 1000, 1000), 0);
+        assertTrue(failure(unreachable.getRequestAsync(null)) instanceof WebServiceClientException);
+        assertTrue(failure(unreachable.getResponseAsync(null)) instanceof WebServiceClientException);
+    }
+
+    private static Throwable failure(Future<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+            return null;
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+    }
+
+    /**
+     * @return порт, который сейчас никто не слушает.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
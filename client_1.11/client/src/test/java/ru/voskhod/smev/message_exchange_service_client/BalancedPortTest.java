@@ -0,0 +1,143 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange_service_client.intercept.InterceptorStorage;
+
+import javax.xml.ws.BindingProvider;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Балансировка между недоступным узлом и заглушкой {@link StubSmevServer}: вызов переходит на исправный узел,
+ * недоступный узел выключается и возвращается в работу фоновой проверкой, когда начинает отвечать.
+ * Настройки, заданные через контекст запроса балансирующего порта, действуют на всех узлах. Узел, который принимает
+ * соединение и не отвечает, не задерживает проверку остальных узлов дольше таймаута.
+ */
+public class BalancedPortTest extends TestCase {
+
+    private static final long PROBE_INTERVAL = 100;
+
+    private int deadPort;
+    private StubSmevServer server;
+    private BalancedPort balancedPort;
+
+    @Override
+    protected void setUp() throws Exception {
+        deadPort = freePort();
+        server = new StubSmevServer();
+        balancedPort = new BalancedPort(Arrays.asList(deadAddress(), server.getAddress()), 1000, 10 * 1000, PROBE_INTERVAL);
+    }
+
+    @Override
+    protected void tearDown() {
+        balancedPort.close();
+        server.close();
+    }
+
+    public void testFailoverToLiveNode() throws Exception {
+        SMEVMessageExchangePortType port = balancedPort.asPort();
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(port.sendRequest(DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0)).getMessageMetadata());
+        }
+        assertEquals(3, server.getReceived());
+
+        List<BalancedPort.NodeStats> stats = balancedPort.getNodeStats();
+        assertEquals(2, stats.size());
+        BalancedPort.NodeStats dead = stats.get(0);
+        assertEquals(deadAddress(), dead.getAddress());
+        assertFalse(dead.isHealthy());
+        assertEquals(1, dead.getCalls());
+        assertEquals(1, dead.getErrors());
+        BalancedPort.NodeStats live = stats.get(1);
+        assertTrue(live.isHealthy());
+        assertEquals(3, live.getCalls());
+        assertEquals(0, live.getErrors());
+        assertEquals(0, live.getInFlight());
+    }
+
+    public void testProbeRestoresNode() throws Exception {
+        SMEVMessageExchangePortType port = balancedPort.asPort();
+        port.sendRequest(DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0));
+        assertFalse(balancedPort.getNodeStats().get(0).isHealthy());
+
+        try (StubSmevServer revived = StubSmevServer.onPort(deadPort)) {
+            long until = System.currentTimeMillis() + 10 * 1000;
+            while (!balancedPort.getNodeStats().get(0).isHealthy() && System.currentTimeMillis() < until) {
+                Thread.sleep(PROBE_INTERVAL);
+            }
+            assertTrue(balancedPort.getNodeStats().get(0).isHealthy());
+
+            // Восстановленный узел начинает с нулевой оценки и получает следующий вызов.
+            port.sendRequest(DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0));
+            assertEquals(1, revived.getReceived());
+        }
+    }
+
+    public void testSilentNodeDoesNotStallProbe() throws Exception {
+        int silentPort = freePort();
+        int laterPort = freePort();
+        BalancedPort balanced = new BalancedPort(Arrays.asList(address(silentPort), address(laterPort), server.getAddress()),
+            1000, 500, PROBE_INTERVAL);
+        try {
+            // Оба первых узла недоступны, вызов выключает их и уходит на заглушку.
+            balanced.asPort().sendRequest(DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0));
+            assertFalse(balanced.getNodeStats().get(0).isHealthy());
+            assertFalse(balanced.getNodeStats().get(1).isHealthy());
+
+            // Первый узел принимает TCP-соединения (их принимает ядро по backlog), но никогда не отвечает.
+            try (ServerSocket silent = new ServerSocket(silentPort);
+                 StubSmevServer later = StubSmevServer.onPort(laterPort)) {
+                long until = System.currentTimeMillis() + 10 * 1000;
+                while (!balanced.getNodeStats().get(1).isHealthy() && System.currentTimeMillis() < until) {
+                    Thread.sleep(PROBE_INTERVAL);
+                }
+                assertTrue(balanced.getNodeStats().get(1).isHealthy());
+                assertFalse(balanced.getNodeStats().get(0).isHealthy());
+            }
+        } finally {
+            balanced.close();
+        }
+    }
+
+    public void testRequestContextAppliesToAllNodes() throws Exception {
+        SMEVMessageExchangePortType port = balancedPort.asPort();
+        assertTrue(port instanceof BindingProvider);
+        MessageExchangeEndpoint.enableGzip((BindingProvider) port, false);
+        InterceptorStorage storage = InterceptorStorage.attach((BindingProvider) port);
+
+        // Вызов уходит на живой узел после неудачи на первом: настройки должны быть и там.
+        port.sendRequest(DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0));
+        assertEquals("gzip", server.lastHeader("Accept-Encoding"));
+        assertTrue(storage.getRequestString().contains("SendRequestRequest"));
+        assertTrue(storage.getResponseString().contains("SendRequestResponse"));
+    }
+
+    public void testEndpointWithTimeouts() throws Exception {
+        MessageExchangeEndpoint endpoint = MessageExchangeEndpoint.create(Arrays.asList(deadAddress(), server.getAddress()),
+            null, null, Long.MAX_VALUE, 1000, 10 * 1000);
+        List<BalancedPort.NodeStats> stats = endpoint.getNodeStats();
+        assertEquals(2, stats.size());
+        assertEquals(deadAddress(), stats.get(0).getAddress());
+        assertEquals(server.getAddress(), stats.get(1).getAddress());
+    }
+
+    private String deadAddress() {
+        return address(deadPort);
+    }
+
+    private static String address(int port) {
+        return "http://127.0.0.1:" + port + "/transport/";
+    }
+
+    /**
+     * @return порт, который сейчас никто не слушает.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.OutgoingRequest;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.SendResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Пропускная способность отправки пакета запросов, сообщений/с: sendRequest в цикле против sendRequests.
+ * <p/>
+ * Запросы уходят на локальную заглушку {@link StubSmevServer} с заданной задержкой ответа. ЭП-ОВ не вычисляется
+ * ({@link SimulatedSigningEndpoint}): поток занимает процессор signMicros мкс, так что параллельная подпись
+ * на ядрах сравнивается честно.
+ * <p/>
+ * В сборку не входит (не *Test), запускается вручную после mvn test-compile:
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; ru.voskhod.smev.message_exchange_service_client.BatchSendBenchmark
+ * <p/>
+ * Параметры: -Dbenchmark.messages - запросов в пакете (по умолчанию 1000), -Dbenchmark.contentKb - объём бизнес-данных
+ * (по умолчанию 4), -Dbenchmark.signMicros (по умолчанию 2000), -Dbenchmark.latencyMs - задержка ответа заглушки
+ * (по умолчанию 5).
+ */
+public final class BatchSendBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("benchmark.messages", 1000);
+        int contentKb = Integer.getInteger("benchmark.contentKb", 4);
+        int signMicros = Integer.getInteger("benchmark.signMicros", 2000);
+        int latencyMs = Integer.getInteger("benchmark.latencyMs", 5);
+
+        System.out.println(messages + " requests, content " + contentKb + " KB, signing " + signMicros
+            + " us, SMEV latency " + latencyMs + " ms, " + Runtime.getRuntime().availableProcessors() + " cores");
+        try (StubSmevServer server = new StubSmevServer(latencyMs)) {
+            SMEVMessageExchangePortType port = MessageExchangeEndpoint.createBundledPort(server.getAddress());
+            MessageExchangeEndpoint endpoint = new SimulatedSigningEndpoint(port, signMicros);
+            try {
+                report("sequential", messages, time(endpoint, contentKb, messages, false));
+                report("sendRequests", messages, time(endpoint, contentKb, messages, true));
+            } finally {
+                endpoint.getSendPipeline().shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return лучшее время из ROUNDS прогонов (первый прогон - прогрев), нс.
+     */
+    private static long time(MessageExchangeEndpoint endpoint, int contentKb, int messages, boolean batch) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            List<OutgoingRequest> requests = new ArrayList<>(messages);
+            for (int i = 0; i < messages; i++) {
+                // У каждого запроса свой документ: DOM не рассчитан на одновременное чтение из нескольких потоков.
+                Element content = (Element) DispatchTransportRoundTripTest.sampleRequest(contentKb * 1024, 0, 0)
+                    .getSenderProvidedRequestData().getMessagePrimaryContent().getAny();
+                requests.add(new OutgoingRequest(endpoint.generateMessageID(), content, null, null, null));
+            }
+            long start = System.nanoTime();
+            if (batch) {
+                for (SendResult result : endpoint.sendRequests(requests)) {
+                    if (!result.isSuccess())
+                        throw result.getFault();
+                }
+            } else {
+                for (OutgoingRequest request : requests) {
+                    endpoint.sendRequest(request);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    private static void report(String name, int messages, long nanos) {
+        System.out.printf("  %-15s %10.1f msg/s (%d ms)%n", name, messages / (nanos / 1e9), nanos / 1000000);
+    }
+}
@@ -0,0 +1,127 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.TestCase;
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.MessageMetaDataAndSMEVSignature;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.OutgoingRequest;
+import ru.voskhod.smev.message_exchange_service_client.intercept.InterceptorStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Много одновременных sendRequestAsync под общим сроком через настоящий порт и заглушку {@link StubSmevServer},
+ * с подключённым перехватчиком: все отправки доходят до СМЭВ, перехватчик хранит один последний обмен,
+ * отмена общего срока останавливает все отправки до передачи, а после завершения отправок ни потоки конвейера,
+ * ни срок, ни перехватчик не удерживают данные сообщений.
+ * <p/>
+ * Подробный замер памяти при большей нагрузке - {@link ConcurrentSendMemoryBenchmark}.
+ */
+public class ConcurrentAsyncSendTest extends TestCase {
+
+    private static final int SENDS = 2000;
+    private static final int CONTENT = 4 * 1024;
+    private static final long MB = 1024 * 1024;
+
+    private StubSmevServer server;
+    private MessageExchangeEndpoint endpoint;
+    private InterceptorStorage storage;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubSmevServer(5, false);
+        endpoint = new SimulatedSigningEndpoint(MessageExchangeEndpoint.createBundledPort(server.getAddress()), 100);
+        endpoint.setSendPipeline(SendPipeline.create(4, 32, 256));
+        storage = new InterceptorStorage();
+        endpoint.setInterceptorStorage(storage);
+    }
+
+    @Override
+    protected void tearDown() {
+        endpoint.getSendPipeline().shutdown();
+        server.close();
+    }
+
+    public void testConcurrentSendsUnderSharedDeadline() throws Exception {
+        Deadline batch = Deadline.after(2, TimeUnit.MINUTES);
+        List<ListenableFuture<MessageMetaDataAndSMEVSignature>> futures = sendAll(endpoint, batch, SENDS, CONTENT);
+        for (ListenableFuture<MessageMetaDataAndSMEVSignature> future : futures) {
+            assertNotNull(future.get(2, TimeUnit.MINUTES).getMessageMetadata());
+        }
+        batch.cancel();
+
+        assertEquals(SENDS, server.getReceived());
+        assertTrue(storage.getRequestString().contains("SendRequestRequest"));
+        assertTrue(storage.getResponseString().contains("SendRequestResponse"));
+    }
+
+    public void testSendsDoNotRetainMessageData() throws Exception {
+        int contentBytes = 32 * 1024;
+        // Первый пакет прогревает потоки пулов, второй замеряется.
+        sendAndWait(endpoint, 256, contentBytes);
+        long baseline = usedHeap();
+        sendAndWait(endpoint, SENDS, contentBytes);
+        long retained = usedHeap() - baseline;
+
+        assertEquals(256 + SENDS, server.getReceived());
+        // Отправлено 2000 * 32 КБ = 62,5 МБ бизнес-данных; удерживаться может только последний перехваченный обмен.
+        assertTrue("Retained " + retained / MB + " MB after sends", retained < 8 * MB);
+    }
+
+    public void testCancelledDeadlineStopsAllSends() throws Exception {
+        Deadline batch = Deadline.never();
+        batch.cancel();
+        List<ListenableFuture<MessageMetaDataAndSMEVSignature>> futures = sendAll(endpoint, batch, SENDS, CONTENT);
+        for (ListenableFuture<MessageMetaDataAndSMEVSignature> future : futures) {
+            try {
+                future.get(2, TimeUnit.MINUTES);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof ClientSideProcessingException);
+            }
+        }
+        assertEquals(0, server.getReceived());
+        assertNull(storage.getRequestBytes());
+    }
+
+    /**
+     * Отправить пакет под общим сроком и дождаться всех отправок.
+     */
+    static void sendAndWait(MessageExchangeEndpoint endpoint, int sends, int contentBytes) throws Exception {
+        Deadline batch = Deadline.after(10, TimeUnit.MINUTES);
+        for (ListenableFuture<MessageMetaDataAndSMEVSignature> future : sendAll(endpoint, batch, sends, contentBytes)) {
+            future.get();
+        }
+        batch.cancel();
+    }
+
+    /**
+     * @return занятая куча после сборки мусора, байт.
+     */
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    static List<ListenableFuture<MessageMetaDataAndSMEVSignature>> sendAll(MessageExchangeEndpoint endpoint, Deadline batch,
+                                                                           int sends, int contentBytes) {
+        List<ListenableFuture<MessageMetaDataAndSMEVSignature>> futures = new ArrayList<>(sends);
+        for (int i = 0; i < sends; i++) {
+            // У каждого запроса свой документ: DOM не рассчитан на одновременное чтение из нескольких потоков.
+            Element content = (Element) DispatchTransportRoundTripTest.sampleRequest(contentBytes, 0, 0)
+                .getSenderProvidedRequestData().getMessagePrimaryContent().getAny();
+            OutgoingRequest request = new OutgoingRequest(endpoint.generateMessageID(), content, null, null, null);
+            futures.add(endpoint.sendRequestAsync(request.withDeadline(batch), null));
+        }
+        return futures;
+    }
+}
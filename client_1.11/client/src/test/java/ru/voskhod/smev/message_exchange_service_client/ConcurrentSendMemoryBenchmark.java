@@ -0,0 +1,47 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import ru.voskhod.smev.message_exchange_service_client.intercept.InterceptorStorage;
+
+/**
+ * Куча, удерживаемая после пакета одновременных sendRequestAsync под общим сроком, МБ: после завершения отправок
+ * ни потоки конвейера, ни срок, ни перехватчик (он хранит только последний обмен) не должны держать данные
+ * сообщений, хотя все потоки пулов живы.
+ * <p/>
+ * Отправки идут через настоящий порт на заглушку {@link StubSmevServer}, которая вычитывает запросы без сохранения;
+ * ЭП-ОВ не вычисляется ({@link SimulatedSigningEndpoint}). Первый пакет прогревает потоки пулов, занятая куча
+ * (после System.gc()) замеряется до и после второго. Та же проверка в меньшем масштабе и с порогом входит
+ * в сборку - {@link ConcurrentAsyncSendTest#testSendsDoNotRetainMessageData()}.
+ * <p/>
+ * В сборку не входит (не *Test), запускается вручную после mvn test-compile:
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; ru.voskhod.smev.message_exchange_service_client.ConcurrentSendMemoryBenchmark
+ * <p/>
+ * Параметры: -Dbenchmark.messages - отправок в пакете (по умолчанию 10000), -Dbenchmark.contentKb - объём
+ * бизнес-данных (по умолчанию 64), -Dbenchmark.transmitThreads - потоков передачи (по умолчанию 200).
+ */
+public final class ConcurrentSendMemoryBenchmark {
+
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("benchmark.messages", 10000);
+        int contentKb = Integer.getInteger("benchmark.contentKb", 64);
+        int transmitThreads = Integer.getInteger("benchmark.transmitThreads", 200);
+
+        System.out.println(messages + " concurrent sends, content " + contentKb + " KB, " + transmitThreads + " transmit threads");
+        try (StubSmevServer server = new StubSmevServer(5, false)) {
+            MessageExchangeEndpoint endpoint = new SimulatedSigningEndpoint(MessageExchangeEndpoint.createBundledPort(server.getAddress()), 100);
+            endpoint.setSendPipeline(SendPipeline.create(Runtime.getRuntime().availableProcessors(), transmitThreads, 1000));
+            endpoint.setInterceptorStorage(new InterceptorStorage());
+            try {
+                ConcurrentAsyncSendTest.sendAndWait(endpoint, Math.min(messages, transmitThreads * 2), contentKb * 1024);
+                long baseline = ConcurrentAsyncSendTest.usedHeap();
+                ConcurrentAsyncSendTest.sendAndWait(endpoint, messages, contentKb * 1024);
+                long retained = ConcurrentAsyncSendTest.usedHeap() - baseline;
+                System.out.printf("  retained %.1f MB (in-flight data of every transmit thread would be %.1f MB)%n",
+                    retained / (double) MB, transmitThreads * contentKb / 1024.0);
+            } finally {
+                endpoint.getSendPipeline().shutdown();
+            }
+        }
+    }
+}
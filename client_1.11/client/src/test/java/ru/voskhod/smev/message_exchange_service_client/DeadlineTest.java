@@ -0,0 +1,86 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Истечение срока и отмена различаются и в производных сроках; обработчики отмены не выполняются в потоке таймера.
+ */
+public class DeadlineTest extends TestCase {
+
+    public void testChildOfExpiredDeadlineIsNotCancelled() throws Exception {
+        Deadline parent = Deadline.after(50, TimeUnit.MILLISECONDS);
+        Deadline child = parent.child();
+        final CountDownLatch fired = new CountDownLatch(1);
+        child.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        });
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+        assertTrue(child.isExpired());
+        assertFalse(child.isCancelled());
+        try {
+            child.check();
+            fail();
+        } catch (ClientSideProcessingException expected) {
+            assertEquals("Sending deadline exceeded", expected.getMessage());
+        }
+    }
+
+    public void testChildOfCancelledDeadlineIsCancelled() throws Exception {
+        Deadline parent = Deadline.never();
+        Deadline child = parent.child();
+        parent.cancel();
+        assertTrue(child.isCancelled());
+        try {
+            child.check();
+            fail();
+        } catch (ClientSideProcessingException expected) {
+            assertEquals("Sending was cancelled", expected.getMessage());
+        }
+    }
+
+    public void testChildCancelDoesNotAffectParent() throws Exception {
+        Deadline parent = Deadline.never();
+        parent.child().cancel();
+        assertFalse(parent.isExpired());
+        parent.check();
+    }
+
+    public void testHookRunsOutsideTimerThread() throws Exception {
+        Deadline deadline = Deadline.after(50, TimeUnit.MILLISECONDS);
+        final AtomicReference<String> thread = new AtomicReference<>();
+        final CountDownLatch fired = new CountDownLatch(1);
+        deadline.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                thread.set(Thread.currentThread().getName());
+                fired.countDown();
+            }
+        });
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+        assertTrue(thread.get(), thread.get().startsWith("smev-deadline-hook-"));
+    }
+
+    public void testRemovedHookIsNotCalled() throws Exception {
+        Deadline deadline = Deadline.never();
+        final CountDownLatch fired = new CountDownLatch(1);
+        Runnable hook = new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        };
+        // Один и тот же обработчик зарегистрирован дважды: снятие одной регистрации не снимает другую.
+        Deadline.Registration first = deadline.onCancel(hook);
+        deadline.onCancel(hook);
+        first.remove();
+        deadline.cancel();
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+    }
+}
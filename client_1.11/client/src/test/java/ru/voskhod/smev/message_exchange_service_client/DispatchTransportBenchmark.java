@@ -0,0 +1,116 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestRequest;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestResponse;
+
+import javax.xml.bind.Unmarshaller;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+
+/**
+ * Передача SendRequest через сгенерированный порт (JAXB + MTOM) и через {@link DispatchTransport}, мс на отправку,
+ * и разбор ответа SendRequestResponse JAXB-ом и {@link DispatchCodec}, мкс на ответ.
+ * <p/>
+ * Отправка меряется вместе с маршаллингом SenderProvidedRequestData в DOM для ЭП-ОВ (сама подпись не вычисляется):
+ * через порт бизнес-данные после этого маршаллятся ещё раз, через DispatchTransport в конверт идёт тот же DOM.
+ * Сообщения уходят на локальную заглушку {@link StubSmevServer}, так что в замер входит и HTTP-обмен, но не сеть.
+ * <p/>
+ * В сборку не входит (не *Test), запускается вручную после mvn test-compile:
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; ru.voskhod.smev.message_exchange_service_client.DispatchTransportBenchmark
+ * <p/>
+ * Параметры: -Dbenchmark.contentKb - объём бизнес-данных (по умолчанию 256), -Dbenchmark.attachments - число вложений
+ * (по умолчанию 2), -Dbenchmark.attachmentKb - размер вложения (по умолчанию 64), -Dbenchmark.sends - отправок
+ * в прогоне (по умолчанию 200).
+ */
+public final class DispatchTransportBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int DECODES = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int contentKb = Integer.getInteger("benchmark.contentKb", 256);
+        int attachments = Integer.getInteger("benchmark.attachments", 2);
+        int attachmentKb = Integer.getInteger("benchmark.attachmentKb", 64);
+        int sends = Integer.getInteger("benchmark.sends", 200);
+
+        SendRequestRequest request = DispatchTransportRoundTripTest.sampleRequest(contentKb * 1024, attachments, attachmentKb * 1024);
+        System.out.println("SendRequest: content " + contentKb + " KB, " + attachments + " x " + attachmentKb + " KB attachments");
+        try (StubSmevServer server = new StubSmevServer()) {
+            SMEVMessageExchangePortType port = MessageExchangeEndpoint.createBundledPort(server.getAddress(),
+                MessageExchangeEndpoint.DEFAULT_CONNECT_TIMEOUT, 0, MessageExchangeEndpoint.DEFAULT_MTOM_THRESHOLD);
+            DispatchTransport transport = DispatchTransport.createBundled(server.getAddress(),
+                MessageExchangeEndpoint.DEFAULT_CONNECT_TIMEOUT, 0);
+            report("port (JAXB)", timeSends(request, port, null, sends), sends, "ms/send", 1e6);
+            report("dispatch", timeSends(request, null, transport, sends), sends, "ms/send", 1e6);
+        }
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Element response = factory.newDocumentBuilder()
+            .parse(new InputSource(new StringReader(StubSmevServer.responseEnvelope(false))))
+            .getDocumentElement();
+        Element payload = DispatchCodec.firstChildElement(DispatchCodec.firstChildElement(response));
+        System.out.println("SendRequestResponse decoding");
+        report("JAXB", timeDecodes(payload, true), DECODES, "us/response", 1e3);
+        report("DispatchCodec", timeDecodes(payload, false), DECODES, "us/response", 1e3);
+    }
+
+    /**
+     * @return лучшее время из ROUNDS прогонов по sends отправок (первый прогон - прогрев), нс.
+     */
+    private static long timeSends(SendRequestRequest request, SMEVMessageExchangePortType port,
+                                  DispatchTransport transport, int sends) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < sends; i++) {
+                Element signedData = MessageExchangeEndpoint.marshal(request.getSenderProvidedRequestData());
+                if (transport != null) {
+                    transport.sendRequest(new PreparedMessage(request, signedData));
+                } else {
+                    port.sendRequest(request);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    private static long timeDecodes(Element payload, boolean jaxb) throws Exception {
+        JAXBPool pool = JAXBPool.forPackage(JAXBPool.TYPES_PACKAGE);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < DECODES; i++) {
+                SendRequestResponse decoded;
+                if (jaxb) {
+                    Unmarshaller unmarshaller = pool.acquireUnmarshaller();
+                    try {
+                        decoded = unmarshaller.unmarshal(payload, SendRequestResponse.class).getValue();
+                    } finally {
+                        pool.release(unmarshaller);
+                    }
+                } else {
+                    decoded = DispatchCodec.readSendRequestResponse(payload);
+                }
+                if (decoded.getMessageMetadata() == null)
+                    throw new IllegalStateException("No MessageMetadata decoded");
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    private static void report(String name, long nanos, int operations, String unit, double divisor) {
+        System.out.printf("  %-15s %10.2f %s%n", name, nanos / divisor / operations, unit);
+    }
+}
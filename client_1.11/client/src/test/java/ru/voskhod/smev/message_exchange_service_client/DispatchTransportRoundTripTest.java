@@ -0,0 +1,240 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentList;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentHeaderList;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentHeaderType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.MessagePrimaryContent;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.XMLDSigSignatureType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestRequest;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestResponse;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SenderProvidedRequestData;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.soap.AttachmentPart;
+import javax.xml.soap.SOAPMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Одно и то же сообщение с вложениями, переданное через сгенерированный порт (JAXB + MTOM) и через
+ * {@link DispatchTransport} (подписанный DOM + xop:Include), должно дойти до СМЭВ одинаковым:
+ * то же содержимое SOAP Body и те же MIME-части вложений. Запросы перехватываются заглушкой
+ * {@link StubSmevServer} и разбираются SAAJ; префиксы пространств имён и идентификаторы MIME-частей
+ * не сравниваются - содержимое по ссылке xop:Include подставляется из её части.
+ */
+public class DispatchTransportRoundTripTest extends TestCase {
+
+    private static final String XOP_NS = "http://www.w3.org/2004/08/xop/include";
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    private StubSmevServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubSmevServer();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.close();
+    }
+
+    public void testDispatchAndPortSendTheSameMessage() throws Exception {
+        SendRequestRequest request = sampleRequest(16 * 1024, 3, 100 * 1024);
+
+        SMEVMessageExchangePortType port = MessageExchangeEndpoint.createBundledPort(server.getAddress(),
+            MessageExchangeEndpoint.DEFAULT_CONNECT_TIMEOUT, 0, MessageExchangeEndpoint.DEFAULT_MTOM_THRESHOLD);
+        SendRequestResponse portResponse = port.sendRequest(request);
+        SOAPMessage viaPort = server.lastRequest();
+        String portAction = server.lastHeader("SOAPAction");
+
+        DispatchTransport transport = DispatchTransport.createBundled(server.getAddress(),
+            MessageExchangeEndpoint.DEFAULT_CONNECT_TIMEOUT, 0);
+        Element signedData = MessageExchangeEndpoint.marshal(request.getSenderProvidedRequestData());
+        SendRequestResponse dispatchResponse = transport.sendRequest(new PreparedMessage(request, signedData));
+        SOAPMessage viaDispatch = server.lastRequest();
+        String dispatchAction = server.lastHeader("SOAPAction");
+
+        assertEquals(portAction, dispatchAction);
+        assertEquals(canonical(payload(viaPort), viaPort), canonical(payload(viaDispatch), viaDispatch));
+        assertEquals(3, viaPort.countAttachments());
+        assertEquals(attachmentContents(viaPort), attachmentContents(viaDispatch));
+        assertEquals(portResponse.getMessageMetadata().getMessageType(), dispatchResponse.getMessageMetadata().getMessageType());
+        assertEquals(portResponse.getMessageMetadata().getSendingTimestamp(), dispatchResponse.getMessageMetadata().getSendingTimestamp());
+    }
+
+    /**
+     * Запрос с бизнес-данными около contentBytes байт и attachments вложениями по attachmentBytes байт.
+     * ЭП-ОВ - заглушка: транспорт её не проверяет.
+     */
+    static SendRequestRequest sampleRequest(int contentBytes, int attachments, int attachmentBytes) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element content = document.createElementNS("urn://x-artefacts-test/business/1.0", "b:Payload");
+        Random random = new Random(42);
+        for (int size = 0; size < contentBytes; size += 64) {
+            Element item = document.createElementNS("urn://x-artefacts-test/business/1.0", "b:Item");
+            item.setAttribute("n", Integer.toString(size));
+            item.setTextContent(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+            content.appendChild(item);
+        }
+
+        SenderProvidedRequestData data = new SenderProvidedRequestData();
+        data.setId(MessageExchangeEndpoint.SIGNATURE_ID_CONSUMER);
+        data.setMessageID(UUID.randomUUID().toString());
+        MessagePrimaryContent primaryContent = new MessagePrimaryContent();
+        primaryContent.setAny(content);
+        data.setMessagePrimaryContent(primaryContent);
+
+        SendRequestRequest request = new SendRequestRequest();
+        request.setSenderProvidedRequestData(data);
+        if (attachments > 0) {
+            AttachmentHeaderList headers = new AttachmentHeaderList();
+            AttachmentContentList contents = new AttachmentContentList();
+            for (int i = 0; i < attachments; i++) {
+                String id = "attachment-" + i;
+                AttachmentHeaderType header = new AttachmentHeaderType();
+                header.setContentId(id);
+                header.setMimeType("application/octet-stream");
+                headers.getAttachmentHeader().add(header);
+
+                byte[] bytes = new byte[attachmentBytes];
+                random.nextBytes(bytes);
+                AttachmentContentType attachment = new AttachmentContentType();
+                attachment.setId(id);
+                attachment.setContent(new DataHandler(new BytesDataSource(bytes)));
+                contents.getAttachmentContent().add(attachment);
+            }
+            data.setAttachmentHeaderList(headers);
+            request.setAttachmentContentList(contents);
+        }
+
+        Element signature = document.createElementNS(DSIG_NS, "ds:Signature");
+        Element signatureValue = document.createElementNS(DSIG_NS, "ds:SignatureValue");
+        signatureValue.setTextContent(Base64.encodeBase64String(new byte[64]));
+        signature.appendChild(signatureValue);
+        XMLDSigSignatureType signatureWrapper = new XMLDSigSignatureType();
+        signatureWrapper.setAny(signature);
+        request.setCallerInformationSystemSignature(signatureWrapper);
+        return request;
+    }
+
+    private static Element payload(SOAPMessage message) throws Exception {
+        return DispatchCodec.firstChildElement(message.getSOAPBody());
+    }
+
+    /**
+     * Запись элемента без префиксов и объявлений пространств имён; содержимое элементов base64Binary,
+     * переданное ссылкой xop:Include или встроенным текстом, записывается одинаково - своим base64.
+     */
+    private static String canonical(Element element, SOAPMessage message) throws Exception {
+        StringBuilder out = new StringBuilder();
+        write(element, message, out);
+        return out.toString();
+    }
+
+    private static void write(Element element, SOAPMessage message, StringBuilder out) throws Exception {
+        out.append('<').append('{').append(element.getNamespaceURI()).append('}').append(element.getLocalName());
+        List<String> attributes = new ArrayList<>();
+        NamedNodeMap map = element.getAttributes();
+        for (int i = 0; i < map.getLength(); i++) {
+            Attr attribute = (Attr) map.item(i);
+            if (!"xmlns".equals(attribute.getPrefix()) && !"xmlns".equals(attribute.getName())) {
+                attributes.add(attribute.getLocalName() + "=" + attribute.getValue());
+            }
+        }
+        Collections.sort(attributes);
+        out.append(attributes).append('>');
+
+        Element include = DispatchCodec.firstChildElement(element);
+        if (include != null && XOP_NS.equals(include.getNamespaceURI()) && "Include".equals(include.getLocalName())) {
+            out.append(Base64.encodeBase64String(part(message, include.getAttribute("href"))));
+        } else if ("Content".equals(element.getLocalName()) && DispatchTransport.BASIC_NS.equals(element.getNamespaceURI())) {
+            out.append(Base64.encodeBase64String(Base64.decodeBase64(element.getTextContent())));
+        } else {
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    write((Element) child, message, out);
+                } else if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                    String text = child.getNodeValue().trim();
+                    if (!text.isEmpty()) {
+                        out.append(text);
+                    }
+                }
+            }
+        }
+        out.append("</>");
+    }
+
+    private static byte[] part(SOAPMessage message, String href) throws Exception {
+        String contentId = URLDecoder.decode(href.substring("cid:".length()), "UTF-8");
+        Iterator<?> parts = message.getAttachments();
+        while (parts.hasNext()) {
+            AttachmentPart part = (AttachmentPart) parts.next();
+            String id = part.getContentId();
+            if (id != null && id.replaceAll("^<|>$", "").equals(contentId))
+                return part.getRawContentBytes();
+        }
+        throw new AssertionError("No MIME part for " + href);
+    }
+
+    /**
+     * @return содержимое MIME-частей в base64, по порядку частей.
+     */
+    private static List<String> attachmentContents(SOAPMessage message) throws Exception {
+        List<String> contents = new ArrayList<>();
+        Iterator<?> parts = message.getAttachments();
+        while (parts.hasNext()) {
+            contents.add(Base64.encodeBase64String(((AttachmentPart) parts.next()).getRawContentBytes()));
+        }
+        return contents;
+    }
+
+    private static final class BytesDataSource implements DataSource {
+
+        private final byte[] bytes;
+
+        BytesDataSource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Read-only data source");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return "bytes";
+        }
+    }
+}
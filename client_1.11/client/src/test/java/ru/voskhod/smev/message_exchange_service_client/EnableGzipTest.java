@@ -0,0 +1,80 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+
+import javax.xml.ws.Binding;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.EndpointReference;
+import javax.xml.ws.handler.MessageContext;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * enableGzip должен дополнять HTTP-заголовки, уже заданные в контексте запроса, а не заменять их.
+ */
+public class EnableGzipTest extends TestCase {
+
+    private static final class FakePort implements BindingProvider {
+
+        private final Map<String, Object> requestContext = new HashMap<>();
+
+        @Override
+        public Map<String, Object> getRequestContext() {
+            return requestContext;
+        }
+
+        @Override
+        public Map<String, Object> getResponseContext() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Binding getBinding() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public EndpointReference getEndpointReference() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends EndpointReference> T getEndpointReference(Class<T> clazz) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public void testHeadersOnEmptyContext() {
+        FakePort port = new FakePort();
+        MessageExchangeEndpoint.enableGzip(port, true);
+        Map<String, List<String>> headers = headers(port);
+        assertEquals(Collections.singletonList("gzip"), headers.get("Accept-Encoding"));
+        assertEquals(Collections.singletonList("gzip"), headers.get("Content-Encoding"));
+    }
+
+    public void testExistingHeadersArePreserved() {
+        FakePort port = new FakePort();
+        Map<String, List<String>> existing = new HashMap<>();
+        existing.put("Authorization", Collections.singletonList("Basic dGVzdA=="));
+        existing.put("X-Trace", Arrays.asList("a", "b"));
+        port.getRequestContext().put(MessageContext.HTTP_REQUEST_HEADERS, Collections.unmodifiableMap(existing));
+
+        MessageExchangeEndpoint.enableGzip(port, false);
+
+        Map<String, List<String>> headers = headers(port);
+        assertEquals(Collections.singletonList("gzip"), headers.get("Accept-Encoding"));
+        assertNull(headers.get("Content-Encoding"));
+        assertEquals(Collections.singletonList("Basic dGVzdA=="), headers.get("Authorization"));
+        assertEquals(Arrays.asList("a", "b"), headers.get("X-Trace"));
+        // Исходный map не изменяется.
+        assertEquals(2, existing.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, List<String>> headers(BindingProvider port) {
+        return (Map<String, List<String>>) port.getRequestContext().get(MessageContext.HTTP_REQUEST_HEADERS);
+    }
+}
@@ -0,0 +1,73 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestRequest;
+
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.BindingProvider;
+
+/**
+ * Сжатие HTTP на порту, настроенном {@link MessageExchangeEndpoint#enableGzip}, против заглушки {@link StubSmevServer}:
+ * запрос уходит сжатым и меньшего размера, сжатый ответ распаковывается, а сообщение с вложениями,
+ * передаваемыми напрямую, точка доступа отправляет через основной порт без сжатия.
+ */
+public class GzipTransportTest extends TestCase {
+
+    private StubSmevServer server;
+    private SMEVMessageExchangePortType plainPort;
+    private SMEVMessageExchangePortType gzipPort;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubSmevServer();
+        plainPort = MessageExchangeEndpoint.createBundledPort(server.getAddress());
+        gzipPort = MessageExchangeEndpoint.createBundledPort(server.getAddress());
+        MessageExchangeEndpoint.enableGzip((BindingProvider) gzipPort, true);
+    }
+
+    @Override
+    protected void tearDown() {
+        server.close();
+    }
+
+    public void testCompressedRequestIsSmaller() throws Exception {
+        SendRequestRequest request = DispatchTransportRoundTripTest.sampleRequest(32 * 1024, 0, 0);
+
+        plainPort.sendRequest(request);
+        assertNull(server.lastHeader("Content-Encoding"));
+        int plainSize = server.lastBodySize();
+        String plainBody = server.lastRequest().getSOAPBody().getTextContent();
+
+        gzipPort.sendRequest(request);
+        assertEquals("gzip", server.lastHeader("Content-Encoding"));
+        int compressedSize = server.lastBodySize();
+        assertTrue("gzip " + compressedSize + " bytes, plain " + plainSize + " bytes", compressedSize < plainSize);
+        assertEquals(plainBody, server.lastRequest().getSOAPBody().getTextContent());
+    }
+
+    public void testCompressedResponseIsDecoded() throws Exception {
+        server.setGzipResponses(true);
+
+        assertNotNull(plainPort.sendRequest(DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0)).getMessageMetadata());
+        assertEquals(0, server.getGzippedResponses());
+
+        assertNotNull(gzipPort.sendRequest(DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0)).getMessageMetadata());
+        assertEquals("gzip", server.lastHeader("Accept-Encoding"));
+        assertEquals(1, server.getGzippedResponses());
+    }
+
+    public void testDirectAttachmentsUseUncompressedPort() throws Exception {
+        MessageExchangeEndpoint endpoint = new MessageExchangeEndpoint(plainPort, null, null, Long.MAX_VALUE);
+        endpoint.setGzipPort(gzipPort);
+
+        endpoint.send(new PreparedMessage(DispatchTransportRoundTripTest.sampleRequest(4 * 1024, 1, 32 * 1024)));
+        assertNull(server.lastHeader("Content-Encoding"));
+        SOAPMessage withAttachment = server.lastRequest();
+        assertEquals(1, withAttachment.countAttachments());
+
+        endpoint.send(new PreparedMessage(DispatchTransportRoundTripTest.sampleRequest(4 * 1024, 0, 0)));
+        assertEquals("gzip", server.lastHeader("Content-Encoding"));
+        assertEquals(0, server.lastRequest().countAttachments());
+    }
+}
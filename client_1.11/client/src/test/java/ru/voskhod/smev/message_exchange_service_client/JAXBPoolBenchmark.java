@@ -0,0 +1,116 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Время первого обращения к JAXB и удерживаемая память на поток: собственный JAXBContext в каждом потоке
+ * (прежний ThreadLocal) против общего контекста {@link JAXBPool} с пулом Marshaller.
+ * <p/>
+ * Все потоки стартуют одновременно и, получив Marshaller, держат его до конца замера - как рабочие потоки
+ * приложения держали контекст в ThreadLocal. Память - разность занятой кучи после System.gc() до и после старта потоков.
+ * <p/>
+ * В сборку не входит (не *Test), запускается вручную после mvn test-compile, каждый режим - в отдельной JVM,
+ * иначе второй режим получит прогретые классы первого:
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; -Dbenchmark.mode=thread-local
+ *   ru.voskhod.smev.message_exchange_service_client.JAXBPoolBenchmark
+ * <p/>
+ * Параметры: -Dbenchmark.mode=pool|thread-local (по умолчанию pool), -Dbenchmark.threads (по умолчанию 200).
+ */
+public final class JAXBPoolBenchmark {
+
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        final boolean pool = !"thread-local".equals(System.getProperty("benchmark.mode", "pool"));
+        int threads = Integer.getInteger("benchmark.threads", 200);
+
+        long baseline = usedHeap();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch stop = new CountDownLatch(1);
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Object held = null;
+                    try {
+                        start.await();
+                        long begin = System.nanoTime();
+                        held = firstCall(pool);
+                        long elapsed = System.nanoTime() - begin;
+                        totalNanos.addAndGet(elapsed);
+                        long max;
+                        while ((max = maxNanos.get()) < elapsed && !maxNanos.compareAndSet(max, elapsed)) {
+                            // повторить
+                        }
+                    } catch (Exception ex) {
+                        failures.incrementAndGet();
+                        ex.printStackTrace();
+                    } finally {
+                        ready.countDown();
+                    }
+                    try {
+                        stop.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (held == null) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }, "jaxb-benchmark-" + i);
+            workers[i].start();
+        }
+
+        long wallStart = System.nanoTime();
+        start.countDown();
+        ready.await();
+        long wall = System.nanoTime() - wallStart;
+        long retained = usedHeap() - baseline;
+        stop.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.out.println("Mode " + (pool ? "pool" : "thread-local") + ", " + threads + " threads");
+        System.out.printf("  first call: all threads %d ms, mean %.1f ms, max %d ms%n",
+            TimeUnit.NANOSECONDS.toMillis(wall),
+            totalNanos.get() / 1e6 / threads,
+            TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+        System.out.printf("  retained heap: %.1f MB total, %.1f KB per thread%n",
+            retained / (double) MB, retained / 1024.0 / threads);
+        if (failures.get() > 0) {
+            System.out.println("  failures: " + failures.get());
+        }
+    }
+
+    /**
+     * @return объект, который поток держит до конца замера.
+     */
+    private static Object firstCall(boolean pool) throws Exception {
+        if (pool) {
+            // Marshaller в пул не возвращается: все потоки работают одновременно.
+            return JAXBPool.forPackage(JAXBPool.TYPES_PACKAGE).acquireMarshaller();
+        }
+        JAXBContext context = JAXBContext.newInstance(JAXBPool.TYPES_PACKAGE);
+        Marshaller marshaller = context.createMarshaller();
+        return new Object[]{context, marshaller};
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
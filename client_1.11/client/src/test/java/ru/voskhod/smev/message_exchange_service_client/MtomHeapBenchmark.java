@@ -0,0 +1,165 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentList;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentHeaderList;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentHeaderType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestRequest;
+import ru.voskhod.smev.message_exchange_service_client.impl.StreamingAttachmentDataHandler;
+
+import javax.xml.ws.BindingProvider;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Память на одну одновременную отправку вложения, передаваемого напрямую (MTOM), МБ: с потоковой передачей HTTP
+ * (MessageExchangeEndpoint.enableChunkedStreaming) и без неё, когда HttpURLConnection буферизует тело запроса целиком.
+ * <p/>
+ * concurrency потоков одновременно посылают SendRequest с вложением size МБ через StreamingAttachmentDataHandler,
+ * как AttachmentBuilder для прямых вложений; содержимое генерируется на лету и в памяти не хранится.
+ * Заглушка {@link StubSmevServer} вычитывает запросы без сохранения и задерживает ответы, пока не получит все:
+ * занятая куча (после System.gc()) замеряется в этот момент, когда все отправки ещё ждут ответа.
+ * <p/>
+ * В сборку не входит (не *Test), запускается вручную после mvn test-compile:
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; ru.voskhod.smev.message_exchange_service_client.MtomHeapBenchmark
+ * <p/>
+ * Параметры: -Dbenchmark.concurrency (по умолчанию 20), -Dbenchmark.sizeMb - размер вложения (по умолчанию 5),
+ * -Dbenchmark.chunkKb - размер части при потоковой передаче (по умолчанию 64).
+ */
+public final class MtomHeapBenchmark {
+
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * Задержка ответа заглушки; за это время должны быть получены все запросы и сделан замер.
+     */
+    private static final int LATENCY_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = Integer.getInteger("benchmark.concurrency", 20);
+        long size = Integer.getInteger("benchmark.sizeMb", 5) * MB;
+        int chunkKb = Integer.getInteger("benchmark.chunkKb", 64);
+
+        System.out.println(concurrency + " concurrent sends, " + size / MB + " MB direct attachment each");
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            report("chunked", concurrency, measure(executor, concurrency, size, chunkKb * 1024));
+            report("buffered", concurrency, measure(executor, concurrency, size, 0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return занятая куча в момент, когда все отправки переданы и ждут ответа, сверх занятой до отправок, байт.
+     */
+    private static long measure(ExecutorService executor, int concurrency, long size, int chunkSize) throws Exception {
+        try (StubSmevServer server = new StubSmevServer(LATENCY_MILLIS, false)) {
+            final SMEVMessageExchangePortType port = MessageExchangeEndpoint.createBundledPort(server.getAddress());
+            if (chunkSize > 0) {
+                MessageExchangeEndpoint.enableChunkedStreaming((BindingProvider) port, chunkSize);
+            }
+            List<SendRequestRequest> requests = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                requests.add(withAttachment(size));
+            }
+            long baseline = usedHeap();
+
+            List<Future<?>> sends = new ArrayList<>(concurrency);
+            for (final SendRequestRequest request : requests) {
+                sends.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return port.sendRequest(request);
+                    }
+                }));
+            }
+            while (server.getReceived() < concurrency) {
+                Thread.sleep(10);
+            }
+            long used = usedHeap() - baseline;
+            for (Future<?> send : sends) {
+                send.get();
+            }
+            return used;
+        }
+    }
+
+    private static SendRequestRequest withAttachment(long size) throws Exception {
+        SendRequestRequest request = DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0);
+        GeneratedAttachment attachment = new GeneratedAttachment(size);
+        attachment.setId("attachment");
+
+        AttachmentHeaderType header = new AttachmentHeaderType();
+        header.setContentId(attachment.getId());
+        header.setMimeType(attachment.getMimeType());
+        AttachmentHeaderList headers = new AttachmentHeaderList();
+        headers.getAttachmentHeader().add(header);
+        request.getSenderProvidedRequestData().setAttachmentHeaderList(headers);
+
+        AttachmentContentType content = new AttachmentContentType();
+        content.setId(attachment.getId());
+        content.setContent(new StreamingAttachmentDataHandler(attachment));
+        AttachmentContentList contents = new AttachmentContentList();
+        contents.getAttachmentContent().add(content);
+        request.setAttachmentContentList(contents);
+        return request;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static void report(String name, int concurrency, long bytes) {
+        System.out.printf("  %-15s %8.2f MB per send (%d MB total)%n", name, bytes / (double) MB / concurrency, bytes / MB);
+    }
+
+    /**
+     * Вложение заданного размера, содержимое которого генерируется при чтении.
+     */
+    private static final class GeneratedAttachment extends InAttachment {
+
+        private final long size;
+
+        GeneratedAttachment(long size) {
+            super("application/octet-stream", size);
+            this.size = size;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                private long position;
+
+                @Override
+                public int read() {
+                    return position < size ? (int) (position++ * 31 & 0xff) : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (position >= size)
+                        return -1;
+                    int n = (int) Math.min(len, size - position);
+                    for (int i = 0; i < n; i++) {
+                        b[off + i] = (byte) (position++ * 31);
+                    }
+                    return n;
+                }
+            };
+        }
+    }
+}
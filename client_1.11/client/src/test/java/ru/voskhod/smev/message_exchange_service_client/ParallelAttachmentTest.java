@@ -0,0 +1,159 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import ru.voskhod.crypto.exceptions.SignatureProcessingException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Обработка вложений на attachmentExecutor параллельно с ЭП-СП: если подпись не удалась, незавершённая
+ * обработка вложений прерывается, а в вызывающий код приходит ошибка подписи; сообщение не подписывается
+ * ЭП-ОВ и не передаётся.
+ */
+public class ParallelAttachmentTest extends TestCase {
+
+    private StubSmevServer server;
+    private SimulatedSigningEndpoint endpoint;
+    private ExecutorService attachmentExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubSmevServer();
+        endpoint = new SimulatedSigningEndpoint(MessageExchangeEndpoint.createBundledPort(server.getAddress()), 0);
+        attachmentExecutor = Executors.newSingleThreadExecutor();
+        endpoint.setAttachmentExecutor(attachmentExecutor);
+    }
+
+    @Override
+    protected void tearDown() {
+        attachmentExecutor.shutdownNow();
+        server.close();
+    }
+
+    public void testSigningFailureCancelsAttachmentProcessing() throws Exception {
+        final SlowAttachment attachment = new SlowAttachment();
+        PersonalSigner failingSigner = new PersonalSigner() {
+            @Override
+            public Element getSignature(Element businessContent) throws SignatureProcessingException {
+                try {
+                    // Подпись падает, когда вложение уже обрабатывается.
+                    assertTrue(attachment.started.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException ex) {
+                    throw new SignatureProcessingException(ex);
+                }
+                throw new SignatureProcessingException("token removed");
+            }
+        };
+
+        try {
+            endpoint.sendRequest(endpoint.generateMessageID(), content(), failingSigner, null,
+                Collections.<InAttachment>singletonList(attachment));
+            fail();
+        } catch (ClientSideProcessingException expected) {
+            assertTrue(expected.getCause() instanceof SignatureProcessingException);
+            assertEquals("token removed", expected.getCause().getMessage());
+        }
+
+        assertTrue("attachment processing was not cancelled", attachment.interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(0, endpoint.getSignatures());
+        assertEquals(0, server.getReceived());
+
+        // Поток attachmentExecutor освобождён для следующих сообщений.
+        endpoint.sendRequest(endpoint.generateMessageID(), content(), null, null,
+            Collections.<InAttachment>singletonList(new SignedAttachment()));
+        assertEquals(1, endpoint.getSignatures());
+        assertEquals(1, server.getReceived());
+    }
+
+    public void testAttachmentsAreProcessedOnExecutor() throws Exception {
+        SignedAttachment attachment = new SignedAttachment();
+        final Thread caller = Thread.currentThread();
+        PersonalSigner signer = new PersonalSigner() {
+            @Override
+            public Element getSignature(Element businessContent) {
+                return businessContent.getOwnerDocument().createElementNS("http://www.w3.org/2000/09/xmldsig#", "ds:Signature");
+            }
+        };
+
+        endpoint.sendRequest(endpoint.generateMessageID(), content(), signer, null,
+            Collections.<InAttachment>singletonList(attachment));
+        assertNotNull(attachment.digestThread);
+        assertNotSame(caller, attachment.digestThread);
+        assertEquals(1, endpoint.getSignatures());
+        assertEquals(1, server.getReceived());
+    }
+
+    private static Element content() throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element content = document.createElementNS("urn://x-artefacts-test/business/1.0", "b:Payload");
+        content.setTextContent("data");
+        return content;
+    }
+
+    /**
+     * Вложение, хэш которого вычисляется, пока поток не прервут.
+     */
+    private static final class SlowAttachment extends InAttachment {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        SlowAttachment() {
+            super("text/plain");
+        }
+
+        @Override
+        protected DigestResult computeDigest(Deadline deadline) throws IOException {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+                throw new IllegalStateException();
+            } catch (InterruptedException ex) {
+                interrupted.countDown();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Вложение с ЭП-СП: ЭП-ОВ для него не нужна, хэш - без криптопровайдера.
+     */
+    private static final class SignedAttachment extends InAttachment {
+
+        private static final byte[] DATA = "attachment".getBytes();
+
+        volatile Thread digestThread;
+
+        SignedAttachment() {
+            super("text/plain");
+            setPersonalSignature(new byte[] {1});
+        }
+
+        @Override
+        protected DigestResult computeDigest(Deadline deadline) {
+            digestThread = Thread.currentThread();
+            return new DigestResult(DATA.length, new byte[32]);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(DATA);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.sun.xml.ws.developer.JAXWSProperties;
+import junit.framework.TestCase;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetRequestRequest;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.GetRequestResponse;
+
+import javax.xml.ws.AsyncHandler;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Response;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.MessageContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ожидание свободного порта, удержание порта асинхронным вызовом, удаление простаивающих портов, статистика
+ * и перенос свойств контекста запроса во все порты пула. Порты пула - заглушки; сеть используется только
+ * при проверке прогрева на сервере, который не отвечает.
+ */
+public class PortPoolTest extends TestCase {
+
+    private final List<FakePort> ports = new CopyOnWriteArrayList<>();
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    private final PortPool.Factory factory = new PortPool.Factory() {
+        @Override
+        public SMEVMessageExchangePortType create() {
+            FakePort fake = new FakePort();
+            ports.add(fake);
+            return fake.port;
+        }
+    };
+
+    @Override
+    protected void tearDown() {
+        gate.countDown();
+    }
+
+    public void testBorrowTimesOutWhenAllPortsBusy() throws Exception {
+        PortPool pool = new PortPool(factory, 1, 100, 0);
+        final SMEVMessageExchangePortType port = pool.asPort();
+        Thread busy = blockingCall(port);
+        try {
+            awaitInUse(pool, 1);
+            long start = System.nanoTime();
+            try {
+                port.getRequest(new GetRequestRequest());
+                fail();
+            } catch (WebServiceException expected) {
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+            }
+            PortPool.Stats stats = pool.getStats();
+            assertEquals(1, stats.getInUse());
+            assertEquals(1, stats.getCreated());
+            assertEquals(2, stats.getCalls());
+            assertEquals(1, stats.getWaits());
+            assertTrue(stats.getWaitMillis() >= 100);
+        } finally {
+            gate.countDown();
+            busy.join(10 * 1000);
+            pool.close();
+        }
+        assertEquals(0, pool.getStats().getInUse());
+    }
+
+    public void testAsyncCallHoldsPortUntilResponse() throws Exception {
+        PortPool pool = new PortPool(factory, 1, 100, 0);
+        SMEVMessageExchangePortType port = pool.asPort();
+        try {
+            final AtomicReference<Object> handled = new AtomicReference<>();
+            port.getRequestAsync(new GetRequestRequest(), new AsyncHandler<GetRequestResponse>() {
+                @Override
+                public void handleResponse(Response<GetRequestResponse> response) {
+                    try {
+                        handled.set(response.get());
+                    } catch (InterruptedException | ExecutionException ex) {
+                        handled.set(ex);
+                    }
+                }
+            });
+            assertEquals(1, pool.getStats().getInUse());
+            try {
+                port.getRequest(new GetRequestRequest());
+                fail("Порт занят асинхронным вызовом до прихода ответа");
+            } catch (WebServiceException expected) {
+                // ожидание свободного порта
+            }
+
+            GetRequestResponse response = new GetRequestResponse();
+            ports.get(0).completeAsync(response);
+            assertSame(response, handled.get());
+            assertEquals(0, pool.getStats().getInUse());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testPollingAsyncCallReleasesPortOnResponse() throws Exception {
+        PortPool pool = new PortPool(factory, 1, 100, 0);
+        SMEVMessageExchangePortType port = pool.asPort();
+        try {
+            Response<GetRequestResponse> result = port.getRequestAsync(new GetRequestRequest());
+            assertFalse(result.isDone());
+            assertEquals(1, pool.getStats().getInUse());
+
+            GetRequestResponse response = new GetRequestResponse();
+            ports.get(0).completeAsync(response);
+            assertSame(response, result.get(10, TimeUnit.SECONDS));
+            assertEquals(0, pool.getStats().getInUse());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testCancelledAsyncCallReleasesPort() throws Exception {
+        PortPool pool = new PortPool(factory, 1, 100, 0);
+        SMEVMessageExchangePortType port = pool.asPort();
+        try {
+            Response<GetRequestResponse> result = port.getRequestAsync(new GetRequestRequest());
+            assertTrue(result.cancel(true));
+            assertEquals(0, pool.getStats().getInUse());
+            gate.countDown();
+            assertNotNull(port.getRequest(new GetRequestRequest()));
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testRequestContextReachesEveryPort() throws Exception {
+        PortPool pool = new PortPool(factory, 2, 1000, 0);
+        SMEVMessageExchangePortType port = pool.asPort();
+        assertTrue(port instanceof BindingProvider);
+        Thread first = null;
+        Thread second = null;
+        try {
+            // Первый порт создаётся до настройки, второй - после.
+            first = blockingCall(port);
+            awaitInUse(pool, 1);
+            MessageExchangeEndpoint.enableGzip((BindingProvider) port, true);
+            MessageExchangeEndpoint.enableChunkedStreaming((BindingProvider) port, 64 * 1024);
+            second = blockingCall(port);
+            awaitInUse(pool, 2);
+
+            assertEquals(2, ports.size());
+            for (FakePort fake : ports) {
+                @SuppressWarnings("unchecked")
+                Map<String, List<String>> headers = (Map<String, List<String>>) fake.context.get(MessageContext.HTTP_REQUEST_HEADERS);
+                assertEquals(Collections.singletonList("gzip"), headers.get("Content-Encoding"));
+                assertEquals(64 * 1024, fake.context.get(JAXWSProperties.HTTP_CLIENT_STREAMING_CHUNK_SIZE));
+            }
+
+            ((BindingProvider) port).getRequestContext().remove(MessageContext.HTTP_REQUEST_HEADERS);
+            for (FakePort fake : ports) {
+                assertNull(fake.context.get(MessageContext.HTTP_REQUEST_HEADERS));
+            }
+        } finally {
+            gate.countDown();
+            if (first != null) {
+                first.join(10 * 1000);
+            }
+            if (second != null) {
+                second.join(10 * 1000);
+            }
+            pool.close();
+        }
+    }
+
+    public void testIdlePortsAreEvicted() throws Exception {
+        PortPool pool = new PortPool(factory, 2, 1000, 100);
+        SMEVMessageExchangePortType port = pool.asPort();
+        try {
+            gate.countDown();
+            port.getRequest(new GetRequestRequest());
+            assertEquals(1, pool.getStats().getIdle());
+
+            long until = System.currentTimeMillis() + 10 * 1000;
+            while (pool.getStats().getEvicted() == 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(50);
+            }
+            PortPool.Stats stats = pool.getStats();
+            assertEquals(1, stats.getEvicted());
+            assertEquals(0, stats.getIdle());
+
+            port.getRequest(new GetRequestRequest());
+            assertEquals(2, pool.getStats().getCreated());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testWarmUpWithoutConnectionsDoesNothing() throws Exception {
+        PortPool pool = new PortPool(factory, 2, 100, 0);
+        try {
+            assertEquals(0, pool.warmUp(0));
+            assertEquals(0, pool.warmUp(-1));
+            assertEquals(0, pool.getStats().getCreated());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testWarmUpGivesUpOnSilentServer() throws Exception {
+        // Ядро принимает соединение по backlog, но сервер никогда не отвечает.
+        try (ServerSocket silent = new ServerSocket(0)) {
+            final String address = "http://127.0.0.1:" + silent.getLocalPort() + "/transport/";
+            PortPool pool = new PortPool(new PortPool.Factory() {
+                @Override
+                public SMEVMessageExchangePortType create() throws WebServiceClientException {
+                    SMEVMessageExchangePortType port = factory.create();
+                    Map<String, Object> context = ((BindingProvider) port).getRequestContext();
+                    context.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, address);
+                    context.put("com.sun.xml.ws.connect.timeout", 1000);
+                    context.put("com.sun.xml.ws.request.timeout", 300);
+                    return port;
+                }
+            }, 1, 100, 0);
+            try {
+                long start = System.nanoTime();
+                assertEquals(0, pool.warmUp(1));
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5 * 1000);
+                assertEquals(0, pool.getStats().getInUse());
+            } finally {
+                pool.close();
+            }
+        }
+    }
+
+    private Thread blockingCall(final SMEVMessageExchangePortType port) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    port.getRequest(new GetRequestRequest());
+                } catch (Exception ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitInUse(PortPool pool, int inUse) throws InterruptedException {
+        long until = System.currentTimeMillis() + 10 * 1000;
+        while (pool.getStats().getInUse() != inUse && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(inUse, pool.getStats().getInUse());
+    }
+
+    /**
+     * Порт-заглушка: getRequest ждёт открытия gate, getRequestAsync с обработчиком завершается по completeAsync.
+     */
+    private final class FakePort {
+        final Map<String, Object> context = Collections.synchronizedMap(new HashMap<String, Object>());
+        final BlockingQueue<AsyncHandler<Object>> pending = new LinkedBlockingQueue<>();
+        final SMEVMessageExchangePortType port = (SMEVMessageExchangePortType) Proxy.newProxyInstance(
+            SMEVMessageExchangePortType.class.getClassLoader(),
+            new Class<?>[]{SMEVMessageExchangePortType.class, BindingProvider.class},
+            new InvocationHandler() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "getRequestContext":
+                            return context;
+                        case "getRequest":
+                            gate.await();
+                            return new GetRequestResponse();
+                        case "getRequestAsync":
+                            pending.add((AsyncHandler<Object>) args[1]);
+                            return SettableFuture.create();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+
+        void completeAsync(final Object value) {
+            AsyncHandler<Object> handler = pending.poll();
+            assertNotNull(handler);
+            SettableFuture<Object> future = SettableFuture.create();
+            future.set(value);
+            handler.handleResponse(new CompletedResponse(future));
+        }
+    }
+
+    private static final class CompletedResponse implements Response<Object> {
+        private final SettableFuture<Object> future;
+
+        CompletedResponse(SettableFuture<Object> future) {
+            this.future = future;
+        }
+
+        @Override
+        public Map<String, Object> getContext() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+    }
+}
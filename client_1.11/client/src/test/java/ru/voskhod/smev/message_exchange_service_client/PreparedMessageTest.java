@@ -0,0 +1,132 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentList;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentContentType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.AttachmentHeaderList;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.XMLDSigSignatureType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestRequest;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendResponseRequest;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SenderProvidedRequestData;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SenderProvidedResponseData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Сжатая запись подготовленного сообщения, которую исходящий ящик хранит на диске и передаёт повторно:
+ * после readFrom должны совпасть message ID, ЭП-ОВ, метаданные бизнес-процесса и содержимое вложений,
+ * передаваемых напрямую (они записываются в base64 внутри XML).
+ */
+public class PreparedMessageTest extends TestCase {
+
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    public void testRequestRoundTrip() throws Exception {
+        SendRequestRequest request = DispatchTransportRoundTripTest.sampleRequest(4 * 1024, 2, 32 * 1024);
+        BusinessProcessMetadataBuilder metadata = new BusinessProcessMetadataBuilder();
+        metadata.setCaseNumber("case-42");
+        metadata.setServiceOrFunctionCode("10000000001");
+        metadata.setFrgu("FRGU-TEST");
+        SenderProvidedRequestData.BusinessProcessMetadata metadataWrapper = new SenderProvidedRequestData.BusinessProcessMetadata();
+        metadataWrapper.getAny().addAll(metadata.getResult());
+        request.getSenderProvidedRequestData().setBusinessProcessMetadata(metadataWrapper);
+        PreparedMessage original = new PreparedMessage(request);
+
+        PreparedMessage restored = roundTrip(original);
+
+        assertEquals(PreparedMessage.Kind.REQUEST, restored.getKind());
+        assertNull(restored.getResponse());
+        assertEquals(original.getMessageId(), restored.getMessageId());
+        assertEquals(request.getSenderProvidedRequestData().getMessageID(),
+            restored.getRequest().getSenderProvidedRequestData().getMessageID());
+        assertEquals(signatureValue(request.getCallerInformationSystemSignature()),
+            signatureValue(restored.getRequest().getCallerInformationSystemSignature()));
+
+        List<Object> restoredMetadata = restored.getRequest().getSenderProvidedRequestData().getBusinessProcessMetadata().getAny();
+        assertEquals(2, restoredMetadata.size());
+        assertEquals("CaseInfo", ((Element) restoredMetadata.get(0)).getLocalName());
+        assertTrue(((Element) restoredMetadata.get(0)).getTextContent().contains("case-42"));
+        assertEquals("FRGU-TEST", ((Element) restoredMetadata.get(1)).getTextContent());
+
+        assertEquals(contentIds(request.getSenderProvidedRequestData().getAttachmentHeaderList()),
+            contentIds(restored.getRequest().getSenderProvidedRequestData().getAttachmentHeaderList()));
+        assertAttachmentsEqual(request.getAttachmentContentList(), restored.getRequest().getAttachmentContentList());
+    }
+
+    public void testResponseRoundTrip() throws Exception {
+        SendRequestRequest sample = DispatchTransportRoundTripTest.sampleRequest(1024, 1, 10 * 1024);
+        SenderProvidedResponseData data = new SenderProvidedResponseData();
+        data.setId(MessageExchangeEndpoint.SIGNATURE_ID_PROVIDER);
+        data.setMessageID(sample.getSenderProvidedRequestData().getMessageID());
+        data.setTo("eyJzaWQiOjF9");
+        data.setMessagePrimaryContent(sample.getSenderProvidedRequestData().getMessagePrimaryContent());
+        data.setAttachmentHeaderList(sample.getSenderProvidedRequestData().getAttachmentHeaderList());
+        SendResponseRequest response = new SendResponseRequest();
+        response.setSenderProvidedResponseData(data);
+        response.setAttachmentContentList(sample.getAttachmentContentList());
+        response.setCallerInformationSystemSignature(sample.getCallerInformationSystemSignature());
+        PreparedMessage original = new PreparedMessage(response);
+
+        PreparedMessage restored = roundTrip(original);
+
+        assertEquals(PreparedMessage.Kind.RESPONSE, restored.getKind());
+        assertNull(restored.getRequest());
+        assertEquals(original.getMessageId(), restored.getMessageId());
+        SenderProvidedResponseData restoredData = restored.getResponse().getSenderProvidedResponseData();
+        assertEquals(data.getMessageID(), restoredData.getMessageID());
+        assertEquals("eyJzaWQiOjF9", restoredData.getTo());
+        assertEquals(signatureValue(response.getCallerInformationSystemSignature()),
+            signatureValue(restored.getResponse().getCallerInformationSystemSignature()));
+        assertAttachmentsEqual(response.getAttachmentContentList(), restored.getResponse().getAttachmentContentList());
+    }
+
+    private static PreparedMessage roundTrip(PreparedMessage message) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        message.writeTo(output);
+        return PreparedMessage.readFrom(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static String signatureValue(XMLDSigSignatureType signature) {
+        Element value = (Element) signature.getAny().getElementsByTagNameNS(DSIG_NS, "SignatureValue").item(0);
+        return value.getTextContent().trim();
+    }
+
+    private static List<String> contentIds(AttachmentHeaderList headers) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < headers.getAttachmentHeader().size(); i++) {
+            ids.add(headers.getAttachmentHeader().get(i).getContentId());
+        }
+        return ids;
+    }
+
+    private static void assertAttachmentsEqual(AttachmentContentList expected, AttachmentContentList actual) throws Exception {
+        assertEquals(expected.getAttachmentContent().size(), actual.getAttachmentContent().size());
+        for (int i = 0; i < expected.getAttachmentContent().size(); i++) {
+            AttachmentContentType expectedContent = expected.getAttachmentContent().get(i);
+            AttachmentContentType actualContent = actual.getAttachmentContent().get(i);
+            assertEquals(expectedContent.getId(), actualContent.getId());
+            assertTrue("attachment " + expectedContent.getId(),
+                Arrays.equals(read(expectedContent.getContent().getInputStream()), read(actualContent.getContent().getInputStream())));
+        }
+    }
+
+    private static byte[] read(InputStream input) throws Exception {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
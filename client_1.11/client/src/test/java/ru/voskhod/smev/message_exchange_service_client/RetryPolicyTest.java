@@ -0,0 +1,218 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.sun.xml.ws.client.ClientTransportException;
+import com.sun.xml.ws.resources.ClientMessages;
+import junit.framework.TestCase;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.DestinationOverflowException;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVFailureException;
+
+import javax.xml.ws.WebServiceException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+
+public class RetryPolicyTest extends TestCase {
+
+    private static final int SAMPLES = 10000;
+
+    public void testFaultClassOfSmevFaults() {
+        assertEquals(RetryPolicy.FaultClass.SMEV_FAILURE, RetryPolicy.FaultClass.of(new SMEVFailureException("failure", null)));
+        assertEquals(RetryPolicy.FaultClass.DESTINATION_OVERFLOW,
+            RetryPolicy.FaultClass.of(new DestinationOverflowException("overflow", null)));
+    }
+
+    public void testFaultClassOfTransportFaults() {
+        assertEquals(RetryPolicy.FaultClass.TRANSIENT,
+            RetryPolicy.FaultClass.of(new WebServiceClientException(new WebServiceException(new ConnectException()))));
+        assertEquals(RetryPolicy.FaultClass.TRANSIENT,
+            RetryPolicy.FaultClass.of(new WebServiceClientException(new IOException("connection reset"))));
+        assertEquals(RetryPolicy.FaultClass.TRANSIENT,
+            RetryPolicy.FaultClass.of(new WebServiceClientException(
+                new ClientTransportException(ClientMessages.localizableHTTP_CLIENT_FAILED("reset"), new IOException("connection reset")))));
+    }
+
+    public void testFaultClassOfGatewayErrors() {
+        assertEquals(RetryPolicy.FaultClass.TRANSIENT, RetryPolicy.FaultClass.of(httpStatus(502, "Bad Gateway")));
+        assertEquals(RetryPolicy.FaultClass.TRANSIENT, RetryPolicy.FaultClass.of(httpStatus(503, "Service Unavailable")));
+        assertEquals(RetryPolicy.FaultClass.TRANSIENT, RetryPolicy.FaultClass.of(httpStatus(504, "Gateway Timeout")));
+    }
+
+    /**
+     * Metro выбрасывает ClientTransportException на любой HTTP-статус ошибки; повтор поможет только ошибке шлюза.
+     */
+    public void testFaultClassOfOtherHttpErrors() {
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(httpStatus(400, "Bad Request")));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(httpStatus(401, "Unauthorized")));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(httpStatus(403, "Forbidden")));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(httpStatus(404, "Not Found")));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(httpStatus(413, "Request Entity Too Large")));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(httpStatus(500, "Internal Server Error")));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT,
+            RetryPolicy.FaultClass.of(new WebServiceClientException(new ClientTransportException(new RuntimeException()))));
+    }
+
+    public void testAwaitRetryThrowsForPermanentHttpError() {
+        WebServiceClientException fault = httpStatus(403, "Forbidden");
+        long start = System.nanoTime();
+        try {
+            RetryPolicy.DEFAULT.awaitRetry(1, fault, null);
+            fail();
+        } catch (WebServiceClientException ex) {
+            assertSame(fault, ex);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    public void testFaultClassOfOtherFaults() {
+        assertEquals(RetryPolicy.FaultClass.PERMANENT,
+            RetryPolicy.FaultClass.of(new WebServiceClientException(new WebServiceException("Unexpected response"))));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(new ClientSideProcessingException("error")));
+        assertEquals(RetryPolicy.FaultClass.PERMANENT, RetryPolicy.FaultClass.of(new IOException("not wrapped")));
+    }
+
+    public void testPermanentFaultsCannotBeRetried() {
+        try {
+            RetryPolicy.NONE.retry(RetryPolicy.FaultClass.PERMANENT, new RetryPolicy.Backoff(2, 10, 10, 1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    public void testInvalidBackoff() {
+        assertInvalidBackoff(0, 10, 10, 1);
+        assertInvalidBackoff(2, -1, 10, 1);
+        assertInvalidBackoff(2, 20, 10, 1);
+        assertInvalidBackoff(2, 10, 10, 0.5);
+    }
+
+    /**
+     * Задержка лежит между половиной и целой экспоненциальной задержкой, не превышая maxDelayMillis.
+     */
+    public void testDelayBounds() {
+        RetryPolicy.Backoff backoff = new RetryPolicy.Backoff(10, 100, 1000, 2);
+        long[] expected = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 1; attempt <= expected.length; attempt++) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < SAMPLES; i++) {
+                long delay = backoff.delayAfter(attempt);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            long full = expected[attempt - 1];
+            assertTrue("attempt " + attempt + ": " + min, min >= full / 2);
+            assertTrue("attempt " + attempt + ": " + max, max <= full);
+            // Разброс действительно случаен: за SAMPLES попыток значения не совпадают.
+            assertTrue("attempt " + attempt, max - min > full / 4);
+        }
+    }
+
+    public void testZeroDelay() {
+        RetryPolicy.Backoff backoff = new RetryPolicy.Backoff(3, 0, 0, 1);
+        assertEquals(0, backoff.delayAfter(1));
+        assertEquals(0, backoff.delayAfter(2));
+    }
+
+    public void testDefaultPolicy() {
+        assertNotNull(RetryPolicy.DEFAULT.getBackoff(RetryPolicy.FaultClass.TRANSIENT));
+        assertNotNull(RetryPolicy.DEFAULT.getBackoff(RetryPolicy.FaultClass.SMEV_FAILURE));
+        assertNotNull(RetryPolicy.DEFAULT.getBackoff(RetryPolicy.FaultClass.DESTINATION_OVERFLOW));
+        assertNull(RetryPolicy.DEFAULT.getBackoff(RetryPolicy.FaultClass.PERMANENT));
+        assertNull(RetryPolicy.NONE.getBackoff(RetryPolicy.FaultClass.TRANSIENT));
+    }
+
+    public void testRetryIsCopy() {
+        RetryPolicy policy = RetryPolicy.NONE.retry(RetryPolicy.FaultClass.TRANSIENT, new RetryPolicy.Backoff(2, 10, 10, 1));
+        assertNull(RetryPolicy.NONE.getBackoff(RetryPolicy.FaultClass.TRANSIENT));
+        assertNull(policy.retry(RetryPolicy.FaultClass.TRANSIENT, null).getBackoff(RetryPolicy.FaultClass.TRANSIENT));
+        assertNotNull(policy.getBackoff(RetryPolicy.FaultClass.TRANSIENT));
+    }
+
+    public void testAwaitRetrySleepsWithinBounds() throws Exception {
+        RetryPolicy policy = RetryPolicy.NONE.retry(RetryPolicy.FaultClass.SMEV_FAILURE, new RetryPolicy.Backoff(3, 200, 200, 1));
+        long start = System.nanoTime();
+        policy.awaitRetry(1, new SMEVFailureException("failure", null), null);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(String.valueOf(elapsed), elapsed >= 100);
+    }
+
+    public void testAwaitRetryThrowsWhenAttemptsExhausted() {
+        RetryPolicy policy = RetryPolicy.NONE.retry(RetryPolicy.FaultClass.SMEV_FAILURE, new RetryPolicy.Backoff(3, 0, 0, 1));
+        SMEVFailureException fault = new SMEVFailureException("failure", null);
+        try {
+            policy.awaitRetry(3, fault, null);
+            fail();
+        } catch (SMEVFailureException ex) {
+            assertSame(fault, ex);
+        }
+    }
+
+    public void testAwaitRetryThrowsForNotRetriedClass() {
+        ClientSideProcessingException fault = new ClientSideProcessingException("error");
+        try {
+            RetryPolicy.DEFAULT.awaitRetry(1, fault, null);
+            fail();
+        } catch (ClientSideProcessingException ex) {
+            assertSame(fault, ex);
+        }
+    }
+
+    /**
+     * Повтор, который не успеет до истечения срока отправки, не выполняется и не ждёт.
+     */
+    public void testAwaitRetryRespectsDeadline() {
+        RetryPolicy policy = RetryPolicy.NONE.retry(RetryPolicy.FaultClass.SMEV_FAILURE, new RetryPolicy.Backoff(3, 10000, 10000, 1));
+        SMEVFailureException fault = new SMEVFailureException("failure", null);
+        Deadline deadline = Deadline.after(1, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        try {
+            policy.awaitRetry(1, fault, deadline);
+            fail();
+        } catch (SMEVFailureException ex) {
+            assertSame(fault, ex);
+        } finally {
+            deadline.cancel();
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    public void testAwaitRetryWithinDeadline() throws Exception {
+        RetryPolicy policy = RetryPolicy.NONE.retry(RetryPolicy.FaultClass.SMEV_FAILURE, new RetryPolicy.Backoff(3, 20, 20, 1));
+        Deadline deadline = Deadline.after(10, TimeUnit.SECONDS);
+        try {
+            policy.awaitRetry(1, new SMEVFailureException("failure", null), deadline);
+        } finally {
+            deadline.cancel();
+        }
+    }
+
+    public void testAwaitRetryInterrupted() {
+        RetryPolicy policy = RetryPolicy.NONE.retry(RetryPolicy.FaultClass.SMEV_FAILURE, new RetryPolicy.Backoff(3, 10000, 10000, 1));
+        SMEVFailureException fault = new SMEVFailureException("failure", null);
+        Thread.currentThread().interrupt();
+        try {
+            policy.awaitRetry(1, fault, null);
+            fail();
+        } catch (SMEVFailureException ex) {
+            assertSame(fault, ex);
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    /**
+     * Ошибка так, как её выбрасывает Metro на ответ с HTTP-статусом ошибки, обёрнутая MessageExchangeEndpoint.
+     */
+    private static WebServiceClientException httpStatus(int code, String message) {
+        return new WebServiceClientException(new ClientTransportException(ClientMessages.localizableHTTP_STATUS_CODE(code, message)));
+    }
+
+    private static void assertInvalidBackoff(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double multiplier) {
+        try {
+            new RetryPolicy.Backoff(maxAttempts, initialDelayMillis, maxDelayMillis, multiplier);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+import java.util.Collections;
+
+/**
+ * Проверка бизнес-данных по схеме из состава тестов (smev-iemk-eln-service.xsd): корректный и некорректный
+ * документ, строгий режим, пространство имён из targetNamespace. Некорректное сообщение отвергается до ЭП-ОВ
+ * и до ограничения частоты отправки.
+ */
+public class SchemaRegistryTest extends TestCase {
+
+    private static final String NS = "urn://iemk-rosminzdrav-ru/integration/services/eln/0.0.1";
+
+    private static final String VALID =
+        "<eln:GetPatientDocumentsRequest xmlns:eln=\"" + NS + "\">"
+            + "<eln:Name>Иван</eln:Name><eln:Surname>Иванов</eln:Surname><eln:Patronymic>Иванович</eln:Patronymic>"
+            + "<eln:Snils>000-000-000 00</eln:Snils><eln:From>2016-01-01</eln:From><eln:To>2016-12-31</eln:To>"
+            + "</eln:GetPatientDocumentsRequest>";
+
+    // Нет обязательного Snils, дата не в формате xs:date.
+    private static final String INVALID =
+        "<eln:GetPatientDocumentsRequest xmlns:eln=\"" + NS + "\">"
+            + "<eln:Name>Иван</eln:Name><eln:Surname>Иванов</eln:Surname><eln:Patronymic>Иванович</eln:Patronymic>"
+            + "<eln:From>01.01.2016</eln:From><eln:To>2016-12-31</eln:To>"
+            + "</eln:GetPatientDocumentsRequest>";
+
+    private SchemaRegistry registry;
+
+    @Override
+    protected void setUp() throws Exception {
+        registry = new SchemaRegistry();
+        registry.register(getClass().getResource("/smev-iemk-eln-service.xsd"));
+    }
+
+    public void testRegisterReadsTargetNamespace() {
+        assertEquals(Collections.singleton(NS), registry.getNamespaces());
+    }
+
+    public void testValidDocumentPasses() throws Exception {
+        registry.validate(parse(VALID));
+    }
+
+    public void testInvalidDocumentIsRejected() throws Exception {
+        try {
+            registry.validate(parse(INVALID));
+            fail();
+        } catch (ClientSideProcessingException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("{" + NS + "}GetPatientDocumentsRequest"));
+        }
+    }
+
+    public void testValidatorsAreReused() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            registry.validate(parse(VALID));
+            try {
+                registry.validate(parse(INVALID));
+                fail();
+            } catch (ClientSideProcessingException expected) {
+                // после ошибки Validator возвращается в пул сброшенным
+            }
+        }
+    }
+
+    public void testStrictModeRejectsUnknownNamespace() throws Exception {
+        Element unknown = parse("<x:Data xmlns:x=\"urn://x-artefacts-test/unknown/1.0\"/>");
+        registry.validate(unknown);
+
+        registry.setStrict(true);
+        try {
+            registry.validate(unknown);
+            fail();
+        } catch (ClientSideProcessingException expected) {
+            assertTrue(expected.getMessage().contains("urn://x-artefacts-test/unknown/1.0"));
+        }
+        registry.validate(parse(VALID));
+    }
+
+    public void testInvalidMessageIsRejectedBeforeSigningAndRateLimiting() throws Exception {
+        try (StubSmevServer server = new StubSmevServer()) {
+            SimulatedSigningEndpoint endpoint = new SimulatedSigningEndpoint(
+                MessageExchangeEndpoint.createBundledPort(server.getAddress()), 0);
+            SendRateLimiter limiter = new SendRateLimiter(1, 100, 1, 0);
+            endpoint.setRateLimiter(limiter);
+            endpoint.setSchemaRegistry(registry);
+
+            try {
+                endpoint.sendRequest(endpoint.generateMessageID(), parse(INVALID), null, null, null);
+                fail();
+            } catch (ClientSideProcessingException expected) {
+                // не соответствует схеме
+            }
+            assertEquals(0, endpoint.getSignatures());
+            assertTrue(limiter.getRates().isEmpty());
+            assertEquals(0, server.getReceived());
+
+            endpoint.sendRequest(endpoint.generateMessageID(), parse(VALID), null, null, null);
+            assertEquals(1, endpoint.getSignatures());
+            assertEquals(1, limiter.getRates().size());
+            assertEquals(1, server.getReceived());
+        }
+    }
+
+    private static Element parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml))).getDocumentElement();
+    }
+}
@@ -0,0 +1,173 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Место в полосе отправки должно возвращаться при любом порядке завершения задачи подготовки и отмены future.
+ * Future собираются так же, как в MessageExchangeEndpoint.sendRequestAsync: подготовка на пуле полосы,
+ * передача через Futures.transform, освобождение места слушателем итоговой future.
+ */
+public class SendLaneTest extends TestCase {
+
+    private static final int LANE_SIZE = 2;
+    private static final int SENDS = 50;
+
+    private ExecutorService prepareExecutor;
+    private ExecutorService transmitExecutor;
+    private SendLane lane;
+
+    @Override
+    protected void setUp() {
+        prepareExecutor = Executors.newFixedThreadPool(SENDS);
+        transmitExecutor = Executors.newFixedThreadPool(4);
+        lane = new SendLane("test", new SendPipeline(prepareExecutor, transmitExecutor), null, LANE_SIZE);
+    }
+
+    @Override
+    protected void tearDown() {
+        prepareExecutor.shutdownNow();
+        transmitExecutor.shutdownNow();
+    }
+
+    /**
+     * Отправки отменяются, пока их задачи подготовки ждут места в заполненной полосе.
+     */
+    public void testCancelWhileWaitingForPermit() throws Exception {
+        // Полоса занята "долгими" отправками.
+        for (int i = 0; i < LANE_SIZE; i++) {
+            lane.acquire();
+        }
+        final CountDownLatch started = new CountDownLatch(SENDS);
+        List<ListenableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < SENDS; i++) {
+            results.add(send(started, 0));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (ListenableFuture<String> result : results) {
+            result.cancel(true);
+        }
+        for (int i = 0; i < LANE_SIZE; i++) {
+            lane.release();
+        }
+        awaitIdle();
+        assertEquals(0, lane.getActiveCount());
+    }
+
+    /**
+     * Отмена без прерывания: задачи подготовки получают место уже после завершения future и должны вернуть его сами.
+     */
+    public void testCancelWithoutInterruptWhileWaitingForPermit() throws Exception {
+        for (int i = 0; i < LANE_SIZE; i++) {
+            lane.acquire();
+        }
+        final CountDownLatch started = new CountDownLatch(SENDS);
+        List<ListenableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < SENDS; i++) {
+            results.add(send(started, 0));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (ListenableFuture<String> result : results) {
+            result.cancel(false);
+        }
+        for (int i = 0; i < LANE_SIZE; i++) {
+            lane.release();
+        }
+        awaitIdle();
+        assertEquals(0, lane.getActiveCount());
+    }
+
+    /**
+     * Отмена в случайный момент: до, во время и после занятия места.
+     */
+    public void testCancelAtRandomMoments() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            CountDownLatch started = new CountDownLatch(SENDS);
+            List<ListenableFuture<String>> results = new ArrayList<>();
+            for (int i = 0; i < SENDS; i++) {
+                results.add(send(started, 1));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                if (i % 3 != 0) {
+                    results.get(i).cancel(i % 2 == 0);
+                }
+            }
+            awaitIdle();
+            assertEquals("round " + round, 0, lane.getActiveCount());
+        }
+    }
+
+    public void testCompletedSendReleasesPermit() throws Exception {
+        ListenableFuture<String> result = send(new CountDownLatch(1), 0);
+        assertEquals("sent", result.get(10, TimeUnit.SECONDS));
+        awaitIdle();
+        assertEquals(0, lane.getActiveCount());
+    }
+
+    public void testClosedPermitIsNotAcquired() throws Exception {
+        SendLane.Permit permit = lane.newPermit();
+        permit.close();
+        try {
+            permit.acquire();
+            fail();
+        } catch (ClientSideProcessingException expected) {
+            // отправка уже завершена
+        }
+        assertEquals(0, lane.getActiveCount());
+        permit.close();
+        assertEquals(0, lane.getActiveCount());
+    }
+
+    private ListenableFuture<String> send(final CountDownLatch started, final long prepareMillis) {
+        final SendLane.Permit permit = lane.newPermit();
+        ListenableFuture<String> prepared = lane.getPipeline().prepare(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                permit.acquire();
+                Thread.sleep(prepareMillis);
+                return "prepared";
+            }
+        });
+        ListenableFuture<String> result = Futures.transform(prepared, new AsyncFunction<String, String>() {
+            @Override
+            public ListenableFuture<String> apply(String message) {
+                return lane.getPipeline().transmit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "sent";
+                    }
+                });
+            }
+        });
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                permit.close();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    /**
+     * Дождаться, пока все места полосы вернутся, но не дольше 30 секунд:
+     * задачи подготовки, отменённые без прерывания, доходят до освобождения места уже после завершения future.
+     */
+    private void awaitIdle() throws InterruptedException {
+        long stop = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (lane.getActiveCount() != 0 && System.nanoTime() < stop) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Переполнение очереди конвейера притормаживает источник, а не выполняет задачу в его потоке;
+ * задачи, переданные после остановки, завершаются ошибкой, а не зависают.
+ */
+public class SendPipelineTest extends TestCase {
+
+    public void testTaskAfterShutdownFails() throws Exception {
+        SendPipeline pipeline = SendPipeline.create(1, 1, 1);
+        pipeline.shutdown();
+        ListenableFuture<String> result = pipeline.prepare(constant("prepared"));
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    public void testFullQueueWaitsInsteadOfRunningInCaller() throws Exception {
+        final SendPipeline pipeline = SendPipeline.create(1, 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            final Thread caller = Thread.currentThread();
+            Callable<Thread> blocked = new Callable<Thread>() {
+                @Override
+                public Thread call() throws Exception {
+                    release.await();
+                    return Thread.currentThread();
+                }
+            };
+            // Один поток занят, одна задача в очереди.
+            pipeline.transmit(blocked);
+            pipeline.transmit(blocked);
+
+            final CountDownLatch submitted = new CountDownLatch(1);
+            final ListenableFuture<?>[] third = new ListenableFuture<?>[1];
+            Thread source = new Thread() {
+                @Override
+                public void run() {
+                    third[0] = pipeline.transmit(new Callable<Thread>() {
+                        @Override
+                        public Thread call() {
+                            return Thread.currentThread();
+                        }
+                    });
+                    submitted.countDown();
+                }
+            };
+            source.start();
+            assertFalse("Источник должен ждать места в очереди", submitted.await(300, TimeUnit.MILLISECONDS));
+
+            release.countDown();
+            assertTrue(submitted.await(10, TimeUnit.SECONDS));
+            Object thread = third[0].get(10, TimeUnit.SECONDS);
+            assertNotSame(source, thread);
+            assertNotSame(caller, thread);
+        } finally {
+            release.countDown();
+            pipeline.shutdown();
+        }
+    }
+
+    public void testShutdownWakesWaitingSource() throws Exception {
+        final SendPipeline pipeline = SendPipeline.create(1, 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Callable<String> blocked = new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    release.await();
+                    return "sent";
+                }
+            };
+            pipeline.prepare(blocked);
+            pipeline.prepare(blocked);
+
+            final ListenableFuture<?>[] third = new ListenableFuture<?>[1];
+            Thread source = new Thread() {
+                @Override
+                public void run() {
+                    third[0] = pipeline.prepare(constant("prepared"));
+                }
+            };
+            source.start();
+            Thread.sleep(200);
+            pipeline.shutdown();
+            source.join(10 * 1000);
+            assertFalse(source.isAlive());
+            try {
+                third[0].get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof RejectedExecutionException);
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static Callable<String> constant(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.DestinationOverflowException;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.QuoteLimitExceededException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.Collections;
+
+/**
+ * Снижение частоты вдвое по отказам СМЭВ, нижняя граница, восстановление при успешных отправках, отказ
+ * по ограничению частоты до подписания. Отправки идут через настоящий порт на заглушку {@link StubSmevServer}.
+ */
+public class SendRateLimiterTest extends TestCase {
+
+    private static final String TYPE = "{urn://x-artefacts-test/business/1.0}Payload";
+
+    private StubSmevServer server;
+    private SimulatedSigningEndpoint endpoint;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubSmevServer();
+        endpoint = new SimulatedSigningEndpoint(MessageExchangeEndpoint.createBundledPort(server.getAddress()), 0);
+    }
+
+    @Override
+    protected void tearDown() {
+        server.close();
+    }
+
+    public void testThrottlingHalvesRateDownToMinimum() throws Exception {
+        SendRateLimiter limiter = new SendRateLimiter(1, 16, 1, 0);
+        Element content = content("Payload");
+        limiter.onThrottled(content);
+        assertEquals(Collections.singletonMap(TYPE, 8.0), limiter.getRates());
+        limiter.onThrottled(content);
+        limiter.onThrottled(content);
+        assertEquals(2.0, limiter.getRates().get(TYPE));
+        limiter.onThrottled(content);
+        limiter.onThrottled(content);
+        assertEquals(1.0, limiter.getRates().get(TYPE));
+    }
+
+    public void testSuccessRecoversRateAdditively() throws Exception {
+        SendRateLimiter limiter = new SendRateLimiter(1, 4, 1, 0);
+        Element content = content("Payload");
+        limiter.onThrottled(content);
+        limiter.onThrottled(content);
+        assertEquals(1.0, limiter.getRates().get(TYPE));
+
+        // Прирост - increaseStep / текущая частота.
+        limiter.onSuccess(content);
+        assertEquals(2.0, limiter.getRates().get(TYPE));
+        limiter.onSuccess(content);
+        assertEquals(2.5, limiter.getRates().get(TYPE));
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess(content);
+        }
+        assertEquals(4.0, limiter.getRates().get(TYPE));
+    }
+
+    public void testRatesAreKeptPerContentType() throws Exception {
+        SendRateLimiter limiter = new SendRateLimiter(1, 16, 1, 0);
+        limiter.acquire(content("Payload"));
+        limiter.onThrottled(content("Other"));
+        assertEquals(2, limiter.getRates().size());
+        assertEquals(16.0, limiter.getRates().get(TYPE));
+        assertEquals(8.0, limiter.getRates().get("{urn://x-artefacts-test/business/1.0}Other"));
+    }
+
+    public void testQuoteLimitExceededHalvesRate() throws Exception {
+        SendRateLimiter limiter = new SendRateLimiter(1, 16, 1, 0);
+        endpoint.setRateLimiter(limiter);
+        server.setFault(StubSmevServer.quoteLimitExceeded());
+        try {
+            endpoint.sendRequest(endpoint.generateMessageID(), content("Payload"), null, null, null);
+            fail();
+        } catch (QuoteLimitExceededException expected) {
+            // квота исчерпана
+        }
+        assertEquals(8.0, limiter.getRates().get(TYPE));
+    }
+
+    public void testDestinationOverflowHalvesRate() throws Exception {
+        SendRateLimiter limiter = new SendRateLimiter(1, 16, 1, 0);
+        endpoint.setRateLimiter(limiter);
+        server.setFault(StubSmevServer.destinationOverflow());
+        try {
+            endpoint.sendRequest(endpoint.generateMessageID(), content("Payload"), null, null, null);
+            fail();
+        } catch (DestinationOverflowException expected) {
+            // очередь получателя переполнена
+        }
+        assertEquals(8.0, limiter.getRates().get(TYPE));
+
+        server.setFault(null);
+        endpoint.sendRequest(endpoint.generateMessageID(), content("Payload"), null, null, null);
+        assertEquals(8.125, limiter.getRates().get(TYPE));
+    }
+
+    /**
+     * Адрес replyTo у каждого ответа свой; частота ответов одного вида ведётся одна.
+     */
+    public void testResponsesShareRateAcrossReplyToAddresses() throws Exception {
+        SendRateLimiter limiter = new SendRateLimiter(1, 16, 1, 0);
+        endpoint.setRateLimiter(limiter);
+        server.setFault(StubSmevServer.quoteLimitExceeded());
+        for (int i = 0; i < 2; i++) {
+            try {
+                endpoint.sendResponse(endpoint.generateMessageID(), "reply-to-" + i, content("Payload"), null, null);
+                fail();
+            } catch (QuoteLimitExceededException expected) {
+                // квота исчерпана
+            }
+        }
+        assertEquals(Collections.singletonMap(TYPE, 4.0), limiter.getRates());
+    }
+
+    public void testRateLimitRejectsBeforeSigning() throws Exception {
+        // Частота 1 сообщение в секунду без ожидания: первое разрешение выдаётся сразу, второе - нет.
+        endpoint.setRateLimiter(new SendRateLimiter(1, 1, 1, 0));
+        endpoint.sendRequest(endpoint.generateMessageID(), content("Payload"), null, null, null);
+        assertEquals(1, endpoint.getSignatures());
+        try {
+            endpoint.sendRequest(endpoint.generateMessageID(), content("Payload"), null, null, null);
+            fail();
+        } catch (ClientSideProcessingException expected) {
+            assertTrue(expected.getMessage().contains(TYPE));
+        }
+        assertEquals(1, endpoint.getSignatures());
+        assertEquals(1, server.getReceived());
+    }
+
+    private static Element content(String name) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element content = document.createElementNS("urn://x-artefacts-test/business/1.0", "b:" + name);
+        content.setTextContent("data");
+        return content;
+    }
+}
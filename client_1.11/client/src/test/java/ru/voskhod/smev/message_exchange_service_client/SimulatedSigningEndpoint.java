@@ -0,0 +1,52 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.XMLDSigSignatureType;
+
+import javax.xml.bind.JAXBException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Точка доступа, в которой вместо ЭП-ОВ - маршаллинг данных в DOM, как для подписи, и занятие процессора
+ * на время подписи. Для тестов и замеров, которым не нужен КриптоПро.
+ */
+final class SimulatedSigningEndpoint extends MessageExchangeEndpoint {
+
+    private final long signNanos;
+    private final AtomicInteger signatures = new AtomicInteger();
+
+    /**
+     * @param signMicros сколько занимать процессор вместо подписи; порядок времени подписи ГОСТ Р 34.10
+     *  в КриптоПро - 2000 мкс.
+     */
+    SimulatedSigningEndpoint(SMEVMessageExchangePortType port, int signMicros) {
+        super(port, null, null, Long.MAX_VALUE);
+        this.signNanos = signMicros * 1000L;
+    }
+
+    @Override
+    protected XMLDSigSignatureType sign(Object messageButAttachments) throws ClientSideProcessingException {
+        signatures.incrementAndGet();
+        Element data;
+        try {
+            data = marshal(messageButAttachments);
+        } catch (JAXBException ex) {
+            throw new ClientSideProcessingException(ex);
+        }
+        long until = System.nanoTime() + signNanos;
+        while (System.nanoTime() < until) {
+            // подпись
+        }
+        XMLDSigSignatureType signature = new XMLDSigSignatureType();
+        signature.setAny(data.getOwnerDocument().createElementNS("http://www.w3.org/2000/09/xmldsig#", "ds:Signature"));
+        return signature;
+    }
+
+    /**
+     * @return сколько раз вычислялась ЭП-ОВ.
+     */
+    int getSignatures() {
+        return signatures.get();
+    }
+}
@@ -0,0 +1,264 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.MimeHeaders;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Заглушка СМЭВ для тестов и замеров транспорта: HTTP-сервер на локальном порту, который запоминает
+ * последний запрос как есть (заголовки и тело, вместе с MIME-частями MTOM) и на любой запрос
+ * отвечает по SOAPAction успешным SendRequestResponse / SendResponseResponse или пустыми (очередь пуста)
+ * GetRequestResponse / GetResponseResponse, либо SOAP Fault, заданным
+ * {@link #setFault}. Ответ сжимается gzip, если это включено {@link #setGzipResponses} и клиент прислал
+ * Accept-Encoding: gzip.
+ */
+final class StubSmevServer implements AutoCloseable {
+
+    private static final String RESPONSE_TEMPLATE =
+        "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>"
+            + "<ns:%1$s xmlns:ns=\"" + DispatchTransport.TYPES_NS + "\">"
+            + "<ns:MessageMetadata><ns:MessageType>%2$s</ns:MessageType>"
+            + "<ns:SendingTimestamp>2016-01-01T00:00:00.000+03:00</ns:SendingTimestamp></ns:MessageMetadata>"
+            + "</ns:%1$s></S:Body></S:Envelope>";
+
+    private static final String EMPTY_QUEUE_TEMPLATE =
+        "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>"
+            + "<ns:%s xmlns:ns=\"" + DispatchTransport.TYPES_NS + "\"/></S:Body></S:Envelope>";
+
+    static final String FAULTS_NS = "urn://x-artefacts-smev-gov-ru/services/message-exchange/types/faults/1.1";
+
+    private static final String FAULT_TEMPLATE =
+        "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body><S:Fault>"
+            + "<faultcode>S:Server</faultcode><faultstring>Stub SMEV fault</faultstring>"
+            + "<detail>%s</detail></S:Fault></S:Body></S:Envelope>";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile MimeHeaders lastHeaders;
+    private volatile byte[] lastBody;
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger gzippedResponses = new AtomicInteger();
+    private volatile boolean gzipResponses = false;
+    private volatile String faultDetail;
+
+    StubSmevServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis сколько ждать перед ответом - время обработки в СМЭВ и сети.
+     */
+    StubSmevServer(int latencyMillis) throws IOException {
+        this(latencyMillis, true);
+    }
+
+    /**
+     * @param record запоминать ли последний запрос; если нет, тело запроса вычитывается без сохранения,
+     *  и заглушка не держит в памяти ничего, что зависело бы от размера запросов.
+     */
+    StubSmevServer(int latencyMillis, boolean record) throws IOException {
+        this(0, latencyMillis, record);
+    }
+
+    /**
+     * Заглушка на заданном порту - например, на адресе узла, который был недоступен.
+     */
+    static StubSmevServer onPort(int port) throws IOException {
+        return new StubSmevServer(port, 0, true);
+    }
+
+    private StubSmevServer(int port, final int latencyMillis, final boolean record) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/transport/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (record) {
+                    MimeHeaders headers = new MimeHeaders();
+                    for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                        for (String value : header.getValue()) {
+                            headers.addHeader(header.getKey(), value);
+                        }
+                    }
+                    byte[] body = readFully(exchange.getRequestBody());
+                    lastHeaders = headers;
+                    lastBody = body;
+                } else {
+                    drain(exchange.getRequestBody());
+                }
+                received.incrementAndGet();
+                if (latencyMillis > 0) {
+                    try {
+                        Thread.sleep(latencyMillis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                String action = exchange.getRequestHeaders().getFirst("SOAPAction");
+                String fault = faultDetail;
+                byte[] bytes = (fault != null ? String.format(FAULT_TEMPLATE, fault) : responseFor(action)).getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (gzipResponses && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    bytes = gzip(bytes);
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    gzippedResponses.incrementAndGet();
+                }
+                exchange.sendResponseHeaders(fault != null ? 500 : 200, bytes.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(bytes);
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static String responseFor(String action) {
+        if (action != null && action.contains("GetRequest"))
+            return String.format(EMPTY_QUEUE_TEMPLATE, "GetRequestResponse");
+        if (action != null && action.contains("GetResponse"))
+            return String.format(EMPTY_QUEUE_TEMPLATE, "GetResponseResponse");
+        return responseEnvelope(action != null && action.contains("SendResponse"));
+    }
+
+    /**
+     * @return SOAP-конверт ответа на SendResponse (sendResponse) или SendRequest.
+     */
+    static String responseEnvelope(boolean sendResponse) {
+        return sendResponse
+            ? String.format(RESPONSE_TEMPLATE, "SendResponseResponse", "RESPONSE")
+            : String.format(RESPONSE_TEMPLATE, "SendRequestResponse", "REQUEST");
+    }
+
+    /**
+     * @return содержимое detail для SOAP Fault QuoteLimitExceeded.
+     */
+    static String quoteLimitExceeded() {
+        return "<f:QuoteLimitExceeded xmlns:f=\"" + FAULTS_NS + "\"><f:RemainedTotalQuoteSize>0</f:RemainedTotalQuoteSize>"
+            + "<f:RealTotalAttachmentSize>1024</f:RealTotalAttachmentSize></f:QuoteLimitExceeded>";
+    }
+
+    /**
+     * @return содержимое detail для SOAP Fault DestinationOverflow.
+     */
+    static String destinationOverflow() {
+        return "<f:DestinationOverflow xmlns:f=\"" + FAULTS_NS + "\"><f:MessageBrokerAddress>broker</f:MessageBrokerAddress>"
+            + "<f:DestinationName>queue</f:DestinationName></f:DestinationOverflow>";
+    }
+
+    /**
+     * @return содержимое detail для SOAP Fault SMEVFailure.
+     */
+    static String smevFailure() {
+        return "<f:SMEVFailure xmlns:f=\"" + FAULTS_NS + "\"/>";
+    }
+
+    /**
+     * Отвечать на все запросы SOAP Fault с заданным содержимым detail (HTTP 500); null - успешными ответами.
+     */
+    void setFault(String detail) {
+        this.faultDetail = detail;
+    }
+
+    /**
+     * @return адрес сервиса для createBundledPort / DispatchTransport.createBundled.
+     */
+    String getAddress() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/transport/";
+    }
+
+    /**
+     * @return последний полученный запрос, разобранный SAAJ: ссылки xop:Include остаются в теле,
+     *  содержимое - в AttachmentPart. Сжатый запрос (Content-Encoding: gzip) распаковывается.
+     */
+    SOAPMessage lastRequest() throws IOException, SOAPException {
+        InputStream body = new ByteArrayInputStream(lastBody);
+        if ("gzip".equals(lastHeader("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+        return MessageFactory.newInstance().createMessage(lastHeaders, body);
+    }
+
+    /**
+     * @return размер тела последнего запроса в том виде, в каком оно пришло по сети.
+     */
+    int lastBodySize() {
+        return lastBody.length;
+    }
+
+    /**
+     * Сжимать ответы клиентам, которые их принимают (Accept-Encoding: gzip).
+     */
+    void setGzipResponses(boolean gzipResponses) {
+        this.gzipResponses = gzipResponses;
+    }
+
+    /**
+     * @return сколько ответов отправлено сжатыми.
+     */
+    int getGzippedResponses() {
+        return gzippedResponses.get();
+    }
+
+    /**
+     * @return сколько запросов прочитано целиком (ответ на них может быть ещё не отправлен).
+     */
+    int getReceived() {
+        return received.get();
+    }
+
+    String lastHeader(String name) {
+        String[] values = lastHeaders.getHeader(name);
+        return values != null && values.length > 0 ? values[0] : null;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void drain(InputStream input) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (input.read(buffer) >= 0) {
+            // только вычитываем
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(bytes);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+}
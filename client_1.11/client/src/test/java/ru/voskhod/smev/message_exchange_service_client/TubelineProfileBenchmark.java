@@ -0,0 +1,53 @@
+package ru.voskhod.smev.message_exchange_service_client;
+
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.SMEVMessageExchangePortType;
+import ru.voskhod.smev.message_exchange.autogenerated.types.v1_1.SendRequestRequest;
+
+/**
+ * Запуск и накладные расходы на вызов для тублайнов {@link TubelineProfile#LEAN} и {@link TubelineProfile#FULL}:
+ * время создания порта по WSDL из состава библиотеки (разбор WSDL и сборка тублайна), время первого вызова
+ * и среднее время вызова SendRequest без вложений, мс. Вызовы идут на локальную заглушку {@link StubSmevServer}.
+ * <p/>
+ * В сборку не входит (не *Test), запускается вручную после mvn test-compile, каждый профиль - в отдельной JVM,
+ * иначе второй профиль получит прогретые классы первого:
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; -Dbenchmark.profile=FULL
+ *   ru.voskhod.smev.message_exchange_service_client.TubelineProfileBenchmark
+ * <p/>
+ * Параметры: -Dbenchmark.profile=LEAN|FULL (по умолчанию LEAN), -Dbenchmark.calls - вызовов в прогоне (по умолчанию 2000).
+ */
+public final class TubelineProfileBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        TubelineProfile profile = TubelineProfile.valueOf(System.getProperty("benchmark.profile", "LEAN"));
+        int calls = Integer.getInteger("benchmark.calls", 2000);
+
+        SendRequestRequest request = DispatchTransportRoundTripTest.sampleRequest(1024, 0, 0);
+        try (StubSmevServer server = new StubSmevServer()) {
+            long start = System.nanoTime();
+            SMEVMessageExchangePortType port = MessageExchangeEndpoint.createBundledPort(server.getAddress(),
+                MessageExchangeEndpoint.DEFAULT_CONNECT_TIMEOUT, 0, MessageExchangeEndpoint.DEFAULT_MTOM_THRESHOLD, profile);
+            long created = System.nanoTime();
+            port.sendRequest(request);
+            long firstCall = System.nanoTime();
+
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round <= ROUNDS; round++) {
+                long roundStart = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    port.sendRequest(request);
+                }
+                long elapsed = System.nanoTime() - roundStart;
+                if (round > 0) {
+                    best = Math.min(best, elapsed);
+                }
+            }
+
+            System.out.println("Tubeline " + profile);
+            System.out.printf("  %-15s %10.2f ms%n", "port creation", (created - start) / 1e6);
+            System.out.printf("  %-15s %10.2f ms%n", "first call", (firstCall - created) / 1e6);
+            System.out.printf("  %-15s %10.3f ms/call%n", "call", best / 1e6 / calls);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package ru.voskhod.smev.message_exchange_service_client.impl;
+
+import junit.framework.TestCase;
+import ru.voskhod.smev.message_exchange_service_client.DigestResult;
+import ru.voskhod.smev.message_exchange_service_client.InAttachment;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.MessageDigestSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+
+/**
+ * Запомненный хэш вложения не должен переживать изменение содержимого; файловое вложение запоминает хэш,
+ * только если создано как неизменяемое.
+ * Криптопровайдер ГОСТ в тестах недоступен, поэтому под именем GOST3411 регистрируется SHA-256:
+ * от алгоритма проверяемое поведение не зависит.
+ */
+public class AttachmentDigestTest extends TestCase {
+
+    private static final String PROVIDER = "AttachmentDigestTest";
+
+    public static final class Sha256AsGost extends MessageDigestSpi {
+
+        private final MessageDigest delegate;
+
+        public Sha256AsGost() throws NoSuchAlgorithmException {
+            delegate = MessageDigest.getInstance("SHA-256");
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            delegate.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            delegate.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            return delegate.digest();
+        }
+
+        @Override
+        protected void engineReset() {
+            delegate.reset();
+        }
+    }
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        Provider provider = new Provider(PROVIDER, 1.0, "GOST3411 as SHA-256 for tests") {
+        };
+        provider.put("MessageDigest.GOST3411", Sha256AsGost.class.getName());
+        Security.addProvider(provider);
+        file = File.createTempFile("attachment-digest-", ".bin");
+    }
+
+    @Override
+    protected void tearDown() {
+        Security.removeProvider(PROVIDER);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    public void testFileDigestIsMemoized() throws Exception {
+        write(file, "first");
+        FileAttachmentImpl attachment = new FileAttachmentImpl(file, "text/plain", true);
+        DigestResult digest = attachment.getDigest();
+        assertSame(digest, attachment.getDigest());
+        assertSame(digest, attachment.getKnownDigest());
+    }
+
+    public void testRewrittenFileInvalidatesDigest() throws Exception {
+        write(file, "first");
+        FileAttachmentImpl attachment = new FileAttachmentImpl(file, "text/plain", true);
+        attachment.getDigest();
+
+        write(file, "second, longer content");
+        assertNull(attachment.getKnownDigest());
+        assertDigest("second, longer content", attachment.getDigest());
+    }
+
+    public void testSameLengthRewriteInvalidatesDigest() throws Exception {
+        write(file, "aaaa");
+        FileAttachmentImpl attachment = new FileAttachmentImpl(file, "text/plain", true);
+        attachment.getDigest();
+
+        long modified = file.lastModified();
+        write(file, "bbbb");
+        // Время изменения файла на части файловых систем округляется до секунд.
+        assertTrue(file.setLastModified(modified + 2000));
+        assertDigest("bbbb", attachment.getDigest());
+    }
+
+    /**
+     * Время изменения больше на 1 мс, размер меньше на 31 байт: lastModified * 31 + length при этом не меняется.
+     */
+    public void testModifiedAndLengthAreComparedSeparately() throws Exception {
+        String longer = "0123456789012345678901234567890123456789";
+        String shorter = longer.substring(31);
+        write(file, longer);
+        FileAttachmentImpl attachment = new FileAttachmentImpl(file, "text/plain", true);
+        attachment.getDigest();
+
+        long modified = file.lastModified();
+        write(file, shorter);
+        assertTrue(file.setLastModified(modified + 1));
+        assertNull(attachment.getKnownDigest());
+        assertDigest(shorter, attachment.getDigest());
+    }
+
+    /**
+     * Перезапись с тем же размером и временем изменения не видна: хэш сбрасывается явно.
+     */
+    public void testInPlaceRewriteRequiresInvalidation() throws Exception {
+        write(file, "aaaa");
+        FileAttachmentImpl attachment = new FileAttachmentImpl(file, "text/plain", true);
+        DigestResult digest = attachment.getDigest();
+
+        long modified = file.lastModified();
+        write(file, "bbbb");
+        assertTrue(file.setLastModified(modified));
+        assertSame(digest, attachment.getKnownDigest());
+
+        attachment.invalidateDigest();
+        assertNull(attachment.getKnownDigest());
+        assertDigest("bbbb", attachment.getDigest());
+    }
+
+    /**
+     * Файловое вложение по умолчанию не запоминает хэш и замечает перезапись с тем же размером и временем изменения.
+     */
+    public void testFileDigestIsNotMemoizedByDefault() throws Exception {
+        write(file, "aaaa");
+        FileAttachmentImpl attachment = new FileAttachmentImpl(file, "text/plain");
+        assertDigest("aaaa", attachment.getDigest());
+        assertNull(attachment.getKnownDigest());
+
+        long modified = file.lastModified();
+        write(file, "bbbb");
+        assertTrue(file.setLastModified(modified));
+        assertDigest("bbbb", attachment.getDigest());
+    }
+
+    /**
+     * Вложение без метки версии содержимого не запоминает хэш.
+     */
+    public void testUnstampedAttachmentIsNotMemoized() throws Exception {
+        final byte[][] content = {"first".getBytes("UTF-8")};
+        InAttachment attachment = new InAttachment("text/plain") {
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(content[0]);
+            }
+        };
+        assertDigest("first", attachment.getDigest());
+        content[0] = "second".getBytes("UTF-8");
+        assertNull(attachment.getKnownDigest());
+        assertDigest("second", attachment.getDigest());
+    }
+
+    private static void assertDigest(String expected, DigestResult digest) throws Exception {
+        byte[] data = expected.getBytes("UTF-8");
+        assertEquals(data.length, digest.getDataSize());
+        assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(data), digest.getDataDigest()));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(content.getBytes("UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ru.voskhod.smev.message_exchange_service_client.outbox;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Восстановление журнала исходящего ящика после сбоя: недописанная запись, испорченная CRC, несколько сегментов.
+ */
+public class OutboxJournalTest extends TestCase {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("outbox-journal-", ".test");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testRecoverPending() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        journal.append(OutboxJournal.PREPARED, "a", payload("a", 100));
+        journal.append(OutboxJournal.PREPARED, "b", payload("b", 100));
+        journal.append(OutboxJournal.PREPARED, "c", payload("c", 100));
+        journal.sync(journal.append(OutboxJournal.SENT, "b", null));
+        journal.close();
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a", "c"), journal.pending());
+        assertTrue(Arrays.equals(payload("a", 100), journal.read("a")));
+        assertTrue(Arrays.equals(payload("c", 100), journal.read("c")));
+        assertNull(journal.read("b"));
+        journal.close();
+    }
+
+    public void testReadCompleted() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        journal.append(OutboxJournal.PREPARED, "a", payload("a", 10));
+        journal.append(OutboxJournal.FAILED, "a", null);
+        assertNull(journal.read("a"));
+        assertEquals(Collections.<String>emptyList(), journal.pending());
+        journal.close();
+    }
+
+    /**
+     * Процесс упал посреди записи: хвост записи b не попал на диск.
+     */
+    public void testTruncatedRecord() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        journal.append(OutboxJournal.PREPARED, "a", payload("a", 100));
+        journal.sync(journal.append(OutboxJournal.PREPARED, "b", payload("b", 100)));
+        journal.close();
+
+        File segment = singleSegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(recordSize("a", 100) + recordSize("b", 100) / 2);
+        }
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Collections.singletonList("a"), journal.pending());
+        // Новая запись ложится на место отброшенной и не склеивается с её остатками.
+        journal.sync(journal.append(OutboxJournal.PREPARED, "c", payload("c", 10)));
+        journal.close();
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a", "c"), journal.pending());
+        assertTrue(Arrays.equals(payload("c", 10), journal.read("c")));
+        journal.close();
+    }
+
+    /**
+     * Запись с неверной CRC и всё, что за ней в сегменте, считаются недописанным хвостом.
+     */
+    public void testBadCrc() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        journal.append(OutboxJournal.PREPARED, "a", payload("a", 100));
+        journal.append(OutboxJournal.PREPARED, "b", payload("b", 100));
+        journal.sync(journal.append(OutboxJournal.PREPARED, "c", payload("c", 100)));
+        journal.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(singleSegment(), "rw")) {
+            long position = recordSize("a", 100) + recordSize("b", 100) - 1;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xFF);
+        }
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Collections.singletonList("a"), journal.pending());
+        journal.sync(journal.append(OutboxJournal.PREPARED, "d", payload("d", 10)));
+        journal.close();
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Arrays.asList("a", "d"), journal.pending());
+        journal.close();
+    }
+
+    public void testCorruptedLength() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        journal.sync(journal.append(OutboxJournal.PREPARED, "a", payload("a", 100)));
+        journal.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(singleSegment(), "rw")) {
+            file.writeInt(Integer.MAX_VALUE);
+        }
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Collections.<String>emptyList(), journal.pending());
+        journal.close();
+    }
+
+    /**
+     * Сообщения распределены по нескольким сегментам; отметки о завершении лежат в более поздних сегментах,
+     * чем сами сообщения. Сегменты, все сообщения которых завершены, удаляются.
+     */
+    public void testSegmentRollover() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        int count = 40;
+        for (int i = 0; i < count; i++) {
+            journal.append(OutboxJournal.PREPARED, "m" + i, payload("m" + i, 500));
+        }
+        // Сообщение больше сегмента пишется в отдельный сегмент большего размера.
+        journal.append(OutboxJournal.PREPARED, "big", payload("big", 3 * SEGMENT_SIZE));
+        for (int i = 0; i < count - 1; i++) {
+            journal.append(OutboxJournal.SENT, "m" + i, null);
+        }
+        int segmentsBefore = segments().length;
+        assertTrue(String.valueOf(segmentsBefore), segmentsBefore > 3);
+        journal.sync(journal.append(OutboxJournal.PREPARED, "last", payload("last", 10)));
+        assertTrue(segments().length < segmentsBefore);
+        journal.close();
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Arrays.asList("m" + (count - 1), "big", "last"), journal.pending());
+        assertTrue(Arrays.equals(payload("m" + (count - 1), 500), journal.read("m" + (count - 1))));
+        assertTrue(Arrays.equals(payload("big", 3 * SEGMENT_SIZE), journal.read("big")));
+
+        journal.append(OutboxJournal.SENT, "m" + (count - 1), null);
+        journal.append(OutboxJournal.SENT, "big", null);
+        journal.sync(journal.append(OutboxJournal.SENT, "last", null));
+        assertEquals(1, segments().length);
+        journal.close();
+
+        journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        assertEquals(Collections.<String>emptyList(), journal.pending());
+        journal.close();
+    }
+
+    public void testClosed() throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, SEGMENT_SIZE);
+        long seq = journal.append(OutboxJournal.PREPARED, "a", payload("a", 10));
+        journal.close();
+        try {
+            journal.sync(seq);
+            fail();
+        } catch (IOException expected) {
+            // ok
+        }
+        try {
+            journal.read("a");
+            fail();
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    private File singleSegment() {
+        File[] segments = segments();
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private File[] segments() {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".journal");
+            }
+        });
+    }
+
+    private static int recordSize(String messageId, int payloadSize) {
+        return 4 + 4 + 1 + 2 + messageId.getBytes(StandardCharsets.UTF_8).length + payloadSize;
+    }
+
+    private static byte[] payload(String messageId, int size) {
+        byte[] payload = new byte[size];
+        byte[] seed = messageId.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (seed[i % seed.length] + i);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,232 @@
+package ru.voskhod.smev.message_exchange_service_client.outbox;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.InvalidContentException;
+import ru.voskhod.smev.message_exchange.autogenerated.service.v1_1.MessageIsAlreadySentException;
+import ru.voskhod.smev.message_exchange.autogenerated.types.basic.v1_1.XMLDSigSignatureType;
+import ru.voskhod.smev.message_exchange_service_client.MessageAcceptedOnEarlierAttemptException;
+import ru.voskhod.smev.message_exchange_service_client.MessageExchangeEndpoint;
+import ru.voskhod.smev.message_exchange_service_client.PreparedMessage;
+import ru.voskhod.smev.message_exchange_service_client.WebServiceClientException;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.MessageMetaDataAndSMEVSignature;
+import ru.voskhod.smev.message_exchange_service_client.datatypes.SendResult;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Исходящий ящик поверх точки доступа, результаты передачи которой заданы заранее: сообщение записывается
+ * в журнал до передачи, остаётся в нём после временного сбоя и передаётся повторно с тем же message ID,
+ * MessageIsAlreadySentException считается успехом, отказ по существу удаляет сообщение из ящика.
+ */
+public class OutboxTest extends TestCase {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("outbox-", ".test");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testMessageIsJournaledBeforeTransmit() throws Exception {
+        ScriptedEndpoint endpoint = new ScriptedEndpoint();
+        MessageMetaDataAndSMEVSignature metadata = new MessageMetaDataAndSMEVSignature(null, null);
+        endpoint.outcomes.add(metadata);
+        try (Outbox outbox = endpoint.open(directory)) {
+            PreparedMessage message = endpoint.prepare();
+            assertSame(metadata, outbox.send(message));
+            assertEquals(Collections.singletonList(message.getMessageId()), endpoint.sent);
+            assertEquals(Collections.singletonList(Boolean.TRUE), endpoint.journaledWhenSent);
+            assertTrue(outbox.getPendingMessageIds().isEmpty());
+        }
+    }
+
+    public void testPreparedRecordSurvivesFailedTransmit() throws Exception {
+        ScriptedEndpoint endpoint = new ScriptedEndpoint();
+        endpoint.outcomes.add(new WebServiceClientException(new IOException("connection reset")));
+        String messageId;
+        try (Outbox outbox = endpoint.open(directory)) {
+            PreparedMessage message = endpoint.prepare();
+            messageId = message.getMessageId();
+            try {
+                outbox.send(message);
+                fail();
+            } catch (WebServiceClientException expected) {
+                // соединение разорвано
+            }
+        }
+
+        try (Outbox outbox = new ScriptedEndpoint().open(directory)) {
+            assertEquals(Collections.singletonList(messageId), outbox.getPendingMessageIds());
+        }
+    }
+
+    public void testResendPendingReusesMessageId() throws Exception {
+        ScriptedEndpoint endpoint = new ScriptedEndpoint();
+        endpoint.outcomes.add(new WebServiceClientException(new IOException("connection reset")));
+        String messageId;
+        try (Outbox outbox = endpoint.open(directory)) {
+            PreparedMessage message = endpoint.prepare();
+            messageId = message.getMessageId();
+            try {
+                outbox.send(message);
+                fail();
+            } catch (WebServiceClientException expected) {
+                // соединение разорвано
+            }
+        }
+
+        // После перезапуска сообщение читается из журнала и передаётся с тем же message ID.
+        ScriptedEndpoint restarted = new ScriptedEndpoint();
+        MessageMetaDataAndSMEVSignature metadata = new MessageMetaDataAndSMEVSignature(null, null);
+        restarted.outcomes.add(metadata);
+        try (Outbox outbox = restarted.open(directory)) {
+            List<SendResult> results = outbox.resendPending();
+            assertEquals(1, results.size());
+            assertTrue(results.get(0).isSuccess());
+            assertEquals(messageId, results.get(0).getMessageId());
+            assertSame(metadata, results.get(0).getMetadata());
+            assertEquals(Collections.singletonList(messageId), restarted.sent);
+            assertTrue(outbox.getPendingMessageIds().isEmpty());
+        }
+    }
+
+    public void testAlreadySentCountsAsSuccess() throws Exception {
+        ScriptedEndpoint endpoint = new ScriptedEndpoint();
+        endpoint.outcomes.add(new MessageIsAlreadySentException("already sent", null));
+        try (Outbox outbox = endpoint.open(directory)) {
+            assertNull(outbox.send(endpoint.prepare()));
+            assertTrue(outbox.getPendingMessageIds().isEmpty());
+        }
+    }
+
+    public void testAcceptedOnEarlierAttemptCountsAsSuccess() throws Exception {
+        ScriptedEndpoint endpoint = new ScriptedEndpoint();
+        endpoint.outcomes.add(new WebServiceClientException(new IOException("connection reset")));
+        try (Outbox outbox = endpoint.open(directory)) {
+            PreparedMessage message = endpoint.prepare();
+            try {
+                outbox.send(message);
+                fail();
+            } catch (WebServiceClientException expected) {
+                // соединение разорвано
+            }
+
+            endpoint.outcomes.add(acceptedOnEarlierAttempt(message.getMessageId()));
+            List<SendResult> results = outbox.resendPending();
+            assertEquals(1, results.size());
+            assertTrue(results.get(0).isSuccess());
+            assertNull(results.get(0).getMetadata());
+            assertTrue(outbox.getPendingMessageIds().isEmpty());
+        }
+    }
+
+    public void testPermanentFaultMarksFailed() throws Exception {
+        ScriptedEndpoint endpoint = new ScriptedEndpoint();
+        endpoint.outcomes.add(new InvalidContentException("invalid content", null));
+        try (Outbox outbox = endpoint.open(directory)) {
+            try {
+                outbox.send(endpoint.prepare());
+                fail();
+            } catch (InvalidContentException expected) {
+                // отказ по существу
+            }
+            assertTrue(outbox.getPendingMessageIds().isEmpty());
+            assertTrue(outbox.resendPending().isEmpty());
+        }
+
+        try (Outbox outbox = new ScriptedEndpoint().open(directory)) {
+            assertTrue(outbox.getPendingMessageIds().isEmpty());
+        }
+    }
+
+    /**
+     * Исключение создаёт MessageExchangeEndpoint при повторе передачи; конструктор вне пакета не доступен.
+     */
+    private static MessageAcceptedOnEarlierAttemptException acceptedOnEarlierAttempt(String messageId) throws Exception {
+        Constructor<MessageAcceptedOnEarlierAttemptException> constructor = MessageAcceptedOnEarlierAttemptException.class
+            .getDeclaredConstructor(String.class, int.class, MessageIsAlreadySentException.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(messageId, 2, new MessageIsAlreadySentException("already sent", null));
+    }
+
+    /**
+     * Точка доступа без СМЭВ и КриптоПро: ЭП-ОВ - заглушка, результаты передачи берутся из outcomes по очереди.
+     * Для каждой передачи запоминается, было ли сообщение в журнале ящика в этот момент.
+     */
+    private static final class ScriptedEndpoint extends MessageExchangeEndpoint {
+
+        final Deque<Object> outcomes = new ArrayDeque<>();
+        final List<String> sent = new ArrayList<>();
+        final List<Boolean> journaledWhenSent = new ArrayList<>();
+        private Outbox outbox;
+
+        ScriptedEndpoint() {
+            super(null, null, null, Long.MAX_VALUE);
+        }
+
+        Outbox open(File directory) throws IOException {
+            outbox = new Outbox(directory, this, SEGMENT_SIZE);
+            return outbox;
+        }
+
+        PreparedMessage prepare() throws Exception {
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            Element content = document.createElementNS("urn://x-artefacts-test/business/1.0", "b:Payload");
+            content.setTextContent("data");
+            return prepareRequest(generateMessageID(), content, null, null, null);
+        }
+
+        @Override
+        protected XMLDSigSignatureType sign(Object messageButAttachments) {
+            XMLDSigSignatureType signature = new XMLDSigSignatureType();
+            try {
+                Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+                signature.setAny(document.createElementNS("http://www.w3.org/2000/09/xmldsig#", "ds:Signature"));
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            return signature;
+        }
+
+        @Override
+        public MessageMetaDataAndSMEVSignature send(PreparedMessage message)
+                throws InvalidContentException, MessageIsAlreadySentException, WebServiceClientException {
+            sent.add(message.getMessageId());
+            journaledWhenSent.add(outbox.getPendingMessageIds().contains(message.getMessageId()));
+            Object outcome = outcomes.poll();
+            assertNotNull("Unexpected send of " + message.getMessageId(), outcome);
+            if (outcome instanceof InvalidContentException)
+                throw (InvalidContentException) outcome;
+            if (outcome instanceof MessageIsAlreadySentException)
+                throw (MessageIsAlreadySentException) outcome;
+            if (outcome instanceof WebServiceClientException)
+                throw (WebServiceClientException) outcome;
+            return (MessageMetaDataAndSMEVSignature) outcome;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru.voskhod.smev.message_exchange_service_client.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Спул должен отдавать прочитанное содержимое и освобождаться по close(), не дожидаясь сборщика мусора.
+ */
+public class AttachmentSpoolTest extends TestCase {
+
+    private static final int SIZE = 100000;
+
+    public void testMemorySpool() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        AttachmentSpool spool = spool(data, SIZE);
+        assertNull(spool.getFile());
+        assertEquals(SIZE, spool.getSize());
+        assertTrue(Arrays.equals(data, read(spool)));
+        assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(data), spool.getDigest().getDataDigest()));
+        spool.close();
+        assertClosed(spool);
+    }
+
+    public void testFileSpoolDeletedOnClose() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        AttachmentSpool spool = spool(data, SIZE - 1);
+        File file = spool.getFile();
+        assertNotNull(file);
+        assertTrue(file.exists());
+        assertTrue(Arrays.equals(data, read(spool)));
+        spool.close();
+        assertFalse(file.exists());
+        assertClosed(spool);
+    }
+
+    public void testCloseIsIdempotent() throws Exception {
+        AttachmentSpool spool = spool(randomBytes(SIZE), 0);
+        spool.close();
+        spool.close();
+        assertFalse(spool.getFile().exists());
+    }
+
+    private static void assertClosed(AttachmentSpool spool) {
+        try {
+            spool.openStream();
+            fail();
+        } catch (IOException ex) {
+            // ожидаемо
+        }
+    }
+
+    private static AttachmentSpool spool(byte[] data, long memoryThreshold) throws Exception {
+        return AttachmentSpool.spool(new ByteArrayInputStream(data), memoryThreshold, MessageDigest.getInstance("SHA-256"), null);
+    }
+
+    private static byte[] read(AttachmentSpool spool) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = spool.openStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                output.write(buffer, 0, n);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,110 @@
+package ru.voskhod.smev.message_exchange_service_client.util;
+
+import ru.voskhod.crypto.PipeInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Пропускная способность вычисления хэша вложения, МБ/с: побайтовое чтение через PipeInputStream (прежняя реализация),
+ * блочное чтение потока и отображение файла в память.
+ * <p/>
+ * В сборку не входит (не *Test), запускается вручную после mvn test-compile:
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; ru.voskhod.smev.message_exchange_service_client.util.DigestEngineBenchmark
+ * <p/>
+ * Параметры: -Dbenchmark.algorithm (по умолчанию SHA-256; GOST3411 - при установленном криптопровайдере),
+ * -Dbenchmark.large=true - добавить вложение 2 ГБ (по умолчанию только 10 МБ),
+ * -Dbenchmark.bytewise=false - не мерить побайтовое чтение на больших файлах.
+ */
+public final class DigestEngineBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String algorithm = System.getProperty("benchmark.algorithm", "SHA-256");
+        boolean large = Boolean.getBoolean("benchmark.large");
+        boolean bytewise = Boolean.parseBoolean(System.getProperty("benchmark.bytewise", "true"));
+        run(algorithm, 10 * MB, true);
+        if (large) {
+            run(algorithm, 2048 * MB, bytewise);
+        }
+    }
+
+    private static void run(String algorithm, long size, boolean bytewise) throws Exception {
+        File file = writeRandomFile(size);
+        try {
+            System.out.println("Attachment " + size / MB + " MB, " + algorithm);
+            if (bytewise) {
+                report("byte-at-a-time", size, time(algorithm, file, 0));
+            }
+            report("block", size, time(algorithm, file, 1));
+            report("mmap", size, time(algorithm, file, 2));
+        } finally {
+            if (!file.delete()) {
+                System.err.println("Cannot delete " + file);
+            }
+        }
+    }
+
+    /**
+     * @return лучшее время из ROUNDS прогонов (первый прогон - прогрев), нс.
+     */
+    private static long time(String algorithm, File file, int mode) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            long start = System.nanoTime();
+            if (mode == 0) {
+                try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+                    PipeInputStream pipe = new PipeInputStream(input, digest);
+                    while (pipe.read() >= 0) {
+                        // только хэшируем
+                    }
+                    pipe.getDigest();
+                }
+            } else if (mode == 1) {
+                try (InputStream input = new FileInputStream(file)) {
+                    DigestEngine.digest(input, null, digest, null);
+                }
+            } else {
+                try (FileInputStream input = new FileInputStream(file);
+                     FileChannel channel = input.getChannel()) {
+                    DigestEngine.digest(channel, digest, null);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    private static void report(String name, long size, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("  %-15s %8.1f MB/s (%d ms)%n", name, size / (double) MB / seconds, nanos / 1000000);
+    }
+
+    private static File writeRandomFile(long size) throws IOException {
+        File file = File.createTempFile("digest-benchmark-", ".bin");
+        Random random = new Random(42);
+        byte[] block = new byte[(int) MB];
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,134 @@
+package ru.voskhod.smev.message_exchange_service_client.util;
+
+import junit.framework.TestCase;
+import ru.voskhod.crypto.PipeInputStream;
+import ru.voskhod.smev.message_exchange_service_client.DigestResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Блочное и mmap-вычисление хэша должны давать тот же результат, что и побайтовое чтение через PipeInputStream.
+ * Криптопровайдер ГОСТ в тестах недоступен, поэтому сравнение ведётся на SHA-256: от алгоритма обход данных не зависит.
+ */
+public class DigestEngineTest extends TestCase {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    public void testEmpty() throws Exception {
+        checkParity(0);
+    }
+
+    public void testOneByte() throws Exception {
+        checkParity(1);
+    }
+
+    public void testMaxUpdate() throws Exception {
+        checkParity(DigestEngine.MAX_UPDATE);
+    }
+
+    public void testMaxUpdatePlusOne() throws Exception {
+        checkParity(DigestEngine.MAX_UPDATE + 1);
+    }
+
+    public void testBufferBoundary() throws Exception {
+        checkParity(DigestEngine.BUFFER_SIZE);
+        checkParity(DigestEngine.BUFFER_SIZE + 1);
+    }
+
+    public void testMoreThanOneMappedSegment() throws Exception {
+        checkParity(DigestEngine.MAPPED_SEGMENT + 4099);
+    }
+
+    /**
+     * Поток, отдающий данные мелкими порциями, не должен влиять на результат блочного чтения.
+     */
+    public void testShortReads() throws Exception {
+        byte[] data = randomBytes(200000);
+        InputStream trickle = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 777));
+            }
+        };
+        DigestResult result = DigestEngine.digest(trickle, null, MessageDigest.getInstance(ALGORITHM), null);
+        assertEquals(data.length, result.getDataSize());
+        assertTrue(Arrays.equals(MessageDigest.getInstance(ALGORITHM).digest(data), result.getDataDigest()));
+    }
+
+    public void testCopyMatchesSource() throws Exception {
+        byte[] data = randomBytes(DigestEngine.BUFFER_SIZE * 2 + 5);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        DigestEngine.digest(new ByteArrayInputStream(data), copy, MessageDigest.getInstance(ALGORITHM), null);
+        assertTrue(Arrays.equals(data, copy.toByteArray()));
+    }
+
+    private static void checkParity(long size) throws Exception {
+        File file = writeRandomFile(size);
+        try {
+            DigestResult reference = byteAtATime(file);
+            assertEquals(size, reference.getDataSize());
+
+            DigestResult block;
+            try (InputStream input = new FileInputStream(file)) {
+                block = DigestEngine.digest(input, null, MessageDigest.getInstance(ALGORITHM), null);
+            }
+            assertEquals("block size, " + size, size, block.getDataSize());
+            assertTrue("block digest, " + size, Arrays.equals(reference.getDataDigest(), block.getDataDigest()));
+
+            DigestResult mapped;
+            try (FileInputStream input = new FileInputStream(file);
+                 FileChannel channel = input.getChannel()) {
+                mapped = DigestEngine.digest(channel, MessageDigest.getInstance(ALGORITHM), null);
+            }
+            assertEquals("mmap size, " + size, size, mapped.getDataSize());
+            assertTrue("mmap digest, " + size, Arrays.equals(reference.getDataDigest(), mapped.getDataDigest()));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    /**
+     * Прежняя реализация InAttachment.getDigest(): чтение по одному байту через PipeInputStream.
+     */
+    private static DigestResult byteAtATime(File file) throws Exception {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            PipeInputStream pipe = new PipeInputStream(input, MessageDigest.getInstance(ALGORITHM));
+            while (pipe.read() >= 0) {
+                // только хэшируем
+            }
+            return new DigestResult(pipe);
+        }
+    }
+
+    private static File writeRandomFile(long size) throws IOException {
+        File file = File.createTempFile("digest-engine-", ".bin");
+        Random random = new Random(size);
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
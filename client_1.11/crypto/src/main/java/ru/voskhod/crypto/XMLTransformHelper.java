@@ -16,6 +16,10 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,9 +40,33 @@ public class XMLTransformHelper {
         }
     }
 
-    public static synchronized Transformer getSyncTransformer() throws TransformerConfigurationException {
-        TransformerFactory tf = TransformerFactory.newInstance();
-        return tf.newTransformer();
+    /**
+     * Фабрики не потокобезопасны, но поиск реализации в newInstance() дорог, поэтому фабрики
+     * переиспользуются через пул: каждая в каждый момент времени занята одним потоком, блокировок нет.
+     */
+    private static final int FACTORY_POOL_SIZE = 16;
+
+    private static final BlockingQueue<TransformerFactory> transformerFactories = new ArrayBlockingQueue<>(FACTORY_POOL_SIZE);
+
+    // Индекс - комбинация флагов namespaceAware, coalescing, ignoringElementContentWhitespace.
+    private static final List<BlockingQueue<DocumentBuilderFactory>> documentBuilderFactories = new ArrayList<>(8);
+
+    static {
+        for (int i = 0; i < 8; i++) {
+            documentBuilderFactories.add(new ArrayBlockingQueue<DocumentBuilderFactory>(FACTORY_POOL_SIZE));
+        }
+    }
+
+    public static Transformer getSyncTransformer() throws TransformerConfigurationException {
+        TransformerFactory tf = transformerFactories.poll();
+        if (tf == null) {
+            tf = TransformerFactory.newInstance();
+        }
+        try {
+            return tf.newTransformer();
+        } finally {
+            transformerFactories.offer(tf);
+        }
     }
 
     public static String elementToString(Element element, boolean omitxmldeclaration) {
@@ -139,12 +167,22 @@ public class XMLTransformHelper {
         return getSyncDocumentBuilder(namespaceAware, false, false);
     }
 
-    public static synchronized DocumentBuilder getSyncDocumentBuilder(boolean namespaceAware, boolean coalescing, boolean ignoringElementContentWhitespace) throws ParserConfigurationException {
-        DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-        domFactory.setNamespaceAware(namespaceAware);
-        domFactory.setCoalescing(coalescing);
-        domFactory.setIgnoringElementContentWhitespace(ignoringElementContentWhitespace);
-        return domFactory.newDocumentBuilder();
+    public static DocumentBuilder getSyncDocumentBuilder(boolean namespaceAware, boolean coalescing, boolean ignoringElementContentWhitespace) throws ParserConfigurationException {
+        BlockingQueue<DocumentBuilderFactory> pool = documentBuilderFactories.get(
+            (namespaceAware ? 4 : 0) | (coalescing ? 2 : 0) | (ignoringElementContentWhitespace ? 1 : 0)
+        );
+        DocumentBuilderFactory domFactory = pool.poll();
+        if (domFactory == null) {
+            domFactory = DocumentBuilderFactory.newInstance();
+            domFactory.setNamespaceAware(namespaceAware);
+            domFactory.setCoalescing(coalescing);
+            domFactory.setIgnoringElementContentWhitespace(ignoringElementContentWhitespace);
+        }
+        try {
+            return domFactory.newDocumentBuilder();
+        } finally {
+            pool.offer(domFactory);
+        }
     }
 
     public static Document getXMLDocument(String xml) throws Exception {
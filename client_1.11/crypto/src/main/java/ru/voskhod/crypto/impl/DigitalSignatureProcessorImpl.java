@@ -11,7 +11,6 @@ import ru.voskhod.crypto.exceptions.DocumentIsNotSignedException;
 import ru.voskhod.crypto.exceptions.SignatureProcessingException;
 import ru.voskhod.crypto.exceptions.SignatureValidationException;
 
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.*;
@@ -38,27 +37,25 @@ public class DigitalSignatureProcessorImpl implements DigitalSignatureProcessor
     private static final String EDS_ERROR_SIGNATURE_INVALID = "Ошибка проверки ЭП: Нарушена целостность ЭП";
     private static final String EDS_ERROR_PUBLIC_KEY_IS_NOT_FOUND = "Нет информации об открытом ключе. Проверка не может быть осуществлена.";
 
-    private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
-        @Override
-        protected byte[] initialValue() {
-            return new byte[BUFFER_SIZE];
-        }
-    };
-
-    private final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>() {
-        @Override
-        protected DocumentBuilder initialValue() {
-            DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-            domFactory.setNamespaceAware(true);
-//            domFactory.setCoalescing(false);
-//            domFactory.setIgnoringElementContentWhitespace(false);
-            try {
-                return domFactory.newDocumentBuilder();
-            } catch (ParserConfigurationException e) {
-                throw new RuntimeException(e);
-            }
+    /**
+     * Пустые документы создаются через DOMImplementation: в отличие от DocumentBuilder он не хранит
+     * состояния и может использоваться из любого числа потоков без копии на каждый поток.
+     */
+    private static final DOMImplementation domImplementation;
+
+    static {
+        DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+        domFactory.setNamespaceAware(true);
+        try {
+            domImplementation = domFactory.newDocumentBuilder().getDOMImplementation();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
         }
-    };
+    }
+
+    private static Document newDocument() {
+        return domImplementation.createDocument(null, null, null);
+    }
 
     @Override
     public void signXMLDSigEnveloped(Element argDocumentFragment2Sign, PrivateKey argPrivateKey, X509Certificate argCertificate) throws SignatureProcessingException {
@@ -75,7 +72,7 @@ public class DigitalSignatureProcessorImpl implements DigitalSignatureProcessor
             documentToBeSigned = argDocumentRoot.getOwnerDocument();
             elementToBeSigned = argDocumentRoot;
         } else if (argXPath2Element2Sign == null) {
-            documentToBeSigned = documentBuilder.get().newDocument();
+            documentToBeSigned = newDocument();
             documentToBeSigned.appendChild(documentToBeSigned.importNode(argDocumentRoot, true));
             elementToBeSigned = argDocumentRoot;
         } else {
@@ -87,7 +84,7 @@ public class DigitalSignatureProcessorImpl implements DigitalSignatureProcessor
             } catch (XPathExpressionException e) {
                 throw new SignatureProcessingException("Невозможно найти элемент, который требуется подписать.", e);
             }
-            documentToBeSigned = documentBuilder.get().newDocument();
+            documentToBeSigned = newDocument();
             documentToBeSigned.appendChild(documentToBeSigned.importNode(elementToBeSigned, true));
         }
 
@@ -126,14 +123,14 @@ public class DigitalSignatureProcessorImpl implements DigitalSignatureProcessor
 
     @Override
     public X509Certificate validateXMLDSigDetachedSignature(Element signedContent, Element detachedSignature) throws SignatureProcessingException, SignatureValidationException {
-        Document tmpDocContent = documentBuilder.get().newDocument();
+        Document tmpDocContent = newDocument();
         Element cutContent = (Element) tmpDocContent.importNode(signedContent, true);
         tmpDocContent.appendChild(cutContent);
         Attr idAttribute = cutContent.getAttributeNode("Id");
         if (idAttribute != null) {
             cutContent.setIdAttributeNode(idAttribute, true);
         }
-        Document tmpDocSignature = documentBuilder.get().newDocument();
+        Document tmpDocSignature = newDocument();
         Element cutSignature = (Element) tmpDocSignature.importNode(detachedSignature, true);
         tmpDocSignature.appendChild(cutSignature);
         try {
@@ -173,7 +170,7 @@ public class DigitalSignatureProcessorImpl implements DigitalSignatureProcessor
     public byte[] calculateDigest(InputStream isdata, String digestAlgorithmName) throws SignatureProcessingException, NoSuchAlgorithmException {
         try {
             MessageDigest digest = MessageDigest.getInstance(digestAlgorithmName);
-            byte[] localBuffer = buffer.get();
+            byte[] localBuffer = new byte[BUFFER_SIZE];
             try {
                 int readBytesCount;
                 while ((readBytesCount = isdata.read(localBuffer)) >= 0) {
@@ -295,7 +292,7 @@ public class DigitalSignatureProcessorImpl implements DigitalSignatureProcessor
             if (argSignatureElement != null && argSignedContent.getOwnerDocument() != argSignatureElement.getOwnerDocument()) {
                 // Если подпись передана явным образом, и она не находится в том же DOM-дереве, что и подписанный контент,
                 // нужно поместить их в общее DOM-дерево. Это нужно потому, что Santuario валидирует подпись только в общем документе с контентом.
-                Document tmpDocument = documentBuilder.get().newDocument();
+                Document tmpDocument = newDocument();
                 Element tmpDocumentRootElement = (Element) tmpDocument.appendChild(tmpDocument.createElement("root_validator"));
                 signatureElement = (Element) tmpDocumentRootElement.appendChild(tmpDocument.importNode(argSignatureElement, true));
                 tmpDocumentRootElement.appendChild(tmpDocument.importNode(argSignedContent, true));
@@ -306,7 +303,7 @@ public class DigitalSignatureProcessorImpl implements DigitalSignatureProcessor
                 // Поэтому подписанный фрагмент выносим в отдельный документ.
                 // При этом считаем, что подпись находится сразу под подписанным фрагментом.
                 // TODO сделать более обобщённую обработку.
-                Document tmpDocument = documentBuilder.get().newDocument();
+                Document tmpDocument = newDocument();
                 Node importedSignatureParent = tmpDocument.importNode(signatureElement.getParentNode(), true);
                 tmpDocument.appendChild(importedSignatureParent);
                 tmpDocument.normalizeDocument();
@@ -29,29 +29,13 @@ public class SmevTransformSpi extends TransformSpi {
 	// private static Logger logger = LoggerFactory.getLogger(SmevTransformSpi.class);
 	private static final AttributeSortingComparator attributeSortingComparator = new AttributeSortingComparator();
 	
-	private static final ThreadLocal<XMLInputFactory> inputFactory =
-			new ThreadLocal<XMLInputFactory>() {
-		@Override
-		protected XMLInputFactory initialValue() {
-			return XMLInputFactory.newInstance();
-		}
-	};
+	// Фабрики StAX после создания не перенастраиваются, поэтому одни на все потоки:
+	// создание reader/writer и событий (без setLocation) не меняет их состояния.
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
 
-	private static final ThreadLocal<XMLOutputFactory> outputFactory =
-			new ThreadLocal<XMLOutputFactory>() {
-		@Override
-		protected XMLOutputFactory initialValue() {
-			return XMLOutputFactory.newInstance();
-		}
-	};
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
 
-	private static final ThreadLocal<XMLEventFactory> eventFactory =
-			new ThreadLocal<XMLEventFactory>() {
-		@Override
-		protected XMLEventFactory initialValue() {
-			return XMLEventFactory.newInstance();
-		}
-	};
+	private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
 
 	/*static {
 		logger.info("Loading SmevTransformSpi");
@@ -111,9 +95,9 @@ public class SmevTransformSpi extends TransformSpi {
         XMLEventReader src = null;
 		XMLEventWriter dst = null;
 		try {
-			src = inputFactory.get().createXMLEventReader(argSrc, ENCODING_UTF_8);
-            dst = outputFactory.get().createXMLEventWriter(argDst, ENCODING_UTF_8);
-			XMLEventFactory factory = eventFactory.get();
+			src = inputFactory.createXMLEventReader(argSrc, ENCODING_UTF_8);
+            dst = outputFactory.createXMLEventWriter(argDst, ENCODING_UTF_8);
+			XMLEventFactory factory = eventFactory;
 
             int prefixCnt = 1;
             while(src.hasNext()) {
@@ -193,7 +177,7 @@ public class SmevTransformSpi extends TransformSpi {
 					continue;
 				} else if (event.isEndElement()) {
 					// Гарантируем, что empty tags запишутся в форме <a></a>, а не в форме <a/>.
-					dst.add(eventFactory.get().createSpace(""));
+					dst.add(eventFactory.createSpace(""));
 					
 					// NS prefix rewriting
 					EndElement srcEvent = (EndElement)event;
@@ -203,7 +187,7 @@ public class SmevTransformSpi extends TransformSpi {
 						throw new TransformationException("EndElement: prefix mapping is not found for namespace " + nsURI);
 					}
 					
-					EndElement dstEvent = eventFactory.get().createEndElement(prefix, nsURI, srcEvent.getName().getLocalPart());
+					EndElement dstEvent = eventFactory.createEndElement(prefix, nsURI, srcEvent.getName().getLocalPart());
 					dst.add(dstEvent);
 					
 					prefixMappingStack.pop();